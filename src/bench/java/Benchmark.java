@@ -0,0 +1,26 @@
+package bench.java;
+
+/*
+ * One benchmark. The runner calls setUp once, then operation() in a loop for
+ * every warmup and measurement iteration, then tearDown.
+ */
+public abstract class Benchmark {
+
+    private final String name;
+
+    protected Benchmark(String name) {
+	this.name = name;
+    }
+
+    public String getName() {
+	return name;
+    }
+
+    public void setUp() throws Exception {
+    }
+
+    public abstract void operation() throws Exception;
+
+    public void tearDown() throws Exception {
+    }
+}
@@ -0,0 +1,155 @@
+package bench.java;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import main.java.helpers.ChatMetrics;
+import main.java.helpers.ChatOptions;
+
+/*
+ * Runs the handler and server benchmarks and writes the results as JSON in
+ * the layout JMH uses (benchmark, mode, score, scoreError, scoreUnit), so the
+ * usual tooling can read them.
+ *
+ * Usage: BenchmarkRunner [results.json] [--baseline old.json] [--filter text]
+ *
+ * With a baseline every result is also printed with its change against it.
+ *
+ * The tree has no build file to pull in JMH, so this stands in for its
+ * harness: warmup and measurement iterations of a fixed time in one JVM,
+ * throughput with its standard deviation over the measurement iterations. No
+ * forks and no blackholes, keep operations free of results the JIT could
+ * drop. From the repository root:
+ *
+ *   javac -d out $(find src -name '*.java')
+ *   java -cp out -Dbench.warmup=3 -Dbench.iterations=5 bench.java.BenchmarkRunner \
+ *       bench_output.json --baseline previous.json
+ */
+public class BenchmarkRunner {
+
+    private static final int WARMUP_ITERATIONS = Integer.getInteger("bench.warmup", 3);
+    private static final int MEASUREMENT_ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    private static final long ITERATION_MILLIS = Long.getLong("bench.iterationMillis", 1000);
+
+    private static final Pattern RESULT = Pattern.compile(
+	    "\"benchmark\"\\s*:\\s*\"([^\"]+)\".*?\"score\"\\s*:\\s*([0-9.eE+-]+)");
+
+    // Every benchmark creates a ChatHandler, only the first one gets the JMX name
+    private static final Logger METRICS_LOGGER = Logger.getLogger(ChatMetrics.class.getName());
+
+    public static void main(String[] args) throws Exception {
+	METRICS_LOGGER.setLevel(Level.SEVERE);
+	// Nothing of a benchmark run should end up on disk
+	System.setProperty("chat.state.persist", "false");
+	System.setProperty("chat.history.persist", "false");
+	System.setProperty("chat.mailbox.persist", "false");
+	System.setProperty("chat.search.persist", "false");
+	// A benchmark floods the handler from a few users, which the rate limits would refuse
+	System.setProperty("chat.rate.user", "0");
+	System.setProperty("chat.rate.room", "0");
+	for (ChatOptions option : ChatOptions.values()) {
+	    System.setProperty("chat.rate." + option.name().toLowerCase(), "0");
+	}
+
+	String output = "bench_output.json";
+	String baseline = null;
+	String filter = "";
+	for (int i = 0; i < args.length; i++) {
+	    if (args[i].equals("--baseline")) {
+		baseline = args[++i];
+	    } else if (args[i].equals("--filter")) {
+		filter = args[++i];
+	    } else {
+		output = args[i];
+	    }
+	}
+
+	List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+	benchmarks.addAll(HandlerBenchmarks.all());
+	benchmarks.addAll(ServerBenchmarks.all());
+
+	Map<String, Double> baselineScores = baseline == null ? new HashMap<String, Double>()
+		: readScores(baseline);
+	List<String> results = new ArrayList<String>();
+	for (Benchmark benchmark : benchmarks) {
+	    if (!benchmark.getName().contains(filter)) {
+		continue;
+	    }
+	    double[] score = run(benchmark);
+	    String line = String.format("%-40s %14.1f ops/s +- %.1f", benchmark.getName(),
+		    score[0], score[1]);
+	    Double previous = baselineScores.get(benchmark.getName());
+	    if (previous != null && previous > 0) {
+		line += String.format("  (%+.1f%% vs baseline)", (score[0] / previous - 1) * 100);
+	    }
+	    System.out.println(line);
+	    results.add(String.format("  {\"benchmark\": \"%s\", \"mode\": \"thrpt\", "
+		    + "\"score\": %.3f, \"scoreError\": %.3f, \"scoreUnit\": \"ops/s\"}",
+		    benchmark.getName(), score[0], score[1]));
+	}
+
+	try (PrintWriter out = new PrintWriter(output, "UTF-8")) {
+	    out.println("[");
+	    out.println(String.join(",\n", results));
+	    out.println("]");
+	}
+	System.exit(0);
+    }
+
+    // Returns the mean throughput and its standard deviation over the measurement iterations
+    private static double[] run(Benchmark benchmark) throws Exception {
+	benchmark.setUp();
+	try {
+	    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+		iteration(benchmark);
+	    }
+	    double[] scores = new double[MEASUREMENT_ITERATIONS];
+	    double sum = 0;
+	    for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+		scores[i] = iteration(benchmark);
+		sum += scores[i];
+	    }
+	    double mean = sum / scores.length;
+	    double squares = 0;
+	    for (double score : scores) {
+		squares += (score - mean) * (score - mean);
+	    }
+	    return new double[] { mean, Math.sqrt(squares / scores.length) };
+	} finally {
+	    benchmark.tearDown();
+	}
+    }
+
+    private static double iteration(Benchmark benchmark) throws Exception {
+	long operations = 0;
+	long start = System.nanoTime();
+	long end = start + ITERATION_MILLIS * 1000000;
+	long now;
+	do {
+	    benchmark.operation();
+	    operations++;
+	} while ((now = System.nanoTime()) < end);
+	return operations * 1e9 / (now - start);
+    }
+
+    private static Map<String, Double> readScores(String file) throws IOException {
+	Map<String, Double> scores = new HashMap<String, Double>();
+	String json = new String(Files.readAllBytes(Paths.get(file)), StandardCharsets.UTF_8);
+	Matcher matcher = RESULT.matcher(json);
+	while (matcher.find()) {
+	    scores.put(matcher.group(1), Double.parseDouble(matcher.group(2)));
+	}
+	return scores;
+    }
+}
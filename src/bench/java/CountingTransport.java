@@ -0,0 +1,50 @@
+package bench.java;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.java.ChatTransport;
+import main.java.helpers.PooledBuffer;
+import main.java.helpers.SessionTable;
+
+/*
+ * Transport that only counts what ChatHandler sends, in total and per StubSocketChannel
+ */
+public class CountingTransport implements ChatTransport {
+
+    // Buffers sent to all channels
+    final AtomicLong total = new AtomicLong();
+
+    private final SessionTable<StubSocketChannel> channels = new SessionTable<StubSocketChannel>();
+
+    void open(int session, StubSocketChannel channel) {
+	channels.set(session, channel);
+    }
+
+    public void send(int session, byte[] data) {
+	channels.get(session).received.incrementAndGet();
+	total.incrementAndGet();
+    }
+
+    public void send(int session, ByteBuffer data) {
+	channels.get(session).received.incrementAndGet();
+	total.incrementAndGet();
+    }
+
+    public void send(int session, ByteBuffer data, boolean roomMessage) {
+	channels.get(session).received.incrementAndGet();
+	total.incrementAndGet();
+    }
+
+    public void send(int session, PooledBuffer data, boolean roomMessage) {
+	channels.get(session).received.incrementAndGet();
+	total.incrementAndGet();
+	data.release();
+    }
+
+    public void close(int session, String notice) {
+    }
+
+    public void pauseReading(int session, long nanos) {
+    }
+}
@@ -0,0 +1,146 @@
+package bench.java;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import main.java.ChatHandler;
+
+/*
+ * ChatHandler.processData per command type, room broadcasts of different
+ * sizes and the rendering of /members and /rooms. Users are StubSocketChannels
+ * and replies go to a CountingTransport. Room work is asynchronous, so every
+ * operation waits until its replies have been sent.
+ */
+public class HandlerBenchmarks {
+
+    static List<Benchmark> all() {
+	List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+	benchmarks.add(new LobbyCommand("handler.help", "/help", 0));
+	benchmarks.add(new LobbyCommand("handler.invalid", "/nothing", 0));
+	benchmarks.add(new LobbyCommand("handler.rooms.10", "/rooms", 10));
+	benchmarks.add(new LobbyCommand("handler.rooms.1k", "/rooms", 1000));
+	benchmarks.add(new LobbyCommand("handler.rooms.100k", "/rooms", 100000));
+	benchmarks.add(new Create());
+	benchmarks.add(new RoomCommand("handler.members.10", 10, "/members", false));
+	benchmarks.add(new RoomCommand("handler.members.1k", 1000, "/members", false));
+	benchmarks.add(new RoomCommand("handler.history.10", 10, "/history", false));
+	benchmarks.add(new RoomCommand("handler.broadcast.10", 10, "hello everybody", true));
+	benchmarks.add(new RoomCommand("handler.broadcast.1k", 1000, "hello everybody", true));
+	benchmarks.add(new RoomCommand("handler.broadcast.10k", 10000, "hello everybody", true));
+	return benchmarks;
+    }
+
+    // A handler with one logged in user and the given number of rooms
+    private abstract static class HandlerBenchmark extends Benchmark {
+	ChatHandler handler;
+	CountingTransport transport;
+	StubSocketChannel user;
+
+	HandlerBenchmark(String name) {
+	    super(name);
+	}
+
+	public void setUp() throws Exception {
+	    handler = new ChatHandler();
+	    transport = new CountingTransport();
+	    user = login("bench");
+	}
+
+	StubSocketChannel login(String name) {
+	    StubSocketChannel channel = new StubSocketChannel();
+	    // Opens the session like an accept does
+	    channel.session = handler.newSession();
+	    transport.open(channel.session, channel);
+	    handler.openSession(transport, channel.session, channel);
+	    send(channel, name);
+	    return channel;
+	}
+
+	void send(StubSocketChannel channel, String line) {
+	    byte[] data = line.getBytes();
+	    handler.processData(transport, channel.session, data, data.length);
+	}
+
+	// Sends a line and waits until the channel got the expected number of replies
+	void request(StubSocketChannel channel, String line, int replies) {
+	    long target = channel.received.get() + replies;
+	    send(channel, line);
+	    while (channel.received.get() < target) {
+		Thread.onSpinWait();
+	    }
+	}
+    }
+
+    private static class LobbyCommand extends HandlerBenchmark {
+	private final String command;
+	private final int rooms;
+
+	LobbyCommand(String name, String command, int rooms) {
+	    super(name);
+	    this.command = command;
+	    this.rooms = rooms;
+	}
+
+	public void setUp() throws Exception {
+	    super.setUp();
+	    for (int i = 0; i < rooms; i++) {
+		request(user, "/create room" + i, 1);
+	    }
+	}
+
+	public void operation() {
+	    request(user, command, 1);
+	}
+    }
+
+    private static class Create extends HandlerBenchmark {
+	private long next;
+
+	Create() {
+	    super("handler.create");
+	}
+
+	public void operation() {
+	    request(user, "/create room" + next++, 1);
+	}
+    }
+
+    // One room with the given number of members. The operation is sent by the first member
+    private static class RoomCommand extends HandlerBenchmark {
+	private final int members;
+	private final String line;
+	private final boolean broadcast;
+
+	RoomCommand(String name, int members, String line, boolean broadcast) {
+	    super(name);
+	    this.members = members;
+	    this.line = line;
+	    this.broadcast = broadcast;
+	}
+
+	public void setUp() throws Exception {
+	    super.setUp();
+	    request(user, "/create bench", 1);
+	    request(user, "/join bench", 1);
+	    StubSocketChannel last = user;
+	    for (int i = 1; i < members; i++) {
+		last = login(String.format("member%06d", i));
+		send(last, "/join bench");
+	    }
+	    // Mailboxes run in order, once this is answered every join has been handled
+	    request(last, "/members", 1);
+	}
+
+	public void operation() {
+	    if (!broadcast) {
+		request(user, line, 1);
+		return;
+	    }
+	    long target = transport.total.get() + members;
+	    send(user, line);
+	    while (transport.total.get() < target) {
+		Thread.onSpinWait();
+	    }
+	}
+    }
+}
@@ -0,0 +1,420 @@
+package bench.java;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import main.java.helpers.Histogram;
+import main.java.helpers.LineFramer;
+import main.java.helpers.LineFramer.LineHandler;
+
+/*
+ * Simulates many telnet clients against a running ChatServer. Every client
+ * logs in, creates and joins one of the rooms and then keeps sending a mix of
+ * room chat, /message and /members. Clients are plain non blocking sockets
+ * spread over a few selector threads, so tens of thousands of them fit in one
+ * process. Every second the send and delivery rates and the end to end
+ * latency of chat lines are printed, a summary follows at the end.
+ *
+ * Chat lines carry the send time as "~<nanoTime>". Latency is only measured
+ * within this process, so the server has to run on the same box.
+ *
+ * Configured with system properties:
+ *  load.host, load.port       server address, default 127.0.0.1:9090
+ *  load.clients               number of clients, default 10000
+ *  load.rooms                 rooms the clients are spread over, default 100
+ *  load.threads               selector threads, default half the processors
+ *  load.connectRate           new connections per second, default 2000
+ *  load.intervalMillis        mean time between actions of a client, default 1000
+ *  load.mix                   weights of chat, message and members, default 90,5,5
+ *  load.duration              seconds to run once every client is connected, default 60
+ */
+public class LoadGenerator {
+
+    private static final String HOST = System.getProperty("load.host", "127.0.0.1");
+    private static final int PORT = Integer.getInteger("load.port", 9090);
+    private static final int CLIENTS = Integer.getInteger("load.clients", 10000);
+    private static final int ROOMS = Math.max(1, Integer.getInteger("load.rooms", 100));
+    private static final int THREADS = Integer.getInteger("load.threads",
+	    Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int CONNECT_RATE = Integer.getInteger("load.connectRate", 2000);
+    private static final long INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(
+	    Long.getLong("load.intervalMillis", 1000));
+    private static final int DURATION = Integer.getInteger("load.duration", 60);
+
+    // Cumulative weights of the actions, in the order chat, message, members
+    private static final int[] MIX = parseMix(System.getProperty("load.mix", "90,5,5"));
+
+    // Server lines are short, except for /members of a very large room
+    private static final int MAX_LINE_LENGTH = 65536;
+
+    // Names of an earlier run may still be taken, every run gets its own prefix
+    private static final String PREFIX = "load" + Long.toString(
+	    ThreadLocalRandom.current().nextLong(36 * 36 * 36), 36) + "x";
+
+    private static final AtomicInteger connected = new AtomicInteger();
+    private static final AtomicInteger chatting = new AtomicInteger();
+    private static final AtomicInteger failed = new AtomicInteger();
+    private static final LongAdder sent = new LongAdder();
+    private static final LongAdder delivered = new LongAdder();
+    private static final LongAdder membersReplies = new LongAdder();
+
+    // Latency of chat lines since the last report, and during the measured phase
+    private static volatile Histogram interval = new Histogram();
+    private static volatile Histogram measured;
+
+    private static volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+	System.out.println("Load: " + CLIENTS + " clients in " + ROOMS + " rooms on " + HOST
+		+ ":" + PORT + " with " + THREADS + " threads, prefix " + PREFIX);
+	Driver[] drivers = new Driver[THREADS];
+	for (int i = 0; i < drivers.length; i++) {
+	    drivers[i] = new Driver();
+	    new Thread(drivers[i], "load-driver-" + i).start();
+	}
+
+	// Connections are opened at a steady rate so the accept backlog does not overflow
+	long start = System.nanoTime();
+	for (int id = 0; id < CLIENTS; id++) {
+	    long due = start + TimeUnit.SECONDS.toNanos(id) / CONNECT_RATE;
+	    while (System.nanoTime() < due) {
+		Thread.sleep(1);
+	    }
+	    drivers[id % drivers.length].add(new Client(id));
+	    if (id > 0 && id % CONNECT_RATE == 0) {
+		report();
+	    }
+	}
+	while (chatting.get() + failed.get() < CLIENTS
+		&& System.nanoTime() - start < TimeUnit.SECONDS.toNanos(CLIENTS / CONNECT_RATE + 30)) {
+	    Thread.sleep(1000);
+	    report();
+	}
+
+	// The measured phase starts once everybody is in a room
+	System.out.println("Ramp up done in "
+		+ TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) + "s");
+	long deliveredBefore = delivered.sum();
+	long sentBefore = sent.sum();
+	Histogram latencies = new Histogram();
+	measured = latencies;
+	long measureStart = System.nanoTime();
+	for (int second = 0; second < DURATION; second++) {
+	    Thread.sleep(1000);
+	    report();
+	}
+	double seconds = (System.nanoTime() - measureStart) / 1e9;
+	running = false;
+
+	System.out.println("Summary over " + DURATION + "s:");
+	System.out.println(" * clients connected/in room/failed: " + connected.get() + "/"
+		+ chatting.get() + "/" + failed.get());
+	System.out.println(String.format(" * sent %.0f/s, delivered %.0f/s",
+		(sent.sum() - sentBefore) / seconds, (delivered.sum() - deliveredBefore) / seconds));
+	System.out.println(" * latency p50/p99/p99.9/max: " + micros(latencies.getPercentile(50))
+		+ "/" + micros(latencies.getPercentile(99)) + "/"
+		+ micros(latencies.getPercentile(99.9)) + "/" + micros(latencies.getPercentile(100))
+		+ "us (within a factor of two)");
+	System.exit(0);
+    }
+
+    private static long lastSent;
+    private static long lastDelivered;
+
+    // Prints the rates and latencies since the last report, called once a second
+    private static void report() {
+	Histogram latencies = interval;
+	interval = new Histogram();
+	long sentNow = sent.sum();
+	long deliveredNow = delivered.sum();
+	System.out.println(String.format("connected %6d  in room %6d  failed %4d  sent %8d/s  "
+		+ "delivered %9d/s  members %6d  latency p50/p99 %d/%dus", connected.get(),
+		chatting.get(), failed.get(), sentNow - lastSent,
+		deliveredNow - lastDelivered, membersReplies.sumThenReset(),
+		micros(latencies.getPercentile(50)), micros(latencies.getPercentile(99))));
+	lastSent = sentNow;
+	lastDelivered = deliveredNow;
+    }
+
+    private static long micros(long nanos) {
+	return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static int[] parseMix(String mix) {
+	String[] weights = mix.split(",");
+	int[] cumulative = new int[3];
+	int sum = 0;
+	for (int i = 0; i < cumulative.length; i++) {
+	    sum += i < weights.length ? Integer.parseInt(weights[i].trim()) : 0;
+	    cumulative[i] = sum;
+	}
+	return cumulative;
+    }
+
+    // One selector thread and the clients it owns. Clients are only touched by this thread
+    private static class Driver implements Runnable {
+	private final Selector selector;
+	private final Queue<Client> added = new ConcurrentLinkedQueue<Client>();
+
+	// Clients in a room by the time of their next action
+	private final PriorityQueue<Client> due = new PriorityQueue<Client>(
+		(a, b) -> Long.compare(a.nextAction, b.nextAction));
+
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(65536);
+
+	Driver() throws IOException {
+	    this.selector = Selector.open();
+	}
+
+	void add(Client client) {
+	    added.add(client);
+	    selector.wakeup();
+	}
+
+	public void run() {
+	    while (running) {
+		try {
+		    Client client;
+		    while ((client = added.poll()) != null) {
+			client.connect(this);
+		    }
+		    long now = System.nanoTime();
+		    while (!due.isEmpty() && due.peek().nextAction <= now) {
+			client = due.poll();
+			client.act(now);
+			due.add(client);
+		    }
+		    long waitMillis = due.isEmpty() ? 100
+			    : Math.max(1, TimeUnit.NANOSECONDS.toMillis(due.peek().nextAction - now));
+		    selector.select(waitMillis);
+		    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		    while (keys.hasNext()) {
+			SelectionKey key = keys.next();
+			keys.remove();
+			handle(key, (Client) key.attachment());
+		    }
+		} catch (IOException e) {
+		    System.out.println("Load driver failed " + e.getMessage());
+		}
+	    }
+	}
+
+	private void handle(SelectionKey key, Client client) {
+	    try {
+		if (key.isConnectable()) {
+		    client.channel.finishConnect();
+		    connected.incrementAndGet();
+		    key.interestOps(SelectionKey.OP_READ);
+		    return;
+		}
+		if (key.isWritable()) {
+		    client.flush();
+		}
+		if (key.isReadable()) {
+		    readBuffer.clear();
+		    int read = client.channel.read(readBuffer);
+		    if (read < 0) {
+			client.fail();
+			return;
+		    }
+		    client.framer.frame(client.id, readBuffer.array(), 0, read, client);
+		}
+	    } catch (IOException e) {
+		client.fail();
+	    }
+	}
+    }
+
+    private static class Client implements LineHandler {
+	private static final int LOGIN = 0;
+	private static final int NAME = 1;
+	private static final int JOIN = 2;
+	private static final int CHATTING = 3;
+	private static final int FAILED = 4;
+
+	private final int id;
+	private final String name;
+	private final String room;
+	private final LineFramer framer = new LineFramer(MAX_LINE_LENGTH);
+	private final Queue<ByteBuffer> outbound = new ArrayDeque<ByteBuffer>();
+	private SocketChannel channel;
+	private SelectionKey key;
+	private Driver driver;
+	private int state = LOGIN;
+	private long joinedNanos;
+	private long nextAction;
+
+	Client(int id) {
+	    this.id = id;
+	    this.name = PREFIX + id;
+	    this.room = PREFIX + "room" + (id % ROOMS);
+	}
+
+	void connect(Driver driver) {
+	    this.driver = driver;
+	    try {
+		channel = SocketChannel.open();
+		channel.configureBlocking(false);
+		key = channel.register(driver.selector, SelectionKey.OP_CONNECT, this);
+		if (channel.connect(new InetSocketAddress(HOST, PORT))) {
+		    connected.incrementAndGet();
+		    key.interestOps(SelectionKey.OP_READ);
+		}
+	    } catch (IOException e) {
+		fail();
+	    }
+	}
+
+	public void onLine(int session, byte[] data, int offset, int length) {
+	    switch (state) {
+	    case LOGIN:
+		if (startsWith(data, offset, length, "Login?")) {
+		    state = NAME;
+		    write(name);
+		}
+		break;
+	    case NAME:
+		if (startsWith(data, offset, length, "Welcome ")) {
+		    state = JOIN;
+		    write("/create " + room + "\n/join " + room);
+		} else if (startsWith(data, offset, length, "Sorry")) {
+		    fail();
+		}
+		break;
+	    case JOIN:
+		if (startsWith(data, offset, length, "end of list.")) {
+		    state = CHATTING;
+		    joinedNanos = System.nanoTime();
+		    chatting.incrementAndGet();
+		    // Spread the first actions over one interval so the clients do not act in lockstep
+		    nextAction = joinedNanos
+			    + ThreadLocalRandom.current().nextLong(Math.max(1, INTERVAL_NANOS));
+		    driver.due.add(this);
+		}
+		break;
+	    case CHATTING:
+		long sentNanos = timestamp(data, offset, length);
+		if (sentNanos >= joinedNanos) {
+		    // History replayed on join is older than the join and is not counted
+		    long latency = System.nanoTime() - sentNanos;
+		    interval.record(latency);
+		    Histogram latencies = measured;
+		    if (latencies != null) {
+			latencies.record(latency);
+		    }
+		    delivered.increment();
+		} else if (sentNanos < 0 && startsWith(data, offset, length, "Members:")) {
+		    membersReplies.increment();
+		}
+		break;
+	    }
+	}
+
+	public void onLineTooLong(int session) {
+	}
+
+	// Runs the next action of the mix and schedules the one after it
+	void act(long now) {
+	    if (state != CHATTING) {
+		nextAction = Long.MAX_VALUE;
+		return;
+	    }
+	    ThreadLocalRandom random = ThreadLocalRandom.current();
+	    int pick = random.nextInt(Math.max(1, MIX[2]));
+	    if (pick < MIX[0]) {
+		write("~" + now + " chatter from " + name);
+	    } else if (pick < MIX[1]) {
+		// Another client of the same room
+		int peer = id + ROOMS < CLIENTS ? id + ROOMS : id % ROOMS;
+		write("/message " + PREFIX + peer + " ~" + now + " whisper");
+	    } else {
+		write("/members");
+	    }
+	    sent.increment();
+	    nextAction = now + INTERVAL_NANOS / 2 + random.nextLong(Math.max(1, INTERVAL_NANOS));
+	}
+
+	void write(String line) {
+	    ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes());
+	    outbound.add(buffer);
+	    try {
+		flush();
+	    } catch (IOException e) {
+		fail();
+	    }
+	}
+
+	void flush() throws IOException {
+	    ByteBuffer buffer;
+	    while ((buffer = outbound.peek()) != null) {
+		channel.write(buffer);
+		if (buffer.hasRemaining()) {
+		    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		    return;
+		}
+		outbound.poll();
+	    }
+	    key.interestOps(SelectionKey.OP_READ);
+	}
+
+	void fail() {
+	    if (state == FAILED) {
+		return;
+	    }
+	    if (state == CHATTING) {
+		chatting.decrementAndGet();
+	    }
+	    state = FAILED;
+	    failed.incrementAndGet();
+	    try {
+		channel.close();
+	    } catch (IOException e) {
+		// Already gone
+	    }
+	}
+
+	// The "~<nanoTime>" of a chat line, -1 if there is none
+	private static long timestamp(byte[] data, int offset, int length) {
+	    int end = offset + length;
+	    for (int i = offset; i < end; i++) {
+		if (data[i] != '~') {
+		    continue;
+		}
+		long value = 0;
+		int digits = 0;
+		for (int j = i + 1; j < end && data[j] >= '0' && data[j] <= '9'; j++, digits++) {
+		    value = value * 10 + (data[j] - '0');
+		}
+		if (digits > 0) {
+		    return value;
+		}
+	    }
+	    return -1;
+	}
+
+	private static boolean startsWith(byte[] data, int offset, int length, String prefix) {
+	    if (length < prefix.length()) {
+		return false;
+	    }
+	    for (int i = 0; i < prefix.length(); i++) {
+		if (data[offset + i] != prefix.charAt(i)) {
+		    return false;
+		}
+	    }
+	    return true;
+	}
+    }
+}
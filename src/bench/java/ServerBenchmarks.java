@@ -0,0 +1,120 @@
+package bench.java;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.java.ChatHandler;
+import main.java.ChatServer;
+import main.java.ChatTransport;
+
+/*
+ * ChatServer.send and the reactor's write path over loopback connections. The
+ * server listens on a free port, reader threads drain the client side.
+ * An operation sends one message to every connection and waits until all of
+ * the bytes have been read back.
+ */
+public class ServerBenchmarks {
+
+    private static final byte[] MESSAGE = "bench: a typical chat line of moderate length\n"
+	    .getBytes();
+
+    static List<Benchmark> all() {
+	List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+	benchmarks.add(new SendAndDrain("server.send.1", 1));
+	benchmarks.add(new SendAndDrain("server.send.100", 100));
+	return benchmarks;
+    }
+
+    private static class SendAndDrain extends Benchmark {
+	private final int connections;
+	private final List<Integer> serverSide = new ArrayList<Integer>();
+	private final List<Socket> clients = new ArrayList<Socket>();
+	private final AtomicLong bytesRead = new AtomicLong();
+	private ChatServer server;
+	private long expected;
+
+	SendAndDrain(String name, int connections) {
+	    super(name);
+	    this.connections = connections;
+	}
+
+	public void setUp() throws Exception {
+	    RecordingHandler handler = new RecordingHandler();
+	    int port = freePort();
+	    server = new ChatServer(port, handler, 2);
+	    Thread serverThread = new Thread(server, "bench-server");
+	    serverThread.setDaemon(true);
+	    serverThread.start();
+	    for (int i = 0; i < connections; i++) {
+		Socket client = new Socket();
+		client.connect(new InetSocketAddress("127.0.0.1", port));
+		clients.add(client);
+		startReader(client.getInputStream());
+	    }
+	    while (handler.accepted.size() < connections) {
+		Thread.sleep(1);
+	    }
+	    serverSide.addAll(handler.accepted);
+	    // The login prompt of every connection
+	    Thread.sleep(100);
+	    expected = bytesRead.get();
+	}
+
+	public void operation() {
+	    for (int session : serverSide) {
+		server.send(session, MESSAGE);
+	    }
+	    expected += (long) MESSAGE.length * connections;
+	    while (bytesRead.get() < expected) {
+		Thread.onSpinWait();
+	    }
+	}
+
+	public void tearDown() throws Exception {
+	    for (Socket client : clients) {
+		client.close();
+	    }
+	}
+
+	// The server keeps running until the runner exits, every benchmark gets its own port
+	private static int freePort() throws IOException {
+	    try (ServerSocket socket = new ServerSocket(0)) {
+		return socket.getLocalPort();
+	    }
+	}
+
+	private void startReader(InputStream in) {
+	    Thread reader = new Thread(() -> {
+		byte[] buffer = new byte[65536];
+		try {
+		    int read;
+		    while ((read = in.read(buffer)) != -1) {
+			bytesRead.addAndGet(read);
+		    }
+		} catch (Exception e) {
+		    // Closed in tearDown
+		}
+	    });
+	    reader.setDaemon(true);
+	    reader.start();
+	}
+    }
+
+    // Remembers the sessions of the accepted channels so the benchmark can send to them
+    private static class RecordingHandler extends ChatHandler {
+	final List<Integer> accepted = new CopyOnWriteArrayList<Integer>();
+
+	public void openSession(ChatTransport server, int session, SocketChannel socket) {
+	    accepted.add(session);
+	    super.openSession(server, session, socket);
+	}
+    }
+}
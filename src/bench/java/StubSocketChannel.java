@@ -0,0 +1,109 @@
+package bench.java;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * SocketChannel that is never connected and holds no file descriptor. Used as
+ * the identity of a user in handler benchmarks. Writes are swallowed and
+ * counted.
+ */
+public class StubSocketChannel extends SocketChannel {
+
+    // Number of buffers sent to this channel through CountingTransport
+    final AtomicLong received = new AtomicLong();
+
+    // Id of the channel's session, set by HandlerBenchmarks on login
+    int session;
+
+    public StubSocketChannel() {
+	super(SelectorProvider.provider());
+    }
+
+    public SocketChannel bind(SocketAddress local) {
+	return this;
+    }
+
+    public <T> SocketChannel setOption(SocketOption<T> name, T value) {
+	return this;
+    }
+
+    public <T> T getOption(SocketOption<T> name) {
+	return null;
+    }
+
+    public Set<SocketOption<?>> supportedOptions() {
+	return Collections.emptySet();
+    }
+
+    public SocketChannel shutdownInput() {
+	return this;
+    }
+
+    public SocketChannel shutdownOutput() {
+	return this;
+    }
+
+    public java.net.Socket socket() {
+	return null;
+    }
+
+    public boolean isConnected() {
+	return true;
+    }
+
+    public boolean isConnectionPending() {
+	return false;
+    }
+
+    public boolean connect(SocketAddress remote) {
+	return true;
+    }
+
+    public boolean finishConnect() {
+	return true;
+    }
+
+    public SocketAddress getRemoteAddress() {
+	return null;
+    }
+
+    public SocketAddress getLocalAddress() {
+	return null;
+    }
+
+    public int read(ByteBuffer dst) {
+	return 0;
+    }
+
+    public long read(ByteBuffer[] dsts, int offset, int length) {
+	return 0;
+    }
+
+    public int write(ByteBuffer src) {
+	int written = src.remaining();
+	src.position(src.limit());
+	return written;
+    }
+
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+	long written = 0;
+	for (int i = offset; i < offset + length; i++) {
+	    written += write(srcs[i]);
+	}
+	return written;
+    }
+
+    protected void implCloseSelectableChannel() throws IOException {
+    }
+
+    protected void implConfigureBlocking(boolean block) throws IOException {
+    }
+}
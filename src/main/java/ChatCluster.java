@@ -0,0 +1,459 @@
+package main.java;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Logger;
+
+/*
+ * Joins several chat servers into one cluster that shares rooms. Every node
+ * keeps a link to every other node (full mesh). A message posted to a room is
+ * relayed once per peer, not once per remote member, and every node fans it
+ * out to its own members. Room creation and membership changes are sent
+ * incrementally, every node keeps a replica of the remote members of each
+ * room for /rooms and /members.
+ *
+ * Links are plain blocking sockets with a reader and a writer thread each,
+ * there are only a handful of them. When two nodes dial each other the link
+ * dialed by the node with the smaller name is kept. After a link comes up both
+ * sides send their complete local membership, after that only changes.
+ *
+ * Peers are not authenticated beyond their address. The peer listener binds
+ * to -Dchat.cluster.bind (all interfaces when not set) and only accepts
+ * connections from the hosts of -Dchat.cluster.peers. A peer only reaches the
+ * rooms it announced with ROOM or that exist here already, frames for any
+ * other room are ignored.
+ *
+ * Frame: 4 byte length of the rest, 1 byte type, fields. Names are a 2 byte
+ * length and UTF-8, the message of MESSAGE is the rest of the frame.
+ */
+public class ChatCluster {
+    private final static Logger LOGGER = Logger.getLogger(ChatCluster.class.getName());
+
+    private static final byte HELLO = 1; // node
+    private static final byte ROOM = 2; // room, member count, members. Replaces the sender's members
+    private static final byte JOINED = 3; // room, user
+    private static final byte LEFT = 4; // room, user
+    private static final byte MESSAGE = 5; // room, message bytes
+
+    // Frames queued for one peer before the link is considered dead and reset
+    private static final int QUEUE_LIMIT = Integer.getInteger("chat.cluster.queueLimit", 100000);
+
+    // Largest frame accepted from a peer, ROOM frames carry every member of a room. Longer
+    // frames reset the link
+    private static final int MAX_FRAME = Integer.getInteger("chat.cluster.maxFrame",
+	    16 * 1024 * 1024);
+
+    private static final long REDIAL_MILLIS = 2000;
+
+    private final String nodeName;
+    private final ChatHandler handler;
+    private final ChatTransport transport;
+    private final List<InetSocketAddress> peers;
+    private final ServerSocket serverSocket;
+
+    // Links that completed the handshake, by node name
+    private final Map<String, PeerLink> links = new ConcurrentHashMap<String, PeerLink>();
+
+    // Node name behind every peer address once known, so live peers are not dialed again
+    private final Map<InetSocketAddress, String> peerNodes = new ConcurrentHashMap<InetSocketAddress, String>();
+
+    // Replica of the remote members: room -> node -> users. The same name may be logged in
+    // on several nodes
+    private final Map<String, Map<String, Set<String>>> remoteMembers = new ConcurrentHashMap<String, Map<String, Set<String>>>();
+
+    public ChatCluster(String nodeName, InetSocketAddress address,
+	    List<InetSocketAddress> peers, ChatHandler handler, ChatTransport transport)
+	    throws IOException {
+	this.nodeName = nodeName;
+	this.handler = handler;
+	this.transport = transport;
+	this.peers = peers;
+	this.serverSocket = new ServerSocket();
+	serverSocket.bind(address);
+    }
+
+    // Set up from -Dchat.cluster.port, -Dchat.cluster.bind and
+    // -Dchat.cluster.peers=host:port,... or null when the server runs on its own
+    static ChatCluster fromProperties(ChatHandler handler, ChatTransport transport)
+	    throws IOException {
+	Integer port = Integer.getInteger("chat.cluster.port");
+	if (port == null) {
+	    return null;
+	}
+	List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+	for (String peer : System.getProperty("chat.cluster.peers", "").split(",")) {
+	    int colon = peer.lastIndexOf(':');
+	    if (colon > 0) {
+		peers.add(new InetSocketAddress(peer.substring(0, colon).trim(),
+			Integer.parseInt(peer.substring(colon + 1).trim())));
+	    }
+	}
+	String nodeName = System.getProperty("chat.cluster.node", "node" + port);
+	String bind = System.getProperty("chat.cluster.bind");
+	InetSocketAddress address = bind == null ? new InetSocketAddress(port)
+		: new InetSocketAddress(bind, port);
+	ChatCluster cluster = new ChatCluster(nodeName, address, peers, handler, transport);
+	handler.setCluster(cluster);
+	cluster.start();
+	return cluster;
+    }
+
+    public void start() {
+	daemon(this::acceptLoop, "chat-cluster-accept");
+	daemon(this::dialLoop, "chat-cluster-dial");
+	LOGGER.info("Cluster node " + nodeName + " listening on " + serverSocket.getLocalPort());
+    }
+
+    public String getNodeName() {
+	return nodeName;
+    }
+
+    // Joins, leaves and messages are passed on from the room's mailbox, so every peer
+    // sees the changes of a room in order
+    public void roomCreated(String roomName) {
+	sendToAll(encode(ROOM, roomName, Collections.<String> emptyList()));
+    }
+
+    public void memberJoined(String roomName, String userName) {
+	sendToAll(encode(JOINED, roomName, userName));
+    }
+
+    public void memberLeft(String roomName, String userName) {
+	sendToAll(encode(LEFT, roomName, userName));
+    }
+
+    // The message is encoded once and the same frame is queued for every peer
+    public void relay(String roomName, byte[] message) {
+	if (links.isEmpty()) {
+	    return;
+	}
+	byte[] room = roomName.getBytes(StandardCharsets.UTF_8);
+	ByteBuffer frame = ByteBuffer.allocate(4 + 1 + 2 + room.length + message.length);
+	frame.putInt(frame.capacity() - 4).put(MESSAGE).putShort((short) room.length).put(room)
+		.put(message);
+	sendToAll(frame.array());
+    }
+
+    // Remote members of a room, node -> users. Empty when there are none
+    public Map<String, Set<String>> getRemoteMembers(String roomName) {
+	Map<String, Set<String>> members = remoteMembers.get(roomName);
+	return members == null ? Collections.<String, Set<String>> emptyMap() : members;
+    }
+
+    public int getRemoteMemberCount(String roomName) {
+	Map<String, Set<String>> members = remoteMembers.get(roomName);
+	if (members == null) {
+	    return 0;
+	}
+	int count = 0;
+	for (Set<String> users : members.values()) {
+	    count += users.size();
+	}
+	return count;
+    }
+
+    private void sendToAll(byte[] frame) {
+	for (PeerLink link : links.values()) {
+	    link.send(frame);
+	}
+    }
+
+    private void acceptLoop() {
+	while (true) {
+	    try {
+		Socket socket = serverSocket.accept();
+		if (isPeer(socket.getInetAddress())) {
+		    new PeerLink(socket, false).start();
+		} else {
+		    LOGGER.warning("Refused cluster connection from " + socket.getInetAddress()
+			    + ", not a configured peer");
+		    socket.close();
+		}
+	    } catch (IOException e) {
+		LOGGER.info("Exception occured while accepting peer" + e.getMessage());
+	    }
+	}
+    }
+
+    // Resolved on every accept, peers may have come up under a new address
+    private boolean isPeer(InetAddress address) {
+	for (InetSocketAddress peer : peers) {
+	    try {
+		for (InetAddress peerAddress : InetAddress.getAllByName(peer.getHostString())) {
+		    if (peerAddress.equals(address)) {
+			return true;
+		    }
+		}
+	    } catch (UnknownHostException e) {
+		// Not resolvable right now
+	    }
+	}
+	return false;
+    }
+
+    // Dials every configured peer that has no live link, again and again
+    private void dialLoop() {
+	while (true) {
+	    for (InetSocketAddress peer : peers) {
+		String node = peerNodes.get(peer);
+		if (node != null && links.containsKey(node)) {
+		    continue;
+		}
+		try {
+		    Socket socket = new Socket();
+		    socket.connect(peer, (int) REDIAL_MILLIS);
+		    PeerLink link = new PeerLink(socket, true);
+		    link.address = peer;
+		    link.start();
+		} catch (IOException e) {
+		    // Peer not up yet
+		}
+	    }
+	    try {
+		Thread.sleep(REDIAL_MILLIS);
+	    } catch (InterruptedException e) {
+		return;
+	    }
+	}
+    }
+
+    // Called once the peer said who it is. Returns false when the link is a duplicate and
+    // was dropped. Both sides keep the link dialed by the node with the smaller name
+    private synchronized boolean register(PeerLink link) {
+	if (link.address != null) {
+	    peerNodes.put(link.address, link.node);
+	}
+	PeerLink existing = links.get(link.node);
+	if (existing != null) {
+	    String keptDialer = nodeName.compareTo(link.node) < 0 ? nodeName : link.node;
+	    String linkDialer = link.dialed ? nodeName : link.node;
+	    if (!linkDialer.equals(keptDialer)) {
+		return false;
+	    }
+	    existing.close();
+	}
+	links.put(link.node, link);
+	// Every room's members are sent from its mailbox, in order with later changes
+	handler.announceMembership((roomName, userNames) -> link.send(encode(ROOM, roomName,
+		userNames)));
+	LOGGER.info("Cluster link to " + link.node + " is up");
+	return true;
+    }
+
+    private synchronized void unregister(PeerLink link) {
+	if (link.node == null || !links.remove(link.node, link)) {
+	    return;
+	}
+	for (Map<String, Set<String>> members : remoteMembers.values()) {
+	    members.remove(link.node);
+	}
+	handler.remoteMembersChanged(null);
+	LOGGER.info("Cluster link to " + link.node + " is down");
+    }
+
+    // in holds the fields of one frame, reading past them fails
+    private void receive(PeerLink link, DataInputStream in, byte type) throws IOException {
+	String roomName = readName(in);
+	// Rooms only come into being through ROOM, like /create they are announced once
+	if (type != ROOM && !handler.hasRoom(roomName)) {
+	    return;
+	}
+	switch (type) {
+	case ROOM:
+	    int count = in.readInt();
+	    Set<String> users = ConcurrentHashMap.newKeySet();
+	    for (int i = 0; i < count; i++) {
+		users.add(readName(in));
+	    }
+	    handler.remoteRoomCreated(roomName);
+	    membersOf(roomName).put(link.node, users);
+	    handler.remoteMembersChanged(roomName);
+	    break;
+	case JOINED:
+	    String joined = readName(in);
+	    usersOf(roomName, link.node).add(joined);
+	    handler.remoteMemberJoined(transport, roomName, joined, link.node);
+	    break;
+	case LEFT:
+	    String left = readName(in);
+	    usersOf(roomName, link.node).remove(left);
+	    handler.remoteMemberLeft(transport, roomName, left, link.node);
+	    break;
+	case MESSAGE:
+	    byte[] message = new byte[in.available()];
+	    in.readFully(message);
+	    handler.deliverRelayed(transport, roomName, message);
+	    break;
+	default:
+	    throw new IOException("Unknown cluster frame " + type);
+	}
+    }
+
+    private Map<String, Set<String>> membersOf(String roomName) {
+	return remoteMembers.computeIfAbsent(roomName,
+		name -> new ConcurrentHashMap<String, Set<String>>());
+    }
+
+    private Set<String> usersOf(String roomName, String node) {
+	return membersOf(roomName).computeIfAbsent(node, name -> ConcurrentHashMap.newKeySet());
+    }
+
+    private static byte[] encode(byte type, String roomName, String userName) {
+	byte[] room = roomName.getBytes(StandardCharsets.UTF_8);
+	byte[] user = userName.getBytes(StandardCharsets.UTF_8);
+	ByteBuffer frame = ByteBuffer.allocate(4 + 1 + 2 + room.length + 2 + user.length);
+	frame.putInt(frame.capacity() - 4).put(type);
+	frame.putShort((short) room.length).put(room).putShort((short) user.length).put(user);
+	return frame.array();
+    }
+
+    private static byte[] encode(byte type, String roomName, List<String> userNames) {
+	List<byte[]> names = new ArrayList<byte[]>(userNames.size() + 1);
+	int size = 4 + 1 + 4;
+	names.add(roomName.getBytes(StandardCharsets.UTF_8));
+	for (String userName : userNames) {
+	    names.add(userName.getBytes(StandardCharsets.UTF_8));
+	}
+	for (byte[] name : names) {
+	    size += 2 + name.length;
+	}
+	ByteBuffer frame = ByteBuffer.allocate(size);
+	frame.putInt(size - 4).put(type);
+	frame.putShort((short) names.get(0).length).put(names.get(0));
+	frame.putInt(userNames.size());
+	for (int i = 1; i < names.size(); i++) {
+	    frame.putShort((short) names.get(i).length).put(names.get(i));
+	}
+	return frame.array();
+    }
+
+    private static String readName(DataInputStream in) throws IOException {
+	byte[] name = new byte[in.readUnsignedShort()];
+	in.readFully(name);
+	return new String(name, StandardCharsets.UTF_8);
+    }
+
+    private static void daemon(Runnable task, String name) {
+	Thread thread = new Thread(task, name);
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    // Connection to one peer. Frames are queued by the mailboxes and written by its own thread
+    private class PeerLink {
+	private final Socket socket;
+	private final boolean dialed;
+	private final BlockingQueue<byte[]> outbound = new LinkedBlockingQueue<byte[]>(QUEUE_LIMIT);
+	private InetSocketAddress address;
+	private volatile String node;
+
+	PeerLink(Socket socket, boolean dialed) {
+	    this.socket = socket;
+	    this.dialed = dialed;
+	}
+
+	void start() throws IOException {
+	    socket.setTcpNoDelay(true);
+	    byte[] hello = nodeName.getBytes(StandardCharsets.UTF_8);
+	    ByteBuffer frame = ByteBuffer.allocate(4 + 1 + 2 + hello.length);
+	    frame.putInt(frame.capacity() - 4).put(HELLO).putShort((short) hello.length).put(hello);
+	    outbound.add(frame.array());
+	    daemon(this::readLoop, "chat-cluster-reader");
+	    daemon(this::writeLoop, "chat-cluster-writer");
+	}
+
+	// A peer that can not keep up is reset, it gets the full membership again on reconnect
+	void send(byte[] frame) {
+	    if (!outbound.offer(frame)) {
+		LOGGER.warning("Cluster link to " + node + " is too slow, resetting it");
+		close();
+	    }
+	}
+
+	// Any failure, a broken frame included, closes the link
+	private void readLoop() {
+	    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+		    socket.getInputStream()))) {
+		DataInputStream hello = readFrame(in);
+		if (hello.readByte() != HELLO) {
+		    throw new IOException("Cluster peer did not say hello");
+		}
+		node = readName(hello);
+		if (!register(this)) {
+		    return;
+		}
+		while (true) {
+		    DataInputStream frame = readFrame(in);
+		    receive(this, frame, frame.readByte());
+		}
+	    } catch (IOException e) {
+		// Peer went away
+	    } catch (RuntimeException e) {
+		LOGGER.warning("Cluster link to " + node + " failed: " + e);
+	    } finally {
+		close();
+	    }
+	}
+
+	// The type and fields of the next frame
+	private DataInputStream readFrame(DataInputStream in) throws IOException {
+	    int length = in.readInt();
+	    if (length < 1 || length > MAX_FRAME) {
+		throw new IOException("Cluster frame of " + length + " bytes");
+	    }
+	    byte[] frame = new byte[length];
+	    in.readFully(frame);
+	    return new DataInputStream(new ByteArrayInputStream(frame));
+	}
+
+	// Writes everything queued with one flush
+	private void writeLoop() {
+	    List<byte[]> batch = new ArrayList<byte[]>();
+	    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+		    socket.getOutputStream(), 65536))) {
+		while (!socket.isClosed()) {
+		    batch.add(outbound.take());
+		    outbound.drainTo(batch);
+		    for (byte[] frame : batch) {
+			out.write(frame);
+		    }
+		    out.flush();
+		    batch.clear();
+		}
+	    } catch (IOException | InterruptedException e) {
+		// Closed by the reader
+	    }
+	    close();
+	}
+
+	void close() {
+	    unregister(this);
+	    try {
+		socket.close();
+	    } catch (IOException e) {
+		LOGGER.info("Exception occured while closing peer link" + e.getMessage());
+	    }
+	    // Wakes up the writer if it is waiting for data
+	    outbound.offer(new byte[0]);
+	}
+    }
+}
@@ -0,0 +1,444 @@
+package main.java;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import main.java.helpers.ChatMetrics;
+import main.java.helpers.ConnectionStats;
+import main.java.helpers.LineFramer;
+import main.java.helpers.MessageTrace;
+import main.java.helpers.OutboundBudget;
+import main.java.helpers.PooledBuffer;
+import main.java.helpers.TimingWheel.Timeout;
+
+/*
+ * State kept for every accepted channel. Attached to the channel's SelectionKey
+ * in the owning reactor. Any thread may queue outbound data, only the reactor
+ * thread reads, writes and touches the key.
+ */
+public class ChatConnection implements ConnectionStats {
+
+	// Upper bound of buffers handed to a single gathering write
+	private static final int MAX_GATHER = Integer.getInteger("chat.write.maxGather", 64);
+
+	private static final String DISCONNECT_NOTICE = "You are not reading fast enough. Disconnecting\n";
+
+	// queuedBytes once the channel is closed and its bytes were given back to the budget
+	private static final long CLOSED = Long.MIN_VALUE;
+
+	// A buffer in the outbound queue. DROP_OLDEST only removes room messages
+	private static final class Queued {
+		final PooledBuffer buffer;
+		final boolean roomMessage;
+
+		Queued(PooledBuffer buffer, boolean roomMessage) {
+			this.buffer = buffer;
+			this.roomMessage = roomMessage;
+		}
+	}
+
+	private SocketChannel socketChannel;
+
+	// Id the handler knows this connection by
+	private final int session;
+
+	private ChatReactor reactor;
+
+	private SelectionKey selectionKey;
+
+	private LineFramer lineFramer;
+
+	private OutboundBudget budget;
+
+	private ChatMetrics metrics;
+
+	// Written by the reactor thread only
+	private volatile long bytesIn;
+	private volatile long bytesOut;
+	private volatile long writeCalls;
+
+	// When the queue last went from drained to scheduled for writing
+	private volatile long scheduledNanos;
+
+	// Last read from and write to the socket. Reactor thread only
+	private long lastReadNanos = System.nanoTime();
+	private long lastWriteNanos = lastReadNanos;
+
+	// Login deadline, idle check and heartbeat on the reactor's timing wheel. Reactor thread only
+	Timeout loginTimer;
+	Timeout idleTimer;
+	Timeout heartbeatTimer;
+
+	// Set while the rate limits hold back this connection's input and OP_READ is off.
+	// Reactor thread only
+	private boolean readPaused;
+	Timeout resumeTimer;
+
+	// Bytes queued and not written yet, including the unwritten part of buffers being written.
+	// CLOSED once the channel is closed, nothing is counted after that
+	private AtomicLong queuedBytes = new AtomicLong();
+
+	// Set while this connection is over its budget. Cleared once its queue drains
+	private volatile boolean throttled;
+
+	// Room messages dropped for this connection since it connected
+	private AtomicLong droppedMessages = new AtomicLong();
+
+	// Set by the DISCONNECT policy. The reactor closes the channel once the notice is written
+	private volatile boolean closeRequested;
+
+	// Set once the channel is closed. Buffers queued after that are released right away
+	private volatile boolean closed;
+
+	// Lock free for producers. Many producer threads, the reactor is the only consumer.
+	// Its monitor is only used to keep DROP_OLDEST and the reactor from racing
+	private Queue<Queued> outbound = new ConcurrentLinkedQueue<Queued>();
+
+	// Set while the reactor has been asked for OP_WRITE and has not drained the queue yet.
+	// Makes sure a burst of sends flags the channel only once
+	private AtomicBoolean writeScheduled = new AtomicBoolean();
+
+	// Buffers taken off the queue and not completely written, and the leases they
+	// are released to once written. Reactor thread only
+	private ByteBuffer[] writing = new ByteBuffer[MAX_GATHER];
+	private PooledBuffer[] writingLeases = new PooledBuffer[MAX_GATHER];
+	private int writingCount;
+
+	// Traced messages among the buffers being written, and what their views had left
+	// before the last write. Reactor thread only
+	private int tracedCount;
+	private int[] tracedRemaining = new int[MAX_GATHER];
+
+	public ChatConnection(SocketChannel socketChannel, int session, ChatReactor reactor,
+			int maxLineLength, OutboundBudget budget, ChatMetrics metrics) {
+		this.socketChannel = socketChannel;
+		this.session = session;
+		this.reactor = reactor;
+		this.lineFramer = new LineFramer(maxLineLength);
+		this.budget = budget;
+		this.metrics = metrics;
+	}
+
+	// data is released once written or dropped
+	public void send(PooledBuffer data, boolean roomMessage) {
+		if (closeRequested) {
+			data.release();
+			return;
+		}
+		int size = data.remaining();
+		if (budget.isOverBudget(queuedBytes.get(), size)) {
+			throttled = true;
+			switch (budget.getPolicy()) {
+			case DROP_OLDEST:
+				dropOldestRoomMessages(size);
+				if (roomMessage && budget.isOverBudget(queuedBytes.get(), size)) {
+					drop(data);
+					return;
+				}
+				break;
+			case DROP_NEW:
+				if (roomMessage) {
+					drop(data);
+					return;
+				}
+				break;
+			case DISCONNECT:
+				data.release();
+				disconnectWithNotice();
+				return;
+			}
+		}
+		enqueue(data, roomMessage);
+	}
+
+	private void enqueue(PooledBuffer data, boolean roomMessage) {
+		if (!reserve(data.remaining())) {
+			data.release();
+			return;
+		}
+		outbound.add(new Queued(data, roomMessage));
+		if (closed) {
+			releaseQueued();
+			return;
+		}
+		if (writeScheduled.compareAndSet(false, true)) {
+			scheduledNanos = System.nanoTime();
+			reactor.scheduleWrite(this);
+		}
+	}
+
+	private void drop(PooledBuffer data) {
+		droppedMessages.incrementAndGet();
+		budget.recordDrop(data.remaining());
+		data.release();
+	}
+
+	// Only runs for throttled connections. Holds the queue's monitor so the reactor can not
+	// take a buffer off the queue while it is being removed here
+	private void dropOldestRoomMessages(int needed) {
+		synchronized (outbound) {
+			Iterator<Queued> iterator = outbound.iterator();
+			while (iterator.hasNext() && budget.isOverBudget(queuedBytes.get(), needed)) {
+				Queued queued = iterator.next();
+				if (queued.roomMessage) {
+					iterator.remove();
+					release(queued.buffer.remaining());
+					drop(queued.buffer);
+				}
+			}
+		}
+	}
+
+	// Writes the notice after whatever is queued, the reactor closes the channel after it
+	void closeWithNotice(String notice) {
+		if (closeRequested) {
+			return;
+		}
+		closeRequested = true;
+		enqueue(PooledBuffer.wrap(ByteBuffer.wrap(notice.getBytes())), false);
+	}
+
+	private void disconnectWithNotice() {
+		closeRequested = true;
+		budget.recordDisconnect();
+		releaseQueued();
+		enqueue(PooledBuffer.wrap(ByteBuffer.wrap(DISCONNECT_NOTICE.getBytes())), false);
+	}
+
+	// Counts size as queued. False once the channel is closed
+	private boolean reserve(int size) {
+		while (true) {
+			long queued = queuedBytes.get();
+			if (queued == CLOSED) {
+				return false;
+			}
+			if (queuedBytes.compareAndSet(queued, queued + size)) {
+				budget.reserve(queued, size);
+				return true;
+			}
+		}
+	}
+
+	// Nothing to give back once the channel is closed, clear() gave back everything counted
+	private void release(long size) {
+		while (true) {
+			long queued = queuedBytes.get();
+			if (queued == CLOSED) {
+				return;
+			}
+			if (queuedBytes.compareAndSet(queued, queued - size)) {
+				budget.release(queued, size);
+				return;
+			}
+		}
+	}
+
+	// Writes as much as the socket takes. Returns true once nothing is left queued
+	boolean flush() throws IOException {
+		while (true) {
+			synchronized (outbound) {
+				while (writingCount < writing.length) {
+					Queued queued = outbound.poll();
+					if (queued == null) {
+						break;
+					}
+					PooledBuffer buffer = queued.buffer;
+					if (buffer.getTraceId() != 0) {
+						tracedCount++;
+					}
+					writingLeases[writingCount] = buffer;
+					writing[writingCount++] = buffer.view();
+				}
+			}
+			if (writingCount == 0) {
+				return true;
+			}
+
+			for (int i = 0; tracedCount > 0 && i < writingCount; i++) {
+				tracedRemaining[i] = writing[i].remaining();
+			}
+			long written = socketChannel.write(writing, 0, writingCount);
+			if (tracedCount > 0) {
+				traceWritten();
+			}
+			lastWriteNanos = System.nanoTime();
+			writeCalls++;
+			release(written);
+			bytesOut += written;
+			metrics.recordBytesOut(written);
+
+			int done = 0;
+			while (done < writingCount && !writing[done].hasRemaining()) {
+				if (writingLeases[done].getTraceId() != 0) {
+					tracedCount--;
+				}
+				writingLeases[done].release();
+				done++;
+			}
+			System.arraycopy(writing, done, writing, 0, writingCount - done);
+			System.arraycopy(writingLeases, done, writingLeases, 0, writingCount - done);
+			for (int i = writingCount - done; i < writingCount; i++) {
+				writing[i] = null;
+				writingLeases[i] = null;
+			}
+			writingCount -= done;
+			metrics.recordWrite(done);
+			if (writingCount > 0) {
+				// Socket send buffer is full
+				return false;
+			}
+		}
+	}
+
+	private void traceWritten() {
+		for (int i = 0; i < writingCount; i++) {
+			if (writingLeases[i].getTraceId() != 0) {
+				MessageTrace.written(writingLeases[i], session, tracedRemaining[i],
+						writing[i].remaining());
+			}
+		}
+	}
+
+	// Called by the reactor after the queue was drained. Returns true if data
+	// arrived in the meantime and the channel still needs OP_WRITE
+	boolean writeCompleted() {
+		metrics.recordOutboundWait(System.nanoTime() - scheduledNanos);
+		throttled = false;
+		writeScheduled.set(false);
+		if (!outbound.isEmpty() && writeScheduled.compareAndSet(false, true)) {
+			scheduledNanos = System.nanoTime();
+			return true;
+		}
+		return false;
+	}
+
+	// When the queue last went from drained to scheduled for writing
+	long getScheduledNanos() {
+		return scheduledNanos;
+	}
+
+	boolean isWriteScheduled() {
+		return writeScheduled.get();
+	}
+
+	// Drops everything still queued once the channel is closed
+	void clear() {
+		closeRequested = true;
+		closed = true;
+		releaseQueued();
+		for (int i = 0; i < writingCount; i++) {
+			writingLeases[i].release();
+		}
+		writingCount = 0;
+		tracedCount = 0;
+		writing = new ByteBuffer[MAX_GATHER];
+		writingLeases = new PooledBuffer[MAX_GATHER];
+		long left = queuedBytes.getAndSet(CLOSED);
+		if (left != CLOSED) {
+			budget.release(left, left);
+		}
+	}
+
+	private void releaseQueued() {
+		synchronized (outbound) {
+			Queued queued;
+			while ((queued = outbound.poll()) != null) {
+				release(queued.buffer.remaining());
+				queued.buffer.release();
+			}
+		}
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	boolean isCloseRequested() {
+		return closeRequested;
+	}
+
+	void recordBytesIn(int bytes) {
+		lastReadNanos = System.nanoTime();
+		bytesIn += bytes;
+		metrics.recordBytesIn(bytes);
+	}
+
+	long getLastReadNanos() {
+		return lastReadNanos;
+	}
+
+	// Last time anything went over the socket in either direction
+	long getLastActivityNanos() {
+		return Math.max(lastReadNanos, lastWriteNanos);
+	}
+
+	boolean isReadPaused() {
+		return readPaused;
+	}
+
+	void setReadPaused(boolean readPaused) {
+		this.readPaused = readPaused;
+	}
+
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+	public long getWriteCalls() {
+		return writeCalls;
+	}
+
+	public String getRemoteAddress() {
+		try {
+			return String.valueOf(socketChannel.getRemoteAddress());
+		} catch (IOException e) {
+			return "closed";
+		}
+	}
+
+	public boolean isThrottled() {
+		return throttled;
+	}
+
+	public long getQueuedBytes() {
+		return Math.max(0, queuedBytes.get());
+	}
+
+	public long getDroppedMessages() {
+		return droppedMessages.get();
+	}
+
+	public SocketChannel getSocketChannel() {
+		return socketChannel;
+	}
+
+	public int getSession() {
+		return session;
+	}
+
+	public ChatReactor getReactor() {
+		return reactor;
+	}
+
+	public SelectionKey getSelectionKey() {
+		return selectionKey;
+	}
+
+	void setSelectionKey(SelectionKey selectionKey) {
+		this.selectionKey = selectionKey;
+	}
+
+	public LineFramer getLineFramer() {
+		return lineFramer;
+	}
+}
@@ -0,0 +1,508 @@
+package main.java;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import main.java.helpers.ChatOptions;
+import main.java.helpers.PooledBuffer;
+import main.java.helpers.SessionTable;
+
+/*
+ * Second listener for bots and gateways. Speaks length prefixed binary frames
+ * instead of the telnet dialogue and shares the rooms of the ChatHandler with
+ * the telnet listener. One TCP connection carries many logical sessions, every
+ * frame names the session it belongs to by a number the client picks. Rooms
+ * and users are addressed by id: rooms by their index in the ROOMS reply,
+ * users by the id the LOGIN reply and the MEMBERS reply carry.
+ *
+ * Links are plain blocking sockets with a reader and a writer thread each,
+ * like the links of ChatCluster. Enabled with -Dchat.gateway.port.
+ *
+ * Frame: 4 byte length of the rest, 1 byte opcode, 4 byte session number,
+ * payload. Strings are UTF-8 and take the rest of the frame unless a 2 byte
+ * length comes first. Strings sent by a client must not contain CR or LF.
+ *
+ * Client to server:
+ *  LOGIN name            opens the session, answered with LOGIN user id or ERROR
+ *  JOIN room id          not while in a room, answered with JOIN room id, recent
+ *                        messages of the room as text
+ *  CREATE name           not while in a room, answered with CREATE room id
+ *  SAY text              chat message to the session's room
+ *  MESSAGE user id, text private message to a member of the room
+ *  MEMBERS               answered with MEMBERS count, (user id, 2 byte length name)*
+ *  ROOMS                 answered with ROOMS count, (room id, members, 2 byte length name)*
+ *                        MEMBERS and ROOMS are rate limited like /members and /rooms
+ *  LEAVE
+ *  CLOSE                 closes the session
+ * Server to client:
+ *  CHAT user id, text    chat message of a user of this server to the session's room
+ *  TEXT text             anything else the handler sends the session, eg. joins,
+ *                        private messages and chat relayed from other nodes
+ *  ERROR text            a request that could not be handled
+ */
+public class ChatGateway implements ChatTransport {
+    private final static Logger LOGGER = Logger.getLogger(ChatGateway.class.getName());
+
+    private static final byte LOGIN = 1;
+    private static final byte JOIN = 2;
+    private static final byte CREATE = 3;
+    private static final byte SAY = 4;
+    private static final byte MESSAGE = 5;
+    private static final byte MEMBERS = 6;
+    private static final byte ROOMS = 7;
+    private static final byte LEAVE = 8;
+    private static final byte CLOSE = 9;
+    private static final byte TEXT = 32;
+    private static final byte ERROR = 33;
+    private static final byte CHAT = 34;
+
+    private static final String LINE_BREAK_ERROR = "Text can not contain line breaks";
+
+    // Largest frame accepted from a client. Longer frames reset the link
+    private static final int MAX_FRAME = Integer.getInteger("chat.maxLineLength", 4096) + 64;
+
+    // Frames queued for one link before it is considered too slow and reset
+    private static final int QUEUE_LIMIT = Integer.getInteger("chat.gateway.queueLimit", 100000);
+
+    private final ChatHandler handler;
+    private final ServerSocket serverSocket;
+
+    // Session number and link of every open gateway session by handler session id
+    private final SessionTable<GatewaySession> sessions = new SessionTable<GatewaySession>();
+
+    // Payload of the ROOMS reply and the room list version it was encoded at
+    private byte[] roomsPayload;
+    private long roomsVersion;
+
+    public ChatGateway(int port, ChatHandler handler) throws IOException {
+	this.handler = handler;
+	this.serverSocket = new ServerSocket(port);
+    }
+
+    // Set up from -Dchat.gateway.port or null when there is no gateway listener
+    static ChatGateway fromProperties(ChatHandler handler) throws IOException {
+	Integer port = Integer.getInteger("chat.gateway.port");
+	if (port == null) {
+	    return null;
+	}
+	ChatGateway gateway = new ChatGateway(port, handler);
+	gateway.start();
+	return gateway;
+    }
+
+    public void start() {
+	daemon(this::acceptLoop, "chat-gateway-accept");
+	LOGGER.info("Gateway listening on " + serverSocket.getLocalPort());
+    }
+
+    public void send(int session, byte[] data) {
+	GatewaySession gatewaySession = sessions.get(session);
+	if (gatewaySession != null) {
+	    gatewaySession.link.send(frame(TEXT, gatewaySession.number, data));
+	}
+    }
+
+    public void send(int session, ByteBuffer data) {
+	send(session, data, false);
+    }
+
+    public void send(int session, ByteBuffer data, boolean roomMessage) {
+	send(session, PooledBuffer.wrap(data), roomMessage);
+    }
+
+    // Copied straight into the frame, the buffer is released right away. A chat message
+    // goes out as CHAT, without the sender's name and the line break
+    public void send(int session, PooledBuffer data, boolean roomMessage) {
+	GatewaySession gatewaySession = sessions.get(session);
+	if (gatewaySession != null) {
+	    ByteBuffer view = data.view();
+	    byte[] frame;
+	    if (data.getSender() < 0) {
+		frame = header(TEXT, gatewaySession.number, view.remaining());
+	    } else {
+		view.position(view.position() + data.getTextOffset());
+		view.limit(view.limit() - 1);
+		frame = header(CHAT, gatewaySession.number, 4 + view.remaining());
+		ByteBuffer.wrap(frame, frame.length - 4 - view.remaining(), 4)
+			.putInt(data.getSender());
+	    }
+	    view.get(frame, frame.length - view.remaining(), view.remaining());
+	    gatewaySession.link.send(frame);
+	}
+	data.release();
+    }
+
+    // Only the session is closed, the link stays open for its other sessions. Its number
+    // is freed by the link's reader, which owns the link's session map
+    public void close(int session, String notice) {
+	GatewaySession gatewaySession = sessions.get(session);
+	if (gatewaySession != null) {
+	    gatewaySession.link.send(frame(TEXT, gatewaySession.number,
+		    notice.getBytes(StandardCharsets.UTF_8)));
+	    gatewaySession.link.closed.add(gatewaySession);
+	    closeSession(gatewaySession);
+	}
+    }
+
+    // A link carries many sessions, holding back its input for one of them would hold
+    // back all of them. The refused line has been dropped and the client told already
+    public void pauseReading(int session, long nanos) {
+    }
+
+    private void acceptLoop() {
+	while (true) {
+	    try {
+		new GatewayLink(serverSocket.accept()).start();
+	    } catch (IOException e) {
+		LOGGER.info("Exception occured while accepting gateway client" + e.getMessage());
+	    }
+	}
+    }
+
+    // Only called from the link's reader thread
+    private void receive(GatewayLink link, byte opcode, int number, ByteBuffer payload) {
+	link.removeClosed();
+	if (opcode == LOGIN) {
+	    if (link.sessions.containsKey(number)) {
+		link.send(frame(ERROR, number, "Already logged in"));
+		return;
+	    }
+	    String userName = string(payload);
+	    if (hasLineBreak(userName)) {
+		link.send(frame(ERROR, number, LINE_BREAK_ERROR));
+		return;
+	    }
+	    int session = handler.newSession();
+	    GatewaySession gatewaySession = new GatewaySession(link, number, session);
+	    sessions.set(session, gatewaySession);
+	    if (!handler.openSession(this, session, userName)) {
+		sessions.remove(session);
+		link.send(frame(ERROR, number, "Name taken"));
+		return;
+	    }
+	    link.sessions.put(number, gatewaySession);
+	    link.send(frame(LOGIN, number, ByteBuffer.allocate(4).putInt(session).array()));
+	    return;
+	}
+
+	GatewaySession gatewaySession = link.sessions.get(number);
+	if (gatewaySession == null) {
+	    link.send(frame(ERROR, number, "Not logged in"));
+	    return;
+	}
+	int session = gatewaySession.session;
+	// A telnet user can not send these in a room either, the line would be taken for chat
+	if ((opcode == JOIN || opcode == CREATE) && handler.isInRoom(session)) {
+	    link.send(frame(ERROR, number, "Leave the room first"));
+	    return;
+	}
+	switch (opcode) {
+	case JOIN:
+	    int roomId = payload.remaining() < 4 ? -1 : payload.getInt();
+	    String roomName = handler.roomNameOf(roomId);
+	    if (roomName == null) {
+		link.send(frame(ERROR, number, "No such room"));
+		return;
+	    }
+	    if (limited(link, number, session, ChatOptions.JOIN)) {
+		return;
+	    }
+	    if (!handler.joinRoom(session, roomName, recent -> link.send(frame(JOIN, number,
+		    ByteBuffer.allocate(4 + recent.length).putInt(roomId).put(recent).array())))) {
+		link.send(frame(ERROR, number, "No such room"));
+	    }
+	    break;
+	case CREATE:
+	    String newRoomName = string(payload).trim();
+	    if (hasLineBreak(newRoomName)) {
+		link.send(frame(ERROR, number, LINE_BREAK_ERROR));
+		return;
+	    }
+	    if (newRoomName.isEmpty()) {
+		link.send(frame(ERROR, number, "Room name can not be empty"));
+		return;
+	    }
+	    if (limited(link, number, session, ChatOptions.CREATE)) {
+		return;
+	    }
+	    handler.createRoom(session, newRoomName, createdId -> link.send(createdId < 0
+		    ? frame(ERROR, number, "Room exists")
+		    : frame(CREATE, number, ByteBuffer.allocate(4).putInt(createdId).array())));
+	    break;
+	case SAY:
+	    String text = string(payload);
+	    // The handler would take it for a command
+	    if (text.startsWith("/")) {
+		link.send(frame(ERROR, number, "Text can not start with /"));
+		return;
+	    }
+	    if (hasLineBreak(text)) {
+		link.send(frame(ERROR, number, LINE_BREAK_ERROR));
+		return;
+	    }
+	    line(session, text);
+	    break;
+	case MESSAGE:
+	    String toUserName = payload.remaining() < 4 ? null
+		    : handler.userNameOf(payload.getInt());
+	    if (toUserName == null) {
+		link.send(frame(ERROR, number, "No such user"));
+		return;
+	    }
+	    String message = string(payload);
+	    if (hasLineBreak(message)) {
+		link.send(frame(ERROR, number, LINE_BREAK_ERROR));
+		return;
+	    }
+	    command(session, ChatOptions.MESSAGE, " " + toUserName + " " + message);
+	    break;
+	case MEMBERS:
+	    if (limited(link, number, session, ChatOptions.MEMBERS)) {
+		return;
+	    }
+	    if (!handler.listMembers(session, entries -> link.send(frame(MEMBERS, number,
+		    entries)))) {
+		link.send(frame(ERROR, number, "Not in a room"));
+	    }
+	    break;
+	case ROOMS:
+	    if (limited(link, number, session, ChatOptions.ROOMS)) {
+		return;
+	    }
+	    link.send(frame(ROOMS, number, rooms()));
+	    break;
+	case LEAVE:
+	    command(session, ChatOptions.LEAVE, "");
+	    break;
+	case CLOSE:
+	    link.sessions.remove(number);
+	    closeSession(gatewaySession);
+	    break;
+	default:
+	    link.send(frame(ERROR, number, "Unknown opcode " + opcode));
+	}
+    }
+
+    private void command(int session, ChatOptions option, String argument) {
+	line(session, option.getOptionCommand() + argument);
+    }
+
+    // Handed to the handler like a line read from a telnet client
+    private void line(int session, String line) {
+	byte[] data = line.getBytes(StandardCharsets.UTF_8);
+	handler.processData(this, session, data, data.length);
+    }
+
+    // Once per session, the server and the link's reader may both close it
+    private void closeSession(GatewaySession gatewaySession) {
+	if (gatewaySession.closed.compareAndSet(false, true)) {
+	    sessions.remove(gatewaySession.session);
+	    handler.connectionClosed(this, gatewaySession.session);
+	}
+    }
+
+    // Refuses the command when the session is over its rate limit for it, like the same
+    // command typed by a telnet client
+    private boolean limited(GatewayLink link, int number, int session, ChatOptions option) {
+	long waitNanos = handler.acquireCommand(session, option);
+	if (waitNanos == 0) {
+	    return false;
+	}
+	link.send(frame(ERROR, number, option.getOptionCommand().trim()
+		+ " is limited, try again in " + (TimeUnit.NANOSECONDS.toSeconds(waitNanos) + 1)
+		+ "s"));
+	return true;
+    }
+
+    // Encoded once and kept until a room is added or a member count changes
+    private synchronized byte[] rooms() {
+	long version = handler.getRoomListVersion();
+	if (roomsPayload != null && version == roomsVersion) {
+	    return roomsPayload;
+	}
+	List<String> rooms = handler.getRoomsById();
+	byte[][] encoded = new byte[rooms.size()][];
+	int size = 4;
+	for (int i = 0; i < encoded.length; i++) {
+	    encoded[i] = rooms.get(i).getBytes(StandardCharsets.UTF_8);
+	    size += 4 + 4 + 2 + encoded[i].length;
+	}
+	ByteBuffer payload = ByteBuffer.allocate(size).putInt(encoded.length);
+	for (int i = 0; i < encoded.length; i++) {
+	    payload.putInt(i).putInt(handler.memberCount(rooms.get(i)))
+		    .putShort((short) encoded[i].length).put(encoded[i]);
+	}
+	roomsPayload = payload.array();
+	roomsVersion = version;
+	return roomsPayload;
+    }
+
+    // A frame with room for payloadLength bytes after the header
+    private static byte[] header(byte opcode, int number, int payloadLength) {
+	byte[] frame = new byte[4 + 1 + 4 + payloadLength];
+	ByteBuffer.wrap(frame).putInt(frame.length - 4).put(opcode).putInt(number);
+	return frame;
+    }
+
+    private static byte[] frame(byte opcode, int number, byte[] payload) {
+	byte[] frame = header(opcode, number, payload.length);
+	System.arraycopy(payload, 0, frame, frame.length - payload.length, payload.length);
+	return frame;
+    }
+
+    private static byte[] frame(byte opcode, int number, String text) {
+	return frame(opcode, number, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(ByteBuffer payload) {
+	return new String(payload.array(), payload.position(), payload.remaining(),
+		StandardCharsets.UTF_8);
+    }
+
+    // Strings are handed on as telnet lines. A line break would end the line early and the
+    // rest would pass for a line of its own, eg. chat faked in another user's name
+    private static boolean hasLineBreak(String text) {
+	return text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0;
+    }
+
+    private static void daemon(Runnable task, String name) {
+	Thread thread = new Thread(task, name);
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    private static class GatewaySession {
+	final GatewayLink link;
+	final int number;
+	final int session;
+	final AtomicBoolean closed = new AtomicBoolean();
+
+	GatewaySession(GatewayLink link, int number, int session) {
+	    this.link = link;
+	    this.number = number;
+	    this.session = session;
+	}
+    }
+
+    // Connection of one client. Frames for all its sessions are written by its own thread
+    private class GatewayLink {
+	private final Socket socket;
+	private final BlockingQueue<byte[]> outbound = new LinkedBlockingQueue<byte[]>(QUEUE_LIMIT);
+
+	// Open sessions by session number. Reader thread only
+	private final Map<Integer, GatewaySession> sessions = new HashMap<Integer, GatewaySession>();
+
+	// Sessions the server closed, their numbers are taken out of the map by the reader
+	private final Queue<GatewaySession> closed = new ConcurrentLinkedQueue<GatewaySession>();
+
+	private volatile boolean shutDown;
+
+	GatewayLink(Socket socket) {
+	    this.socket = socket;
+	}
+
+	void start() throws IOException {
+	    socket.setTcpNoDelay(true);
+	    daemon(this::readLoop, "chat-gateway-reader");
+	    daemon(this::writeLoop, "chat-gateway-writer");
+	}
+
+	// A client that can not keep up is reset, like a cluster peer
+	void send(byte[] frame) {
+	    if (shutDown) {
+		return;
+	    }
+	    if (!outbound.offer(frame)) {
+		LOGGER.warning("Gateway client " + socket.getRemoteSocketAddress()
+			+ " is too slow, resetting it");
+		close();
+	    }
+	}
+
+	private void readLoop() {
+	    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+		    socket.getInputStream()))) {
+		while (true) {
+		    int length = in.readInt();
+		    if (length < 5 || length > MAX_FRAME) {
+			throw new IOException("Gateway frame of " + length + " bytes");
+		    }
+		    byte opcode = in.readByte();
+		    int number = in.readInt();
+		    byte[] payload = new byte[length - 5];
+		    in.readFully(payload);
+		    receive(this, opcode, number, ByteBuffer.wrap(payload));
+		}
+	    } catch (IOException e) {
+		// Client went away
+	    } catch (RuntimeException e) {
+		LOGGER.warning("Gateway client " + socket.getRemoteSocketAddress() + " failed: " + e);
+	    } finally {
+		close();
+		// Every session of the link is closed by the reader, which owns the session map
+		for (GatewaySession gatewaySession : sessions.values()) {
+		    closeSession(gatewaySession);
+		}
+		sessions.clear();
+	    }
+	}
+
+	// Frees the numbers of the sessions the server closed. Reader thread only
+	void removeClosed() {
+	    GatewaySession gatewaySession;
+	    while ((gatewaySession = closed.poll()) != null) {
+		sessions.remove(gatewaySession.number, gatewaySession);
+	    }
+	}
+
+	// Writes everything queued with one flush
+	private void writeLoop() {
+	    List<byte[]> batch = new ArrayList<byte[]>();
+	    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+		    socket.getOutputStream(), 65536))) {
+		while (!shutDown) {
+		    batch.add(outbound.take());
+		    outbound.drainTo(batch);
+		    for (byte[] frame : batch) {
+			out.write(frame);
+		    }
+		    out.flush();
+		    batch.clear();
+		}
+	    } catch (IOException | InterruptedException e) {
+		// Closed by the reader
+	    }
+	    close();
+	}
+
+	void close() {
+	    shutDown = true;
+	    try {
+		socket.close();
+	    } catch (IOException e) {
+		LOGGER.info("Exception occured while closing gateway client" + e.getMessage());
+	    }
+	    // Wakes up the writer if it is waiting for data
+	    outbound.clear();
+	    outbound.offer(new byte[0]);
+	}
+    }
+}
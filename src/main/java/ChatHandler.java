@@ -1,185 +1,975 @@
 package main.java;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.util.LinkedList;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.logging.Logger;
 
+import main.java.helpers.BufferPool;
 import main.java.helpers.ChatEvent;
+import main.java.helpers.ChatMetrics;
 import main.java.helpers.ChatOptions;
+import main.java.helpers.CommandDecoder;
+import main.java.helpers.CommandDecoder.Command;
+import main.java.helpers.HistoryLog;
+import main.java.helpers.MailboxStore;
+import main.java.helpers.MemberList;
+import main.java.helpers.MessageTrace;
+import main.java.helpers.MessageTrace.DispatchEvent;
+import main.java.helpers.MessageTrace.ParseEvent;
+import main.java.helpers.PooledBuffer;
+import main.java.helpers.RateLimiter;
+import main.java.helpers.RoomListCache;
+import main.java.helpers.RoomHistory;
+import main.java.helpers.RoomIndex;
+import main.java.helpers.RoomMembers;
+import main.java.helpers.SerialExecutor;
+import main.java.helpers.SessionTable;
+import main.java.helpers.StateStore;
 import main.java.helpers.User;
 import main.java.helpers.UserStatus;
 
-public class ChatHandler implements Runnable {
+public class ChatHandler {
+    private final static Logger LOGGER = Logger.getLogger(ChatHandler.class.getName());
 
     private static final String ASTERISK_SEPERATORS = "************";
 
     private static final String NEW_LINE = "\n";
 
-    // Contains all events created that are to be handled by the chatserver
-    private List<ChatEvent> queue = new LinkedList<ChatEvent>();
+    // Messages kept in memory per room, and how many of them are replayed on /join
+    private static final int HISTORY_SIZE = Math.max(1, Integer.getInteger("chat.history.size", 100));
+    private static final int HISTORY_REPLAY = Integer.getInteger("chat.history.replay", 10);
 
-    // Contains a mappping between the channel the user is connected to and the
-    // user and vice versa
-    // This should ideally be a bidrectional map which is available in the
-    // google commons library.
-    private Map<SocketChannel, User> socketUserMap = new ConcurrentHashMap<SocketChannel, User>();
-    private Map<String, SocketChannel> userSocketMap = new ConcurrentHashMap<String, SocketChannel>();
+    // Rooms per page of "/rooms <page>"
+    private static final int ROOMS_PAGE_SIZE = Integer.getInteger("chat.rooms.pageSize", 50);
+
+    private static final byte[] MEMBERS_HEADER = ("Members:" + NEW_LINE).getBytes();
+
+    // Messages shown by /history without a count
+    private static final int HISTORY_DEFAULT = 20;
+
+    // Everything written to disk goes below this directory
+    private static final File DATA_DIRECTORY = new File(System.getProperty("chat.dataDir",
+	    "chat-data"));
+
+    // Room history is logged below the data directory unless chat.history.persist is false
+    private static final File HISTORY_DIRECTORY = new File(DATA_DIRECTORY, "history");
+    private static final boolean HISTORY_PERSIST = !"false".equals(System
+	    .getProperty("chat.history.persist"));
+    private static final int HISTORY_SEGMENT_SIZE = 1024 * 1024;
+    private static final int HISTORY_SEGMENTS = 8;
+
+    // Rooms are looked at this often, those without a message since the last time give
+    // back their mapped history segment. A process may only hold vm.max_map_count mappings.
+    // Search indexes not used since the last time are written out and unloaded
+    private static final long IDLE_SWEEP_MILLIS = Long.getLong("chat.idleSweepMillis", 60000);
+
+    // Private messages to users that are away are kept below the data directory unless
+    // chat.mailbox.persist is false. At most chat.mailbox.limit messages per user
+    private static final File MAILBOX_DIRECTORY = new File(DATA_DIRECTORY, "mailboxes");
+    private static final boolean MAILBOX_PERSIST = !"false".equals(System
+	    .getProperty("chat.mailbox.persist"));
+    private static final int MAILBOX_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final int MAILBOX_LIMIT = Integer.getInteger("chat.mailbox.limit", 100);
+    private static final byte[] MAILBOX_HEADER = ("Messages while you were away:" + NEW_LINE)
+	    .getBytes();
+
+    // Room messages are indexed for /search below the data directory unless
+    // chat.search.persist is false, then only the newest messages are searched. At least
+    // chat.search.limit messages are kept per room
+    private static final File SEARCH_DIRECTORY = new File(DATA_DIRECTORY, "search");
+    private static final boolean SEARCH_PERSIST = !"false".equals(System
+	    .getProperty("chat.search.persist"));
+    private static final int SEARCH_SEGMENT_MESSAGES = Integer.getInteger(
+	    "chat.search.segmentMessages", 4096);
+    private static final int SEARCH_LIMIT = Integer.getInteger("chat.search.limit", 1000000);
+    private static final int SEARCH_RESULTS = Integer.getInteger("chat.search.results", 20);
+    // Index and search tasks queued at most over all rooms. Beyond that messages are left
+    // out of the index and searches refused until the backlog is worked off
+    private static final int SEARCH_BACKLOG = Integer.getInteger("chat.search.backlog", 100000);
+
+    // Rooms and registered users survive restarts unless chat.state.persist is false
+    private static final boolean STATE_PERSIST = !"false".equals(System
+	    .getProperty("chat.state.persist"));
+    private static final int STATE_SNAPSHOT_EVERY = Integer.getInteger(
+	    "chat.state.snapshotEvery", 10000);
+
+    // Comma separated user names allowed to use /stats. Nobody when not set, the report
+    // shows the addresses of other users' connections
+    private static final Set<String> ADMINS = new HashSet<String>();
+    static {
+	for (String admin : System.getProperty("chat.admins", "").split(",")) {
+	    if (!admin.trim().isEmpty()) {
+		ADMINS.add(admin.trim().toLowerCase());
+	    }
+	}
+    }
+
+    // Decoded command of the line being processed. One per reactor thread
+    private ThreadLocal<Command> commands = ThreadLocal.withInitial(Command::new);
+
+    // Runs the room mailboxes. Bounded, defaults to one thread per core
+    private ExecutorService dispatchPool = Executors.newFixedThreadPool(Integer.getInteger(
+	    "chat.dispatchThreads", Runtime.getRuntime().availableProcessors()));
+
+    // One serial mailbox per room. Every change to a room's member set and every
+    // message sent to the room runs in its mailbox, so a room is handled in order
+    // while different rooms are handled in parallel
+    private Map<String, SerialExecutor> roomMailboxes = new ConcurrentHashMap<String, SerialExecutor>();
+
+    // Every open session by id, and the logged in users by name. Sessions are addressed
+    // by id everywhere else, the name is only looked up for logins and private messages.
+    // Ids are handed out here for all listeners, so they never clash
+    private SessionTable<User> sessions = new SessionTable<User>();
+    private Map<String, User> userNameMap = new ConcurrentHashMap<String, User>();
 
     // Contains the mapping between chatRoomNames to members in it
-    private Map<String, SortedSet<User>> chatRoomsMap = new ConcurrentHashMap<String, SortedSet<User>>();
+    private Map<String, RoomMembers> chatRoomsMap = new ConcurrentHashMap<String, RoomMembers>();
+
+    // Room names by the id ChatGateway clients address them with, in the order the rooms
+    // appeared. Guarded by itself
+    private List<String> roomsById = new ArrayList<String>();
 
-    public void processData(ChatServer server, SocketChannel socket, byte[] data, int count) {
-	// Handle new users
-	if (!socketUserMap.containsKey(socket)) {
-	    handleNewUser(server, socket);
+    // Pre-encoded /rooms responses, patched when rooms are created or member counts change
+    private RoomListCache roomList = new RoomListCache(ROOMS_PAGE_SIZE, this::memberCount);
+
+    // Pre-encoded member list of every room. Only used from the room's mailbox
+    private Map<String, MemberList> memberLists = new ConcurrentHashMap<String, MemberList>();
+
+    // Recent messages of every room. Loaded on first use, only used from the room's mailbox
+    private Map<String, RoomHistory> roomHistories = new ConcurrentHashMap<String, RoomHistory>();
+
+    // Sweeps the idle rooms, see IDLE_SWEEP_MILLIS
+    private ScheduledExecutorService idleSweep = Executors.newSingleThreadScheduledExecutor(
+	    task -> {
+		Thread thread = new Thread(task, "chat-idle-sweep");
+		thread.setDaemon(true);
+		return thread;
+	    });
+
+    // Indexes room messages and answers /search. Own threads, a heavy search or a segment
+    // merge never holds up a room mailbox
+    private ExecutorService searchPool = Executors.newFixedThreadPool(Integer.getInteger(
+	    "chat.search.threads", 2), task -> {
+		Thread thread = new Thread(task, "chat-search");
+		thread.setDaemon(true);
+		return thread;
+	    });
+
+    // One serial search mailbox per room on the search pool, so a long merge or search
+    // only holds up its own room
+    private Map<String, SerialExecutor> searchMailboxes = new ConcurrentHashMap<String, SerialExecutor>();
+
+    // Index and search tasks queued in the search mailboxes and not finished yet
+    private AtomicInteger searchBacklog = new AtomicInteger();
+
+    // Search index of every room. Loaded on first use and unloaded while idle, only used
+    // from the room's search mailbox
+    private Map<String, RoomIndex> roomIndexes = new ConcurrentHashMap<String, RoomIndex>();
+
+    // Every user name that has ever logged in
+    private Set<String> registeredUsers = ConcurrentHashMap.newKeySet();
+
+    // Null when state is not persisted
+    private StateStore stateStore;
+
+    // Null when mailboxes are not persisted. /message then only reaches the room
+    private MailboxStore mailboxes;
+
+    private ChatMetrics metrics = new ChatMetrics();
+
+    // Limits applied to every line before it is handled
+    private RateLimiter rateLimiter = new RateLimiter();
+
+    // Direct buffers every outbound message is copied into
+    private BufferPool bufferPool = BufferPool.fromProperties();
+
+    // Null unless the server is part of a cluster
+    private ChatCluster cluster;
+
+    public ChatHandler() {
+	metrics.setBufferPool(bufferPool);
+	metrics.registerMBean();
+	idleSweep.scheduleWithFixedDelay(this::sweepIdleRooms, IDLE_SWEEP_MILLIS,
+		IDLE_SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+	if (MAILBOX_PERSIST) {
+	    try {
+		mailboxes = new MailboxStore(MAILBOX_DIRECTORY, MAILBOX_SEGMENT_SIZE, MAILBOX_LIMIT);
+	    } catch (IOException e) {
+		LOGGER.warning("Could not open mailboxes, messages to absent users are refused "
+			+ e.getMessage());
+	    }
+	}
+	if (!STATE_PERSIST) {
 	    return;
 	}
+	try {
+	    stateStore = new StateStore(new File(DATA_DIRECTORY, "state"), STATE_SNAPSHOT_EVERY);
+	} catch (IOException e) {
+	    LOGGER.severe("Could not load chat state, rooms will not be persisted " + e.getMessage());
+	    return;
+	}
+	for (String roomName : stateStore.getRooms()) {
+	    roomMailboxes.put(roomName, new SerialExecutor(dispatchPool));
+	    chatRoomsMap.put(roomName, new RoomMembers());
+	    roomAdded(roomName);
+	}
+	registeredUsers.addAll(stateStore.getUsers());
+	LOGGER.info("Loaded " + chatRoomsMap.size() + " rooms and " + registeredUsers.size()
+		+ " users");
+    }
+
+    // Id for a new session. The listener maps it to its connection and then opens the
+    // session, it passes the id in with the connection's lines
+    public int newSession() {
+	return sessions.allocate();
+    }
+
+    // Called by the server engine for every accepted channel, once data sent to the
+    // session reaches the channel
+    public void openSession(ChatTransport server, int session, SocketChannel socket) {
+	handleNewUser(server, session, socket);
+    }
+
+    // Opens a session that is logged in with the given name right away, for clients that
+    // do not go through the Login? dialogue. When the name is taken the id is released
+    // and false returned
+    public boolean openSession(ChatTransport server, int session, String userName) {
+	User user = new User("", UserStatus.CONNECTED, session, null, server);
+	if (userName.trim().isEmpty() || !login(user, userName.trim())) {
+	    sessions.release(session);
+	    return false;
+	}
+	sessions.set(session, user);
+	deliverMailbox(user);
+	return true;
+    }
+
+    public void processData(ChatTransport server, int session, byte[] data, int count) {
+	processData(server, session, data, 0, count);
+    }
 
-	byte[] dataToBeProcessedInBytes = new byte[count];
-	System.arraycopy(data, 0, dataToBeProcessedInBytes, 0, count);
-	String dataToBeProcessed = new String(dataToBeProcessedInBytes);
+    // Handles one complete line. data is only valid for the duration of the call
+    public void processData(ChatTransport server, int session, byte[] data, int offset,
+	    int count) {
+	User user = sessions.get(session);
+	if (user == null || count == 0) {
+	    return;
+	}
+	long readNanos = System.nanoTime();
+	// 0 for the lines that are not traced
+	long traceId = MessageTrace.sample();
+	ParseEvent parse = MessageTrace.beginParse(traceId);
 
-	// Replacing returns with empty text
-	dataToBeProcessed = dataToBeProcessed.replace(NEW_LINE, "").replace("\r", "");
-	User user = socketUserMap.get(socket);
+	// Matched on the raw bytes. Text is only turned into a String where it is needed
+	Command command = CommandDecoder.decode(data, offset, count, commands.get());
+	ChatOptions option = command.getOption();
 
-	if (dataToBeProcessed.isEmpty()) {
+	// Rate limits are checked before the line causes any work. A flooding client is not
+	// read for a while, a command over its own limit is only refused
+	UserStatus status = user.getUserStatus();
+	long waitNanos = rateLimiter.acquireLine(user, status == UserStatus.IN_ROOM
+		&& option == null ? user.getCurrentRoomName() : null);
+	if (waitNanos > 0) {
+	    refuseLine(server, user, waitNanos);
 	    return;
 	}
+	if (option != null && status != UserStatus.CONNECTED
+		&& (waitNanos = rateLimiter.acquireCommand(user, option)) > 0) {
+	    metrics.recordRateLimited();
+	    String notice = option.getOptionCommand().trim() + " is limited, try again in "
+		    + (TimeUnit.NANOSECONDS.toSeconds(waitNanos) + 1) + "s" + NEW_LINE;
+	    reply(server, user, notice.getBytes());
+	    return;
+	}
+	user.setRateLimited(false);
+	MessageTrace.commitParse(parse, traceId, session, option);
+	byte[] dataToBeProcessedInBytes;
 
 	// taking actions according to current user statuses
 	switch (user.getUserStatus()) {
 	case CONNECTED:
-	    handleConnectedUserButNotLoggedIn(server, socket, dataToBeProcessedInBytes,
-		    dataToBeProcessed, user);
+	    handleConnectedUserButNotLoggedIn(server, new String(data, offset, count), user);
 	    break;
 
 	case LOGGED_IN:
-	    if (dataToBeProcessed.startsWith(ChatOptions.ROOMS.getOptionCommand())) {
-		dataToBeProcessedInBytes = handleRoomsRequest();
-	    } else if (dataToBeProcessed.startsWith(ChatOptions.JOIN.getOptionCommand())) {
-		dataToBeProcessed = dataToBeProcessed.replaceFirst("/join", "").trim();
-		if (dataToBeProcessed.isEmpty()) {
+	    if (option == ChatOptions.ROOMS) {
+		dataToBeProcessedInBytes = handleRoomsRequest(command.getArgument(data));
+	    } else if (option == ChatOptions.JOIN) {
+		if (command.getArgumentLength() == 0) {
 		    return;
 		}
-		dataToBeProcessedInBytes = handleJoinRoomsRequest(server, dataToBeProcessed, user);
-	    } else if (dataToBeProcessed.startsWith(ChatOptions.QUIT.getOptionCommand())) {
-		closeConectionWithClient(socket, user);
+		handleJoinRoomsRequest(server, command.getArgument(data), user);
+		break;
+	    } else if (option == ChatOptions.QUIT) {
+		dispatch(user, null, () -> closeConectionWithClient(server, user));
 		break;
-	    } else if (dataToBeProcessed.startsWith(ChatOptions.HELP.getOptionCommand())) {
+	    } else if (option == ChatOptions.HELP) {
 		dataToBeProcessedInBytes = showHelpOptions();
-	    } else if (dataToBeProcessed.startsWith(ChatOptions.CREATE.getOptionCommand())) {
-		dataToBeProcessedInBytes = createNewRoom(dataToBeProcessed);
+	    } else if (option == ChatOptions.STATS) {
+		dataToBeProcessedInBytes = showStats(user);
+	    } else if (option == ChatOptions.CREATE) {
+		dataToBeProcessedInBytes = createNewRoom(command.getArgument(data));
 	    } else {
 		String errorMessage = "Invalid Option. Use /help to find options" + NEW_LINE;
 		dataToBeProcessedInBytes = errorMessage.getBytes();
 	    }
 
-	    synchronized (queue) {
-		queue.add(new ChatEvent(server, socket, dataToBeProcessedInBytes));
-		queue.notify();
-	    }
+	    reply(server, user, dataToBeProcessedInBytes);
 	    break;
 
 	case IN_ROOM:
-	    SortedSet<User> userSet = chatRoomsMap.get(user.getCurrentRoomName());
-	    if (dataToBeProcessed.startsWith(ChatOptions.LEAVE.getOptionCommand())) {
-		removeUserFromRoomAndNotifyOthers(server, user, userSet);
+	    String roomName = user.getCurrentRoomName();
+	    RoomMembers userSet = chatRoomsMap.get(roomName);
+	    Executor roomMailbox = roomMailboxes.get(roomName);
+	    if (option == ChatOptions.LEAVE) {
+		// The status changes right away so the next line of this user is routed correctly
+		user.setUserStatus(UserStatus.LOGGED_IN);
+		user.setCurrentRoomName("");
+		dispatch(user, roomMailbox,
+			() -> removeUserFromRoomAndNotifyOthers(server, user, roomName, userSet));
+		break;
+	    } else if (option == ChatOptions.MEMBERS) {
+		dispatch(user, roomMailbox, () -> deliver(new ChatEvent(server, user.getSession(),
+			showMembers(user, roomName, userSet))));
+		break;
+	    } else if (option == ChatOptions.STATS) {
+		reply(server, user, showStats(user));
 		break;
-	    } else if (dataToBeProcessed.startsWith(ChatOptions.MEMBERS.getOptionCommand())) {
-		synchronized (queue) {
-		    queue.add(new ChatEvent(server, socket, showMembers(user).getBytes()));
-		    queue.notify();
+	    } else if (option == ChatOptions.HISTORY) {
+		int historyCount = parseCount(command.getArgument(data), HISTORY_DEFAULT);
+		dispatch(user, roomMailbox, () -> deliver(new ChatEvent(server, user.getSession(),
+			historyOf(roomName).last(historyCount))));
+		break;
+	    } else if (option == ChatOptions.SEARCH) {
+		Set<String> words = RoomIndex.words(command.getArgument(data));
+		if (words.isEmpty()) {
+		    String errorMessage = "Invalid Syntax. Try again \"/search <words>\"" + NEW_LINE;
+		    reply(server, user, errorMessage.getBytes());
+		    return;
 		}
+		// Passed through the mailbox so the room's earlier messages are indexed first
+		dispatch(user, roomMailbox, () -> {
+		    if (!searchLater(roomName, () -> deliver(new ChatEvent(server,
+			    user.getSession(), search(roomName, words))))) {
+			deliver(new ChatEvent(server, user.getSession(), ("Search is busy, try"
+				+ " again later" + NEW_LINE).getBytes()));
+		    }
+		});
 		break;
-	    } else if (dataToBeProcessed.startsWith(ChatOptions.MESSAGE.getOptionCommand())) {
-		dataToBeProcessed = dataToBeProcessed.replaceFirst("/message", "").trim();
-		String toUserName = dataToBeProcessed.substring(0, dataToBeProcessed.indexOf(" "));
-		String message = dataToBeProcessed.substring(dataToBeProcessed.indexOf(" "));
-		if (toUserName == null || message == null) {
-		    message = "Invalid Syntax. Try again \"/message <username> <message>\""
+	    } else if (option == ChatOptions.MESSAGE) {
+		// "/message <username> <message>". The text keeps the space in front of it
+		int argumentEnd = command.getArgumentOffset() + command.getArgumentLength();
+		int space = indexOf(data, command.getArgumentOffset(), argumentEnd, (byte) ' ');
+		if (space < 0) {
+		    String errorMessage = "Invalid Syntax. Try again \"/message <username> <message>\""
 			    + NEW_LINE;
-		    synchronized (queue) {
-			queue.add(new ChatEvent(server, socket, message.getBytes()));
-			queue.notify();
-		    }
+		    reply(server, user, errorMessage.getBytes());
 		    return;
 		}
-		sendMessage(server, user, toUserName, message, socket);
+		String toUserName = new String(data, command.getArgumentOffset(),
+			space - command.getArgumentOffset());
+		byte[] message = compose("Private Message from " + user.getUserName() + ": ",
+			data, space, argumentEnd - space);
+		dispatch(user, roomMailbox,
+			() -> sendMessage(server, user, toUserName, message));
 		break;
-	    } else if (dataToBeProcessed.startsWith(ChatOptions.ROOMS.getOptionCommand())) {
-		dataToBeProcessedInBytes = handleRoomsRequest();
-		synchronized (queue) {
-		    queue.add(new ChatEvent(server, socket, dataToBeProcessedInBytes));
-		    queue.notify();
+	    } else if (option == ChatOptions.ROOMS) {
+		byte[] rooms = handleRoomsRequest(command.getArgument(data));
+		dispatch(user, roomMailbox, () -> deliver(new ChatEvent(server, user.getSession(), rooms)));
+		break;
+	    }
+
+	    // This is the default action which is messaging in room. The line is copied
+	    // once, straight into the bytes that every member is sent
+	    byte[] message = compose(user.getUserName() + ": ", data, offset, count);
+	    int textOffset = message.length - count - 1;
+	    long enqueuedNanos = MessageTrace.enqueued(traceId, roomName);
+	    dispatch(user, roomMailbox, () -> {
+		DispatchEvent trace = MessageTrace.beginDispatch(traceId, enqueuedNanos);
+		historyOf(roomName).add(message);
+		index(roomName, message);
+		int recipients = broadcast(userSet, null, message, traceId, readNanos, user,
+			textOffset);
+		metrics.recordBroadcast(readNanos, recipients);
+		MessageTrace.commitDispatch(trace, roomName, recipients);
+		if (cluster != null) {
+		    cluster.relay(roomName, message);
 		}
+	    });
+	}
+    }
+
+    // The client is told once per burst of refused lines. Its connection is not read until
+    // the tokens are back, so the kernel pushes back on a client that keeps flooding
+    private void refuseLine(ChatTransport server, User user, long waitNanos) {
+	metrics.recordRateLimited();
+	if (!user.isRateLimited()) {
+	    user.setRateLimited(true);
+	    String notice = "You are sending too fast, your last line was dropped. Slow down"
+		    + NEW_LINE;
+	    reply(server, user, notice.getBytes());
+	}
+	server.pauseReading(user.getSession(), waitNanos);
+    }
+
+    // Returns prefix followed by the given bytes and a new line, without decoding the bytes
+    private static byte[] compose(String prefix, byte[] data, int offset, int length) {
+	byte[] prefixBytes = prefix.getBytes();
+	byte[] composed = new byte[prefixBytes.length + length + 1];
+	System.arraycopy(prefixBytes, 0, composed, 0, prefixBytes.length);
+	System.arraycopy(data, offset, composed, prefixBytes.length, length);
+	composed[composed.length - 1] = '\n';
+	return composed;
+    }
+
+    private static int parseCount(String argument, int defaultCount) {
+	try {
+	    return argument.isEmpty() ? defaultCount : Math.max(0, Integer.parseInt(argument));
+	} catch (NumberFormatException e) {
+	    return defaultCount;
+	}
+    }
+
+    private static int indexOf(byte[] data, int from, int to, byte b) {
+	for (int i = from; i < to; i++) {
+	    if (data[i] == b) {
+		return i;
 	    }
+	}
+	return -1;
+    }
 
-	    // This is the default action which is messaging in room
-	    for (User userInRoom : userSet) {
-		String message = user.getUserName() + ": " + dataToBeProcessed + NEW_LINE;
-		SocketChannel s = userSocketMap.get(userInRoom.getUserName());
-		synchronized (queue) {
-		    queue.add(new ChatEvent(server, s, message.getBytes()));
-		    queue.notify();
+    // Runs the task in the given mailbox, or right away on the calling thread when
+    // mailbox is null. A user's tasks run in the order the commands arrived: while the
+    // user still has tasks waiting in another mailbox the new one is passed through it.
+    // Until a passed task has started in its own mailbox, later tasks of the user are
+    // held and routed from there, so they can not overtake it
+    private void dispatch(User user, Executor mailbox, Runnable task) {
+	AtomicInteger pendingTasks = user.getPendingTasks();
+	Runnable counted = () -> {
+	    metrics.taskStarted();
+	    try {
+		task.run();
+	    } finally {
+		pendingTasks.decrementAndGet();
+	    }
+	};
+	synchronized (user) {
+	    if (mailbox != null || pendingTasks.get() > 0) {
+		pendingTasks.incrementAndGet();
+		metrics.taskQueued();
+		if (user.isForwarding()) {
+		    user.getHeldTasks().add(() -> route(user, mailbox, counted));
+		} else {
+		    route(user, mailbox, counted);
 		}
+		return;
+	    }
+	}
+	task.run();
+    }
+
+    // Queues the task behind the user's earlier ones, in the last mailbox when mailbox
+    // is null. Called holding the user's lock, the task is already counted as pending
+    private void route(User user, Executor mailbox, Runnable counted) {
+	Executor previous = user.getLastMailbox();
+	Executor target = mailbox == null ? previous : mailbox;
+	user.setLastMailbox(target);
+	if (previous == null || previous == target || user.getPendingTasks().get() == 1) {
+	    target.execute(counted);
+	    return;
+	}
+	user.setForwarding(true);
+	previous.execute(() -> target.execute(() -> {
+	    landed(user);
+	    counted.run();
+	}));
+    }
+
+    // A passed task reached its mailbox, the held tasks are routed from there
+    private void landed(User user) {
+	synchronized (user) {
+	    user.setForwarding(false);
+	    Runnable held;
+	    while (!user.isForwarding() && (held = user.getHeldTasks().poll()) != null) {
+		held.run();
 	    }
 	}
     }
 
-    private void sendMessage(ChatServer server, User user, String toUserName, String message,
-	    SocketChannel fromSocketChannel) {
-	message = "Private Message from " + user.getUserName() + ": " + message + NEW_LINE;
-	SocketChannel toSocketChannel = userSocketMap.get(toUserName.trim().toLowerCase());
-	User toUserObject = socketUserMap.get(toSocketChannel);
+    // Sends a direct reply without overtaking the user's earlier room commands
+    private void reply(ChatTransport server, User user, byte[] data) {
+	dispatch(user, null, () -> deliver(new ChatEvent(server, user.getSession(), data)));
+    }
+
+    private void deliver(ChatEvent dataEvent) {
+	dataEvent.chatServer.send(dataEvent.session, dataEvent.data);
+    }
 
-	if (toSocketChannel == null
+    // message is the complete private message as it is sent to the other user. Users that
+    // are offline or in another room find it in their mailbox at their next login
+    private void sendMessage(ChatTransport server, User user, String toUserName, byte[] message) {
+	String toName = toUserName.trim().toLowerCase();
+	User toUserObject = userNameMap.get(toName);
+	int toSession = toUserObject == null ? -1 : toUserObject.getSession();
+	// The other user may be served by a different listener
+	ChatTransport toServer = toUserObject == null ? server : toUserObject.getTransport();
+
+	if (toUserObject == null
 		|| !user.getCurrentRoomName().equals(toUserObject.getCurrentRoomName())) {
-	    message = "User with username " + toUserName + " not present in room" + NEW_LINE;
-	    toSocketChannel = fromSocketChannel;
+	    if (mailboxes != null && registeredUsers.contains(toName)) {
+		mailboxes.append(toName, message);
+		message = ("User " + toUserName + " is not in the room, the message is kept for"
+			+ " their next login" + NEW_LINE).getBytes();
+	    } else {
+		message = ("User with username " + toUserName + " not present in room"
+			+ NEW_LINE).getBytes();
+	    }
+	    toSession = user.getSession();
+	    toServer = server;
 	}
 
-	synchronized (queue) {
-	    queue.add(new ChatEvent(server, toSocketChannel, message.getBytes()));
-	    queue.notify();
-	}
+	deliver(new ChatEvent(toServer, toSession, message));
+    }
+
+    // Runs in the room's mailbox
+    private byte[] showMembers(User user, String roomName, RoomMembers userSet) {
+	return memberListOf(roomName).render(MEMBERS_HEADER, userSet, sessions,
+		user.getUserName(), remoteMembers(roomName, ""));
+    }
+
+    // Only called from the room's mailbox
+    private MemberList memberListOf(String roomName) {
+	return memberLists.computeIfAbsent(roomName, r -> new MemberList());
     }
 
-    private String showMembers(User user) {
-	SortedSet<User> userSet = chatRoomsMap.get(user.getCurrentRoomName());
-	StringBuffer message = new StringBuffer("Members:" + NEW_LINE);
-	for (User userInRoom : userSet) {
-	    message.append(" * " + userInRoom.getUserName() + " ");
-	    if (userInRoom.getUserName().equals(user.getUserName())) {
-		message.append("(** this is you)");
+    // Members of the room on the other nodes of the cluster, sorted by name, followed by end
+    private byte[] remoteMembers(String roomName, String end) {
+	if (cluster == null) {
+	    return end.getBytes();
+	}
+	List<String> remote = new ArrayList<String>();
+	for (Entry<String, Set<String>> node : cluster.getRemoteMembers(roomName).entrySet()) {
+	    for (String userName : node.getValue()) {
+		remote.add(" * " + userName + " (@" + node.getKey() + ")" + NEW_LINE);
 	    }
-	    message.append(NEW_LINE);
 	}
-	return message.toString();
+	Collections.sort(remote);
+	StringBuilder message = new StringBuilder();
+	for (String member : remote) {
+	    message.append(member);
+	}
+	return message.append(end).toString().getBytes();
     }
 
+    // Local and remote members, as listed by /rooms
+    int memberCount(String roomName) {
+	RoomMembers userSet = chatRoomsMap.get(roomName);
+	return (userSet == null ? 0 : userSet.size())
+		+ (cluster == null ? 0 : cluster.getRemoteMemberCount(roomName));
+    }
+
+    // dataToBeProcessed is the room name, already trimmed
     private byte[] createNewRoom(String dataToBeProcessed) {
-	byte[] dataCopy;
-	dataToBeProcessed = dataToBeProcessed.replaceFirst("/create", "").trim();
-	if (chatRoomsMap.containsKey(dataToBeProcessed)) {
+	if (addRoom(dataToBeProcessed) < 0) {
 	    String message = "Room with name already exists. Try again" + NEW_LINE;
 	    message += (ASTERISK_SEPERATORS + NEW_LINE);
-	    dataCopy = message.getBytes();
-	    return dataCopy;
+	    return message.getBytes();
 	}
-	chatRoomsMap.put(dataToBeProcessed, new TreeSet<User>());
 	String message = "New room " + dataToBeProcessed + " created\nEnter /join "
 		+ dataToBeProcessed + " to join room" + NEW_LINE;
 	message += (ASTERISK_SEPERATORS + NEW_LINE);
-	dataCopy = message.getBytes();
-	return dataCopy;
+	return message.getBytes();
+    }
+
+    // Returns the id of the new room, -1 when a room with the name exists
+    private int addRoom(String roomName) {
+	if (chatRoomsMap.containsKey(roomName)) {
+	    return -1;
+	}
+	// The mailbox exists before the room can be found by /join
+	roomMailboxes.putIfAbsent(roomName, new SerialExecutor(dispatchPool));
+	if (chatRoomsMap.putIfAbsent(roomName, new RoomMembers()) != null) {
+	    return -1;
+	}
+	int roomId = roomAdded(roomName);
+	if (stateStore != null) {
+	    stateStore.roomCreated(roomName);
+	}
+	if (cluster != null) {
+	    cluster.roomCreated(roomName);
+	}
+	return roomId;
+    }
+
+    // Loaded lazily so that restoring many rooms at startup does not open their logs.
+    // Only called from the room's mailbox
+    private RoomHistory historyOf(String roomName) {
+	return roomHistories.computeIfAbsent(roomName, this::loadHistory);
+    }
+
+    // Picks up the history logged for a room of the same name before a restart
+    private RoomHistory loadHistory(String roomName) {
+	HistoryLog log = null;
+	if (HISTORY_PERSIST) {
+	    try {
+		log = new HistoryLog(new File(HISTORY_DIRECTORY, hex(roomName)), HISTORY_SEGMENT_SIZE,
+			HISTORY_SEGMENTS);
+	    } catch (IOException e) {
+		LOGGER.warning("Room history of " + roomName + " is not persisted " + e.getMessage());
+	    }
+	}
+	return new RoomHistory(HISTORY_SIZE, log);
+    }
+
+    // Every loaded room is looked at from its own mailbox, and its index from its own
+    // search mailbox. An index unloaded here is loaded from disk again on next use
+    private void sweepIdleRooms() {
+	for (Entry<String, RoomHistory> room : roomHistories.entrySet()) {
+	    roomMailboxes.get(room.getKey()).execute(room.getValue()::releaseIfIdle);
+	}
+	for (String roomName : roomIndexes.keySet()) {
+	    searchLater(roomName, () -> {
+		RoomIndex index = roomIndexes.get(roomName);
+		try {
+		    if (index != null && index.closeIfIdle()) {
+			roomIndexes.remove(roomName);
+		    }
+		} catch (IOException e) {
+		    LOGGER.warning("Could not write search index of " + roomName + " "
+			    + e.getMessage());
+		}
+	    });
+	}
+    }
+
+    // Called from the room's mailbox so messages are indexed in the order they were sent.
+    // Left out of the index when the search backlog is full
+    private void index(String roomName, byte[] message) {
+	boolean queued = searchLater(roomName, () -> {
+	    try {
+		indexOf(roomName).add(message);
+	    } catch (IOException e) {
+		LOGGER.warning("Could not write search index of " + roomName + " " + e.getMessage());
+	    }
+	});
+	if (!queued) {
+	    metrics.recordUnindexed();
+	}
+    }
+
+    // Runs the task in the room's search mailbox. False when the backlog is full
+    private boolean searchLater(String roomName, Runnable task) {
+	if (searchBacklog.incrementAndGet() > SEARCH_BACKLOG) {
+	    searchBacklog.decrementAndGet();
+	    return false;
+	}
+	searchMailboxes.computeIfAbsent(roomName, r -> new SerialExecutor(searchPool)).execute(
+		() -> {
+		    try {
+			task.run();
+		    } finally {
+			searchBacklog.decrementAndGet();
+		    }
+		});
+	return true;
+    }
+
+    // Runs in the room's search mailbox
+    private byte[] search(String roomName, Set<String> words) {
+	List<byte[]> found = indexOf(roomName).search(words, SEARCH_RESULTS);
+	if (found.isEmpty()) {
+	    return ("No messages found" + NEW_LINE).getBytes();
+	}
+	// Joined into one array so the results go out in one write
+	byte[] header = ("Found " + found.size() + " messages:" + NEW_LINE).getBytes();
+	int length = header.length;
+	for (byte[] message : found) {
+	    length += message.length;
+	}
+	byte[] response = Arrays.copyOf(header, length);
+	int position = header.length;
+	for (byte[] message : found) {
+	    System.arraycopy(message, 0, response, position, message.length);
+	    position += message.length;
+	}
+	return response;
+    }
+
+    // Picks up the index written for a room of the same name before a restart. Only
+    // called from the room's search mailbox
+    private RoomIndex indexOf(String roomName) {
+	RoomIndex index = roomIndexes.get(roomName);
+	if (index != null) {
+	    return index;
+	}
+	index = new RoomIndex(SEARCH_SEGMENT_MESSAGES);
+	if (SEARCH_PERSIST) {
+	    try {
+		index = new RoomIndex(new File(SEARCH_DIRECTORY, hex(roomName)),
+			SEARCH_SEGMENT_MESSAGES, SEARCH_LIMIT);
+	    } catch (IOException e) {
+		LOGGER.warning("Search index of " + roomName + " is not persisted "
+			+ e.getMessage());
+	    }
+	}
+	roomIndexes.put(roomName, index);
+	return index;
+    }
+
+    // Room names can contain anything, their hex form is a safe directory name
+    private static String hex(String roomName) {
+	StringBuilder hex = new StringBuilder();
+	for (byte b : roomName.getBytes(StandardCharsets.UTF_8)) {
+	    hex.append(String.format("%02x", b));
+	}
+	return hex.toString();
+    }
+
+    private byte[] showStats(User user) {
+	if (!ADMINS.contains(user.getUserName())) {
+	    return ("/stats is only available to admins" + NEW_LINE).getBytes();
+	}
+	return metrics.getReport().getBytes();
+    }
+
+    public ChatMetrics getMetrics() {
+	return metrics;
+    }
+
+    public BufferPool getBufferPool() {
+	return bufferPool;
+    }
+
+    // False until the connection has picked a name
+    public boolean isLoggedIn(int session) {
+	User user = sessions.get(session);
+	return user != null && user.getUserStatus() != UserStatus.CONNECTED;
+    }
+
+    // Called by the server engine once a channel is closed. Frees the user's name and
+    // takes the user out of the room, the others are told the user has left. The id is
+    // handed out again, the listener must not use it any more. Ids left behind in rooms
+    // until the room's mailbox removes them reach nobody
+    public void connectionClosed(ChatTransport server, int session) {
+	User user = sessions.get(session);
+	sessions.release(session);
+	if (user == null) {
+	    return;
+	}
+	if (user.getUserStatus() != UserStatus.CONNECTED) {
+	    userNameMap.remove(user.getUserName(), user);
+	}
+	if (user.getUserStatus() == UserStatus.IN_ROOM) {
+	    String roomName = user.getCurrentRoomName();
+	    RoomMembers userSet = chatRoomsMap.get(roomName);
+	    user.setUserStatus(UserStatus.LOGGED_IN);
+	    user.setCurrentRoomName("");
+	    dispatch(user, roomMailboxes.get(roomName),
+		    () -> removeUserFromRoomAndNotifyOthers(server, user, roomName, userSet));
+	}
+    }
+
+    public void setCluster(ChatCluster cluster) {
+	this.cluster = cluster;
+    }
+
+    // Hands the local members of every room to the cluster, each room from its own mailbox
+    // so that later joins and leaves follow in order
+    public void announceMembership(BiConsumer<String, List<String>> announce) {
+	for (Entry<String, RoomMembers> room : chatRoomsMap.entrySet()) {
+	    roomMailboxes.get(room.getKey()).execute(() -> {
+		RoomMembers members = room.getValue();
+		List<String> userNames = new ArrayList<String>(members.size());
+		for (int i = 0; i < members.size(); i++) {
+		    User userInRoom = sessions.get(members.sessions()[i]);
+		    if (userInRoom != null) {
+			userNames.add(userInRoom.getUserName());
+		    }
+		}
+		announce.accept(room.getKey(), userNames);
+	    });
+	}
+    }
+
+    // A room created on another node. It is not persisted here, the node that created it
+    // announces it again whenever the link comes up
+    public void remoteRoomCreated(String roomName) {
+	if (chatRoomsMap.containsKey(roomName)) {
+	    return;
+	}
+	roomMailboxes.computeIfAbsent(roomName, r -> new SerialExecutor(dispatchPool));
+	if (chatRoomsMap.putIfAbsent(roomName, new RoomMembers()) == null) {
+	    roomAdded(roomName);
+	}
+    }
+
+    public boolean hasRoom(String roomName) {
+	return chatRoomsMap.containsKey(roomName);
+    }
+
+    // Returns the room's id
+    private int roomAdded(String roomName) {
+	roomList.roomAdded(roomName);
+	synchronized (roomsById) {
+	    roomsById.add(roomName);
+	    return roomsById.size() - 1;
+	}
+    }
+
+    // Null when there is no room with the id
+    String roomNameOf(int roomId) {
+	synchronized (roomsById) {
+	    return roomId < 0 || roomId >= roomsById.size() ? null : roomsById.get(roomId);
+	}
+    }
+
+    // Every room, the index is the room's id
+    List<String> getRoomsById() {
+	synchronized (roomsById) {
+	    return new ArrayList<String>(roomsById);
+	}
+    }
+
+    // Null when the session is closed or not logged in
+    String userNameOf(int session) {
+	User user = sessions.get(session);
+	return user == null || user.getUserStatus() == UserStatus.CONNECTED ? null
+		: user.getUserName();
+    }
+
+    // False when the session is closed or not in a room
+    boolean isInRoom(int session) {
+	User user = sessions.get(session);
+	return user != null && user.getUserStatus() == UserStatus.IN_ROOM;
+    }
+
+    // Hands the local members of the session's room to reply, in the binary form of
+    // MemberList.entries, from the room's mailbox after the session's earlier commands.
+    // False when the session is not in a room
+    boolean listMembers(int session, Consumer<byte[]> reply) {
+	User user = sessions.get(session);
+	if (user == null || user.getUserStatus() != UserStatus.IN_ROOM) {
+	    return false;
+	}
+	String roomName = user.getCurrentRoomName();
+	RoomMembers members = chatRoomsMap.get(roomName);
+	dispatch(user, roomMailboxes.get(roomName),
+		() -> reply.accept(memberListOf(roomName).entries(members, sessions)));
+	return true;
+    }
+
+    // Creates a room for a client that takes structured replies. created is handed the
+    // room's id, -1 when the name is taken, after the session's earlier commands
+    void createRoom(int session, String roomName, IntConsumer created) {
+	User user = sessions.get(session);
+	if (user != null) {
+	    int roomId = addRoom(roomName);
+	    dispatch(user, null, () -> created.accept(roomId));
+	}
+    }
+
+    // Joins the session to the room for a client that takes structured replies. entered is
+    // handed the recent messages of the room from its mailbox once the session is a
+    // member. False when there is no such room or the session is closed
+    boolean joinRoom(int session, String roomName, Consumer<byte[]> entered) {
+	User user = sessions.get(session);
+	RoomMembers userSet = chatRoomsMap.get(roomName);
+	if (user == null || userSet == null) {
+	    return false;
+	}
+	enterRoom(user, roomName, userSet,
+		() -> entered.accept(historyOf(roomName).last(HISTORY_REPLAY)));
+	return true;
+    }
+
+    // Changes whenever a room is added or a member count changes, see RoomListCache
+    long getRoomListVersion() {
+	return roomList.getVersion();
+    }
+
+    // Takes the tokens of a command a client sends without a line, the same buckets the
+    // command typed by a telnet client takes. Returns 0 when the command may be handled,
+    // otherwise the nanoseconds until it could be. Only called from the thread reading
+    // the session's connection
+    long acquireCommand(int session, ChatOptions option) {
+	User user = sessions.get(session);
+	if (user == null) {
+	    return 0;
+	}
+	long waitNanos = rateLimiter.acquireLine(user, null);
+	if (waitNanos == 0) {
+	    waitNanos = rateLimiter.acquireCommand(user, option);
+	}
+	if (waitNanos > 0) {
+	    metrics.recordRateLimited();
+	}
+	return waitNanos;
+    }
+
+    // Remote members of the room changed, of every room when roomName is null
+    public void remoteMembersChanged(String roomName) {
+	if (roomName == null) {
+	    roomList.invalidateAll();
+	} else {
+	    roomList.roomChanged(roomName);
+	}
+    }
+
+    public void remoteMemberJoined(ChatTransport server, String roomName, String userName,
+	    String node) {
+	roomList.roomChanged(roomName);
+	deliverRelayed(server, roomName, ("* new user joined " + roomName + ": " + userName
+		+ " (@" + node + ")" + NEW_LINE).getBytes(), false);
+    }
+
+    public void remoteMemberLeft(ChatTransport server, String roomName, String userName,
+	    String node) {
+	roomList.roomChanged(roomName);
+	deliverRelayed(server, roomName, ("* user has left chat: " + userName + " (@" + node
+		+ ")" + NEW_LINE).getBytes(), false);
+    }
+
+    // A message posted to the room on another node, fanned out to the local members
+    public void deliverRelayed(ChatTransport server, String roomName, byte[] message) {
+	deliverRelayed(server, roomName, message, true);
+    }
+
+    // Dropped for rooms that do not exist here, rooms are only created by ROOM frames
+    private void deliverRelayed(ChatTransport server, String roomName, byte[] message,
+	    boolean keepHistory) {
+	RoomMembers userSet = chatRoomsMap.get(roomName);
+	if (userSet == null) {
+	    return;
+	}
+	roomMailboxes.get(roomName).execute(() -> {
+	    if (keepHistory) {
+		historyOf(roomName).add(message);
+		index(roomName, message);
+	    }
+	    broadcast(userSet, null, message);
+	});
     }
 
     private byte[] showHelpOptions() {
@@ -194,151 +984,188 @@ public class ChatHandler implements Runnable {
 	return dataCopy;
     }
 
-    // Removes user from the chat room and notifies all the others in the room
-    private void removeUserFromRoomAndNotifyOthers(ChatServer server, User user,
-	    SortedSet<User> userSet) {
-	user.setUserStatus(UserStatus.LOGGED_IN);
+    // Removes user from the chat room and notifies all the others in the room.
+    // Runs in the room's mailbox, the user's status has already been changed
+    private void removeUserFromRoomAndNotifyOthers(ChatTransport server, User user,
+	    String roomName, RoomMembers userSet) {
 	String message = "* user has left chat: " + user.getUserName();
-	for (User userInRoom : userSet) {
-	    SocketChannel s = userSocketMap.get(userInRoom.getUserName());
-	    if (userInRoom.getUserName().equals(user.getUserName())) {
-		String modMessage = message + " (** this is you)";
-		synchronized (queue) {
-		    queue.add(new ChatEvent(server, s, (modMessage + NEW_LINE).getBytes()));
-		    queue.notify();
-		}
+	String modMessage = message + " (** this is you)";
+	// Gone already when the user left by disconnecting
+	if (sessions.get(user.getSession()) == user) {
+	    deliver(new ChatEvent(server, user.getSession(), (modMessage + NEW_LINE).getBytes()));
+	}
+	broadcast(userSet, user, (message + NEW_LINE).getBytes());
+	userSet.remove(user.getSession());
+	memberListOf(roomName).invalidate();
+	roomList.roomChanged(roomName);
+	if (cluster != null) {
+	    cluster.memberLeft(roomName, user.getUserName());
+	}
+    }
+
+    // Encodes the message once and fans the same bytes out to every member of the
+    // room except the given user, walking the member array by session id
+    // Returns the number of members the message was queued for
+    private int broadcast(RoomMembers userSet, User except, byte[] message) {
+	return broadcast(userSet, except, message, 0, 0, null, 0);
+    }
+
+    // traceId is the sampled message's MessageTrace id, 0 when it is not traced. sender is
+    // set for a chat message, its text starts at textOffset behind the sender's name
+    private int broadcast(RoomMembers userSet, User except, byte[] message, long traceId,
+	    long readNanos, User sender, int textOffset) {
+	int[] members = userSet.sessions();
+	int size = userSet.size();
+	int exceptSession = except == null ? -1 : except.getSession();
+	int recipients = userSet.contains(exceptSession) ? size - 1 : size;
+	if (recipients <= 0) {
+	    return 0;
+	}
+	// One pooled direct copy, referenced once by every recipient. Members are sent to
+	// through the listener serving them, the reference of a closed session is released
+	PooledBuffer buffer = bufferPool.share(message, recipients);
+	MessageTrace.tag(buffer, traceId, readNanos);
+	if (sender != null) {
+	    buffer.setSender(sender.getSession(), textOffset);
+	}
+	for (int i = 0; i < size; i++) {
+	    if (members[i] == exceptSession) {
 		continue;
 	    }
-	    synchronized (queue) {
-		queue.add(new ChatEvent(server, s, (message + NEW_LINE).getBytes()));
-		queue.notify();
+	    User member = sessions.get(members[i]);
+	    if (member != null) {
+		member.getTransport().send(members[i], buffer, true);
+	    } else {
+		buffer.release();
 	    }
 	}
-	userSet.remove(user);
-	user.setCurrentRoomName("");
+	return recipients;
     }
 
-    // Closes the connection with user and removes him from user map
-    private void closeConectionWithClient(SocketChannel socket, User user) {
-	String bye = "BYE" + NEW_LINE;
-	synchronized (queue) {
-	    try {
-		socket.write(ByteBuffer.wrap(bye.getBytes()));
-	    } catch (IOException e) {
-		// TODO Auto-generated catch block
-		e.printStackTrace();
-	    }
-	}
-	socketUserMap.remove(socket);
-	userSocketMap.remove(user.getUserName());
-	try {
-	    socket.close();
-	} catch (IOException e) {
-	    e.printStackTrace();
-	}
+    // Says bye and has the server engine close the connection. The user is cleaned up
+    // in connectionClosed like any other user whose connection closed
+    private void closeConectionWithClient(ChatTransport server, User user) {
+	server.close(user.getSession(), "BYE" + NEW_LINE);
     }
 
-    // Adds a user to a room and notifies others in the room
-    private byte[] handleJoinRoomsRequest(ChatServer server, String dataToBeProcessed, User user) {
-	byte[] responseInBytes;
-	SortedSet<User> userSet = chatRoomsMap.get(dataToBeProcessed);
+    // Adds a user to a room and notifies others in the room, the user is sent the members
+    // and the recent messages
+    private void handleJoinRoomsRequest(ChatTransport server, String dataToBeProcessed,
+	    User user) {
+	RoomMembers userSet = chatRoomsMap.get(dataToBeProcessed);
 	if (userSet == null) {
 	    String message = "Room not Found. /create <roomname> to create" + NEW_LINE;
-	    responseInBytes = message.getBytes();
-	    return responseInBytes;
-	}
-	String message = "* new user joined " + dataToBeProcessed + ": " + user.getUserName()
-		+ NEW_LINE;
-	for (User userInRoom : userSet) {
-	    SocketChannel s = userSocketMap.get(userInRoom.getUserName());
-	    synchronized (queue) {
-		queue.add(new ChatEvent(server, s, message.getBytes()));
-	    }
+	    reply(server, user, message.getBytes());
+	    return;
 	}
-	userSet.add(user);
-	user.setCurrentRoomName(dataToBeProcessed);
+	enterRoom(user, dataToBeProcessed, userSet, () -> {
+	    // Recent messages go out in the same write as the member list
+	    byte[] end = remoteMembers(dataToBeProcessed, "end of list." + NEW_LINE);
+	    byte[] recent = historyOf(dataToBeProcessed).last(HISTORY_REPLAY);
+	    byte[] trailer = Arrays.copyOf(end, end.length + recent.length);
+	    System.arraycopy(recent, 0, trailer, end.length, recent.length);
+	    byte[] header = ("Entering room: " + dataToBeProcessed + NEW_LINE).getBytes();
+	    deliver(new ChatEvent(server, user.getSession(), memberListOf(dataToBeProcessed)
+		    .render(header, userSet, sessions, user.getUserName(), trailer)));
+	});
+    }
+
+    // The user's status changes right away, the member set is only touched in the room's
+    // mailbox. entered runs there once the user is a member
+    private void enterRoom(User user, String roomName, RoomMembers userSet, Runnable entered) {
+	user.setCurrentRoomName(roomName);
 	user.setUserStatus(UserStatus.IN_ROOM);
-	chatRoomsMap.put(dataToBeProcessed, userSet);
-
-	// Using StringBuffer due to multiple edits and also string buffer is
-	// thread safe
-	StringBuffer response = new StringBuffer("Entering room: " + dataToBeProcessed + NEW_LINE);
-	for (User userInRoom : userSet) {
-	    response.append(" * " + userInRoom.getUserName() + " ");
-	    if (userInRoom.getUserName().equals(user.getUserName())) {
-		response.append("(** this is you)");
+	dispatch(user, roomMailboxes.get(roomName), () -> {
+	    String message = "* new user joined " + roomName + ": " + user.getUserName()
+		    + NEW_LINE;
+	    broadcast(userSet, null, message.getBytes());
+	    userSet.add(user.getSession());
+	    memberListOf(roomName).invalidate();
+	    roomList.roomChanged(roomName);
+	    if (cluster != null) {
+		cluster.memberJoined(roomName, user.getUserName());
 	    }
-	    response.append(NEW_LINE);
-	}
-	response.append("end of list." + NEW_LINE);
-	responseInBytes = response.toString().getBytes();
-	return responseInBytes;
+	    entered.run();
+	});
     }
 
-    // Returns all the rooms
-    private byte[] handleRoomsRequest() {
-	byte[] dataCopy;
-	if (chatRoomsMap.isEmpty()) {
+    // Returns all the rooms, or one page of them when page is given. Served from the
+    // cached responses, only pages that changed since the last request are rendered
+    private byte[] handleRoomsRequest(String page) {
+	if (roomList.getRoomCount() == 0) {
 	    String createResponse = "No rooms. Create using \"/create <roomname>\"" + NEW_LINE
 		    + ASTERISK_SEPERATORS + NEW_LINE;
 	    return createResponse.getBytes();
 	}
-	StringBuffer response = new StringBuffer("Active rooms are:" + NEW_LINE);
-	for (Entry<String, SortedSet<User>> e : chatRoomsMap.entrySet()) {
-	    response.append(" * " + e.getKey() + " (" + e.getValue().size() + ")" + NEW_LINE);
+	if (page.isEmpty()) {
+	    return roomList.getAll();
 	}
-	response.append("end of list." + NEW_LINE);
-	dataCopy = response.toString().getBytes();
-	return dataCopy;
+	byte[] response = roomList.getPage(parseCount(page, 0));
+	if (response == null) {
+	    String error = "No such page. Use /rooms <1-" + roomList.getPageCount() + ">"
+		    + NEW_LINE;
+	    return error.getBytes();
+	}
+	return response;
     }
 
     // This function handles creation of usernames
-    private void handleConnectedUserButNotLoggedIn(ChatServer server, SocketChannel socket,
-	    byte[] dataCopy, String dataToBeProcessed, User user) {
+    private void handleConnectedUserButNotLoggedIn(ChatTransport server,
+	    String dataToBeProcessed, User user) {
+	byte[] dataCopy = dataToBeProcessed.getBytes();
+	boolean loggedIn = false;
 	if (user.getUserStatus() == UserStatus.CONNECTED && !dataToBeProcessed.trim().isEmpty()) {
-	    if (userSocketMap.containsKey(dataToBeProcessed.toLowerCase())) {
+	    // putIfAbsent so two connections racing for a name on different reactors can not both get it
+	    if (!login(user, dataToBeProcessed)) {
 		String errorMsg = "Sorry, name taken. from \nLogin Name?" + NEW_LINE;
 		dataCopy = errorMsg.getBytes();
 	    } else {
-		user.setUserName(dataToBeProcessed.toLowerCase());
-		user.setUserStatus(UserStatus.LOGGED_IN);
 		String successMessage = "Welcome " + dataToBeProcessed + "!" + NEW_LINE;
 		dataCopy = successMessage.getBytes();
-		userSocketMap.put(dataToBeProcessed.toLowerCase(), socket);
-		socketUserMap.put(socket, user);
+		loggedIn = true;
 	    }
 	}
-	synchronized (queue) {
-	    queue.add(new ChatEvent(server, socket, dataCopy));
-	    queue.notify();
+	deliver(new ChatEvent(server, user.getSession(), dataCopy));
+	if (loggedIn) {
+	    deliverMailbox(user);
 	}
     }
 
-    private void handleNewUser(ChatServer server, SocketChannel socket) {
-	byte[] dataCopy;
-	String loginMessage = "\nLogin?\n";
-	dataCopy = loginMessage.getBytes();
-	socketUserMap.put(socket, new User("", UserStatus.CONNECTED));
-	synchronized (queue) {
-	    queue.add(new ChatEvent(server, socket, dataCopy));
-	    queue.notify();
+    // Private messages kept while the user was away go out in one write. They stay in the
+    // mailbox when the user has gone by the time the store gets to them
+    private void deliverMailbox(User user) {
+	if (mailboxes == null) {
+	    return;
 	}
+	mailboxes.deliver(user.getUserName(), messages -> {
+	    if (sessions.get(user.getSession()) != user) {
+		return false;
+	    }
+	    byte[] batch = Arrays.copyOf(MAILBOX_HEADER, MAILBOX_HEADER.length + messages.length);
+	    System.arraycopy(messages, 0, batch, MAILBOX_HEADER.length, messages.length);
+	    deliver(new ChatEvent(user.getTransport(), user.getSession(), batch));
+	    return true;
+	});
     }
 
-    public void run() {
-	ChatEvent dataEvent;
-	// Continuosly polling data in queue
-	while (true) {
-	    synchronized (queue) {
-		while (queue.isEmpty()) {
-		    try {
-			queue.wait();
-		    } catch (InterruptedException e) {
-		    }
-		}
-		dataEvent = queue.remove(0);
-	    }
-	    dataEvent.chatServer.send(dataEvent.socketChannel, dataEvent.data);
+    // False when the name is taken
+    private boolean login(User user, String userName) {
+	if (userNameMap.putIfAbsent(userName.toLowerCase(), user) != null) {
+	    return false;
+	}
+	user.setUserName(userName.toLowerCase());
+	user.setUserStatus(UserStatus.LOGGED_IN);
+	if (registeredUsers.add(user.getUserName()) && stateStore != null) {
+	    stateStore.userRegistered(user.getUserName());
 	}
+	return true;
+    }
+
+    private void handleNewUser(ChatTransport server, int session, SocketChannel socket) {
+	byte[] dataCopy;
+	String loginMessage = "\nLogin?\n";
+	dataCopy = loginMessage.getBytes();
+	sessions.set(session, new User("", UserStatus.CONNECTED, session, socket, server));
+	deliver(new ChatEvent(server, session, dataCopy));
     }
 }
\ No newline at end of file
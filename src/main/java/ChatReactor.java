@@ -0,0 +1,441 @@
+package main.java;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import main.java.helpers.ChatMetrics;
+import main.java.helpers.LineFramer.LineHandler;
+import main.java.helpers.MessageTrace;
+import main.java.helpers.MessageTrace.ReadEvent;
+import main.java.helpers.PooledBuffer;
+import main.java.helpers.TimingWheel;
+
+/*
+ * A worker reactor. Owns its own selector and handles reads and writes for
+ * the channels handed to it by the accepting ChatServer. Every reactor runs on
+ * its own thread so the server can make use of more than one core.
+ */
+public class ChatReactor implements Runnable, LineHandler {
+	private final static Logger LOGGER = Logger.getLogger(ChatReactor.class.getName());
+
+	// Longest command or chat line accepted from a client
+	private static final int MAX_LINE_LENGTH = Integer.getInteger("chat.maxLineLength", 4096);
+
+	// Seconds a new connection has to log in, and seconds without input before a session
+	// is closed. chat.idleTimeout=0 keeps idle sessions forever
+	private static final long LOGIN_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(
+			Long.getLong("chat.loginTimeout", 60));
+	private static final long IDLE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(
+			Long.getLong("chat.idleTimeout", 1800));
+
+	// Seconds of silence after which a telnet NOP is sent, so dead peers are noticed by a
+	// failing write. Off unless chat.heartbeat is set
+	private static final long HEARTBEAT_MILLIS = TimeUnit.SECONDS.toMillis(
+			Long.getLong("chat.heartbeat", 0));
+
+	// Telnet IAC NOP. Ignored by telnet clients
+	private static final byte[] HEARTBEAT = { (byte) 0xff, (byte) 0xf1 };
+
+	// Microseconds data may wait so that more messages go out with the same write. 0 writes
+	// as soon as the reactor gets to the connection: right away for data sent from the
+	// reactor's thread, otherwise in the next iteration of the select loop, which gathers
+	// everything queued until then. select() waits in whole milliseconds, so a window
+	// below one millisecond can add up to one millisecond
+	private static final long COALESCE_NANOS = TimeUnit.MICROSECONDS.toNanos(
+			Long.getLong("chat.write.coalesceMicros", 0));
+
+	// Time a closing connection gets to write its notice before it is closed anyway
+	private static final long CLOSE_GRACE_MILLIS = 5000;
+
+	// Selector for the channels owned by this reactor only
+	private Selector selector;
+
+	private ChatServer server;
+
+	private ChatHandler eventHandler;
+
+	private ChatMetrics metrics;
+
+	// 16KB buffer space. Only used from this reactor's thread. Partial lines are
+	// kept by the ChatConnection attached to each channel's key
+	private ByteBuffer buffer = ByteBuffer.allocate(16384);
+
+	// Channels accepted by the server that are waiting to be registered with this selector
+	private Queue<ChatConnection> pendingRegistrations = new ConcurrentLinkedQueue<ChatConnection>();
+
+	// Connections that have data queued and need OP_WRITE. Each connection appears at
+	// most once until its queue has been drained
+	private Queue<ChatConnection> pendingWrites = new ConcurrentLinkedQueue<ChatConnection>();
+
+	// Connections waiting for the coalescing window to pass before OP_WRITE is set, in the
+	// order their data was queued. Reactor thread only
+	private ArrayDeque<ChatConnection> coalescing = new ArrayDeque<ChatConnection>();
+
+	// Set once selector.wakeup() has been called and cleared when select() returns. Work
+	// queued while it is set is picked up without waking the selector again
+	private AtomicBoolean wakeupPending = new AtomicBoolean();
+
+	// The thread running this reactor. Sends from it write right away
+	private Thread thread;
+
+	// Number of channels currently owned. Used by the server to pick the least loaded reactor
+	private AtomicInteger connectionCount = new AtomicInteger();
+
+	// Login deadlines, idle checks and heartbeats of this reactor's connections. Only used
+	// from this reactor's thread, driven by the select loop
+	private TimingWheel timers = new TimingWheel(Long.getLong("chat.timer.tickMillis", 100),
+			Integer.getInteger("chat.timer.slots", 512));
+
+	public ChatReactor(ChatServer server, ChatHandler handler, ChatMetrics metrics)
+			throws IOException {
+		this.server = server;
+		this.eventHandler = handler;
+		this.metrics = metrics;
+		this.selector = SelectorProvider.provider().openSelector();
+	}
+
+	public void run() {
+		thread = Thread.currentThread();
+		while (true) {
+			try {
+				registerPendingChannels();
+
+				// Flag the connections that have been sent data by event handlers
+				processPendingWrites();
+
+				// Wakes up for the next tick of the timing wheel while timers are pending
+				// and when the coalescing window of a connection ends
+				selector.select(selectTimeout());
+				wakeupPending.set(false);
+				metrics.recordSelectWakeup();
+
+				Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
+				while (selectedKeys.hasNext()) {
+					SelectionKey selectionKey = selectedKeys.next();
+					selectedKeys.remove();
+					manageSelectionKey(selectionKey);
+				}
+
+				timers.advance();
+			} catch (Exception e) {
+			    LOGGER.info("Exception occured while processing events from Channel" + e.getMessage());
+			}
+		}
+	}
+
+	// Called from the accepting thread. The actual registration happens on the reactor thread
+	public void register(ChatConnection connection) {
+		connectionCount.incrementAndGet();
+		pendingRegistrations.add(connection);
+		wakeup();
+	}
+
+	private void wakeup() {
+		if (wakeupPending.compareAndSet(false, true)) {
+			this.selector.wakeup();
+		}
+	}
+
+	public int getConnectionCount() {
+		return connectionCount.get();
+	}
+
+	public int getMaxLineLength() {
+		return MAX_LINE_LENGTH;
+	}
+
+	private void registerPendingChannels() throws IOException {
+	    ChatConnection connection;
+	    while ((connection = pendingRegistrations.poll()) != null) {
+	    	//Request selector to notify when messages arrive at this channel(OP_READ).
+	    	//Data may have been queued before the channel got here
+	    	SelectionKey selectionKey = connection.getSocketChannel().register(this.selector,
+	    			SelectionKey.OP_READ, connection);
+	    	connection.setSelectionKey(selectionKey);
+	    	if (connection.isWriteScheduled()) {
+	    		selectionKey.interestOps(readOps(connection) | SelectionKey.OP_WRITE);
+	    	}
+	    	startTimers(connection);
+	    }
+	}
+
+	private void startTimers(ChatConnection connection) {
+		connection.loginTimer = timers.schedule(() -> checkLogin(connection),
+				LOGIN_TIMEOUT_MILLIS);
+		if (IDLE_TIMEOUT_MILLIS > 0) {
+			connection.idleTimer = timers.schedule(() -> checkIdle(connection),
+					IDLE_TIMEOUT_MILLIS);
+		}
+		if (HEARTBEAT_MILLIS > 0) {
+			connection.heartbeatTimer = timers.schedule(() -> heartbeat(connection),
+					HEARTBEAT_MILLIS);
+		}
+	}
+
+	private void checkLogin(ChatConnection connection) {
+		if (isOpen(connection) && !eventHandler.isLoggedIn(connection.getSession())) {
+			close(connection, "Login timed out. Disconnecting\n");
+		}
+	}
+
+	// Rescheduled for the rest of the timeout on activity instead of being moved on every read
+	private void checkIdle(ChatConnection connection) {
+		if (!isOpen(connection)) {
+			return;
+		}
+		long idleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+				- connection.getLastReadNanos());
+		if (idleMillis >= IDLE_TIMEOUT_MILLIS) {
+			close(connection, "Idle for too long. Disconnecting\n");
+		} else {
+			connection.idleTimer = timers.schedule(() -> checkIdle(connection),
+					IDLE_TIMEOUT_MILLIS - idleMillis);
+		}
+	}
+
+	private void heartbeat(ChatConnection connection) {
+		if (!isOpen(connection)) {
+			return;
+		}
+		long silentMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+				- connection.getLastActivityNanos());
+		if (silentMillis >= HEARTBEAT_MILLIS) {
+			connection.send(PooledBuffer.wrap(ByteBuffer.wrap(HEARTBEAT)), false);
+			silentMillis = 0;
+		}
+		connection.heartbeatTimer = timers.schedule(() -> heartbeat(connection),
+				HEARTBEAT_MILLIS - silentMillis);
+	}
+
+	// Queues the notice and closes the channel once it is written, or after a grace period
+	// when the client does not read it
+	private void close(ChatConnection connection, String notice) {
+		connection.closeWithNotice(notice);
+		timers.schedule(() -> closeQuietly(connection.getSelectionKey(),
+				connection.getSocketChannel()), CLOSE_GRACE_MILLIS);
+	}
+
+	// Channels closed behind the reactor's back are only noticed here. Their state is
+	// cleaned up like that of any other closed channel
+	private boolean isOpen(ChatConnection connection) {
+		if (connection.getSelectionKey().isValid()) {
+			return true;
+		}
+		closeQuietly(connection.getSelectionKey(), connection.getSocketChannel());
+		return false;
+	}
+
+	// Called by the handler on this reactor's thread when a line was refused by the rate
+	// limits. The rest of the lines already read are still handled
+	void pauseReading(ChatConnection connection, long nanos) {
+		SelectionKey selectionKey = connection.getSelectionKey();
+		if (connection.isReadPaused() || selectionKey == null || !selectionKey.isValid()) {
+			return;
+		}
+		connection.setReadPaused(true);
+		selectionKey.interestOps(selectionKey.interestOps() & ~SelectionKey.OP_READ);
+		connection.resumeTimer = timers.schedule(() -> resumeReading(connection),
+				Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos)));
+	}
+
+	private void resumeReading(ChatConnection connection) {
+		connection.setReadPaused(false);
+		if (isOpen(connection)) {
+			SelectionKey selectionKey = connection.getSelectionKey();
+			selectionKey.interestOps(selectionKey.interestOps() | SelectionKey.OP_READ);
+		}
+	}
+
+	private static int readOps(ChatConnection connection) {
+		return connection.isReadPaused() ? 0 : SelectionKey.OP_READ;
+	}
+
+	// Called from any thread by ChatConnection.send the first time data is queued. Data
+	// sent from this reactor's own thread, replies to lines it is handling and its timer
+	// notices, is written before this returns
+	void scheduleWrite(ChatConnection connection) {
+		if (Thread.currentThread() == thread) {
+			if (COALESCE_NANOS > 0) {
+				coalescing.add(connection);
+			} else {
+				writeNow(connection);
+			}
+			return;
+		}
+		pendingWrites.add(connection);
+		wakeup();
+	}
+
+	private void processPendingWrites() {
+	    ChatConnection connection;
+	    while ((connection = pendingWrites.poll()) != null) {
+	    	if (COALESCE_NANOS > 0) {
+	    		coalescing.add(connection);
+	    	} else {
+	    		writeNow(connection);
+	    	}
+	    }
+	    long now = System.nanoTime();
+	    while (!coalescing.isEmpty()
+	    		&& now - coalescing.peek().getScheduledNanos() >= COALESCE_NANOS) {
+	    	writeNow(coalescing.poll());
+	    }
+	}
+
+	// Writes without waiting for select() to report the channel writable. The socket send
+	// buffer usually has room, OP_WRITE is only set for what it did not take. Closing is
+	// left to the select loop, this may run while the handler is in the middle of a line
+	private void writeNow(ChatConnection connection) {
+		SelectionKey selectionKey = connection.getSelectionKey();
+		// Keys not registered yet pick up OP_WRITE in registerPendingChannels
+		if (selectionKey == null || !selectionKey.isValid()) {
+			return;
+		}
+		boolean flushed;
+		try {
+			flushed = connection.flush();
+		} catch (IOException e) {
+			// The write in the select loop fails the same way and closes the channel
+			flushed = false;
+		}
+		if (!flushed || connection.isCloseRequested() || connection.writeCompleted()) {
+			enableWrite(connection);
+		} else if ((selectionKey.interestOps() & SelectionKey.OP_WRITE) != 0) {
+			selectionKey.interestOps(readOps(connection));
+		}
+	}
+
+	private void enableWrite(ChatConnection connection) {
+		SelectionKey selectionKey = connection.getSelectionKey();
+		// Keys not registered yet pick up OP_WRITE in registerPendingChannels
+		if (selectionKey != null && selectionKey.isValid()) {
+			selectionKey.interestOps(readOps(connection) | SelectionKey.OP_WRITE);
+		}
+	}
+
+	// Milliseconds select() may block, 0 for no limit
+	private long selectTimeout() {
+		long timeout = timers.millisToNextTick();
+		if (coalescing.isEmpty()) {
+			return timeout;
+		}
+		long windowEnd = coalescing.peek().getScheduledNanos() + COALESCE_NANOS;
+		long windowMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(windowEnd
+				- System.nanoTime() + 999999));
+		return timeout == 0 ? windowMillis : Math.min(timeout, windowMillis);
+	}
+
+	private void manageSelectionKey(SelectionKey selectionKey)
+		throws IOException {
+	    if (!selectionKey.isValid()) {
+	    	return;
+	    }
+	    if (selectionKey.isReadable()) {
+	    	this.read(selectionKey);
+	    } else if (selectionKey.isWritable()) {
+	    	this.write(selectionKey);
+	    }
+	}
+
+	private void read(SelectionKey selectionKey) throws IOException {
+		SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
+
+		//flush the buffer before new read.
+		this.buffer.clear();
+		int numRead;
+		ReadEvent trace = MessageTrace.beginRead();
+		try {
+			numRead = socketChannel.read(this.buffer);
+			MessageTrace.endRead(trace);
+		} catch (IOException e) {
+			cancelKeyAndCloseChannel(selectionKey, socketChannel);
+			return;
+		}
+
+		if (numRead == -1) {
+		    	cancelKeyAndCloseChannel(selectionKey, socketChannel);
+			return;
+		}
+
+		//Every complete line is dispatched as its own command, in the order received
+		ChatConnection connection = (ChatConnection) selectionKey.attachment();
+		connection.recordBytesIn(numRead);
+		connection.getLineFramer().frame(connection.getSession(), this.buffer.array(), 0, numRead, this);
+		MessageTrace.commitRead(trace, connection.getSession(), numRead);
+	}
+
+	public void onLine(int session, byte[] data, int offset, int length) {
+		this.eventHandler.processData(this.server, session, data, offset, length);
+	}
+
+	public void onLineTooLong(int session) {
+		String message = "Line too long. Maximum is " + MAX_LINE_LENGTH + " characters\n";
+		server.send(session, message.getBytes());
+	}
+
+	private void write(SelectionKey selectionKey) throws IOException {
+		ChatConnection connection = (ChatConnection) selectionKey.attachment();
+
+		//Queued buffers are flushed with gathering writes. A failing write means the peer is gone
+		boolean flushed;
+		try {
+			flushed = connection.flush();
+		} catch (IOException e) {
+			cancelKeyAndCloseChannel(selectionKey, connection.getSocketChannel());
+			return;
+		}
+		if (flushed) {
+			if (connection.isCloseRequested()) {
+				//Slow consumer disconnected by the outbound budget. The notice has been written
+				cancelKeyAndCloseChannel(selectionKey, connection.getSocketChannel());
+				return;
+			}
+		    //Once all data is written. swtich mode back to read unless more arrived while writing
+			if (!connection.writeCompleted()) {
+				selectionKey.interestOps(readOps(connection));
+			} else if (COALESCE_NANOS > 0) {
+				// The new data waits for its own coalescing window
+				selectionKey.interestOps(readOps(connection));
+				coalescing.add(connection);
+			}
+		}
+	}
+
+	private void cancelKeyAndCloseChannel(SelectionKey selectionKey,
+		SocketChannel socketChannel) throws IOException {
+	    selectionKey.cancel();
+	    socketChannel.close();
+	    ChatConnection connection = (ChatConnection) selectionKey.attachment();
+	    if (connection.isClosed()) {
+	    	return;
+	    }
+	    connection.clear();
+	    timers.cancel(connection.loginTimer);
+	    timers.cancel(connection.idleTimer);
+	    timers.cancel(connection.heartbeatTimer);
+	    timers.cancel(connection.resumeTimer);
+	    connectionCount.decrementAndGet();
+	    // The id is handed out again once the handler has closed the session
+	    server.unregister(connection.getSession());
+	    eventHandler.connectionClosed(server, connection.getSession());
+	}
+
+	private void closeQuietly(SelectionKey selectionKey, SocketChannel socketChannel) {
+		try {
+			cancelKeyAndCloseChannel(selectionKey, socketChannel);
+		} catch (IOException e) {
+			LOGGER.info("Exception occured while closing channel" + e.getMessage());
+		}
+	}
+}
@@ -9,13 +9,22 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
-public class ChatServer implements Runnable {
+import main.java.helpers.BufferPool;
+import main.java.helpers.ChatMetrics;
+import main.java.helpers.OutboundBudget;
+import main.java.helpers.OverflowPolicy;
+import main.java.helpers.PooledBuffer;
+import main.java.helpers.SessionTable;
+
+public class ChatServer implements Runnable, ChatTransport {
     	private final static Logger LOGGER = Logger.getLogger(ChatServer.class.getName()); 
-	// Selector will keep listening on multiple channels. This is monitored for events
+
+	// Connections the kernel queues until they are accepted. The JDK default of 50 overflows
+	// under a burst of connects and the overflowing clients hang without ever being accepted
+	static final int ACCEPT_BACKLOG = Integer.getInteger("chat.acceptBacklog", 1024);
+	// Selector only listens for new connections. Reads and writes are done by the reactors
 	private Selector selector;
 	
 	// Channels that will connect to the selector
@@ -25,22 +34,53 @@ public class ChatServer implements Runnable {
 	private InetAddress hostAddress;
 	private int port;
 
-	// 16KB buffer space. Channels always read from and write to buffers
-	private ByteBuffer buffer = ByteBuffer.allocate(16384);
-
 	//Handles all the events in a seperate thread
 	private ChatHandler eventHandler;
 
-	private Map<SocketChannel, List<Integer>> pendingChangesMap = new ConcurrentHashMap<SocketChannel, List<Integer>>();
+	// Worker reactors. Each accepted channel is handed to one of them
+	private ChatReactor[] reactors;
+	private int nextReactor;
+
+	// Limits the bytes queued for slow clients
+	private OutboundBudget outboundBudget;
+
+	private ChatMetrics metrics;
+
+	// Outbound messages are copied into pooled direct buffers
+	private BufferPool bufferPool;
 
-	// Maps a SocketChannel to a list of ByteBuffer instances
-	private Map<SocketChannel, List<ByteBuffer>> pendingData = new HashMap<SocketChannel, List<ByteBuffer>>();
+	// Connection state of every open channel by the session id ChatHandler knows it by.
+	// The connection knows the owning reactor
+	private SessionTable<ChatConnection> connections = new SessionTable<ChatConnection>();
 
 	public ChatServer(int port, ChatHandler handler)
 			throws IOException {
+		this(port, handler, Runtime.getRuntime().availableProcessors());
+	}
+
+	public ChatServer(int port, ChatHandler handler, int reactorCount)
+			throws IOException {
 		this.port = port;
 		this.selector = createAndInitializeSelector();
 		this.eventHandler = handler;
+		this.outboundBudget = createOutboundBudget();
+		this.metrics = handler.getMetrics();
+		this.bufferPool = handler.getBufferPool();
+		metrics.setConnections(connections.values());
+		this.reactors = new ChatReactor[Math.max(1, reactorCount)];
+		for (int i = 0; i < reactors.length; i++) {
+			reactors[i] = new ChatReactor(this, handler, metrics);
+		}
+	}
+
+	// Defaults to 1MB per connection and a quarter of the heap for all of them
+	static OutboundBudget createOutboundBudget() {
+		long connectionLimit = Long.getLong("chat.outbound.connectionLimit", 1024 * 1024);
+		long globalLimit = Long.getLong("chat.outbound.globalLimit",
+				Runtime.getRuntime().maxMemory() / 4);
+		OverflowPolicy policy = OverflowPolicy.valueOf(System.getProperty(
+				"chat.outbound.policy", OverflowPolicy.DROP_OLDEST.name()));
+		return new OutboundBudget(connectionLimit, globalLimit, policy);
 	}
 
 	private Selector createAndInitializeSelector() throws IOException {
@@ -52,7 +92,7 @@ public class ChatServer implements Runnable {
 
 		InetSocketAddress inetSocketAddress = new InetSocketAddress(this.hostAddress,
 				this.port);
-		serverSocketChannel.socket().bind(inetSocketAddress);
+		serverSocketChannel.socket().bind(inetSocketAddress, ACCEPT_BACKLOG);
 		
 		//Adding the channel to the selector and notify that the channel is ready to accept connections
 		serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
@@ -61,14 +101,12 @@ public class ChatServer implements Runnable {
 	}
 	
 	public void run() {
+		for (int i = 0; i < reactors.length; i++) {
+			new Thread(reactors[i], "chat-reactor-" + i).start();
+		}
 		while (true) {
 			try {
-				// Process all changes that are requested by event handlers. 
-				synchronized (this.pendingChangesMap) {
-					processPendingRequests();
-				}
-
-				// Normal select operation. Looking for data in the input channels
+				// Normal select operation. Only accept events arrive here
 				selector.select();
 				
 				//Get the selectionKey objects originating from each channel and prcess
@@ -86,129 +124,132 @@ public class ChatServer implements Runnable {
 
 	private void manageSelectionKey(SelectionKey selectionKey)
 		throws IOException {
-	    if (!selectionKey.isValid()) {
-	    	return;
-	    }
-	    if (selectionKey.isAcceptable()) {
+	    if (selectionKey.isValid() && selectionKey.isAcceptable()) {
 	    	this.accept(selectionKey);
-	    } else if (selectionKey.isReadable()) {
-	    	this.read(selectionKey);
-	    } else if (selectionKey.isWritable()) {
-	    	this.write(selectionKey);
 	    }
 	}
 
-	private void processPendingRequests() {
-	    for (Entry<SocketChannel, List<Integer>> e : pendingChangesMap
-	    		.entrySet()) {
-	    	SocketChannel socket = e.getKey();
-	    	for (Integer i : e.getValue()) {
-	    		SelectionKey selectionKey = socket.keyFor(this.selector);
-	    		if(selectionKey!=null) {
-	    		    selectionKey.interestOps(i);
-	    		}
-	    	}
-	    }
-	    this.pendingChangesMap.clear();
-	}
-
 	private void accept(SelectionKey selectionKey) throws IOException {
 		//Have to cast as selectionKey.channel is generic. In this case we know for sure its ServerSocketChannel
 		ServerSocketChannel serverSocketChannel = (ServerSocketChannel) selectionKey
 				.channel();
 		SocketChannel socketChannel = serverSocketChannel.accept();
+		if (socketChannel == null) {
+			return;
+		}
 		//nonBlocking
 		socketChannel.configureBlocking(false);
 
-		//Once connection is accepted, register channel with selector.
-		//Request selector to notify when messages arrive at this channel(OP_READ)
-		socketChannel.register(this.selector, SelectionKey.OP_READ);
-		String welcomeMessage = "Welcome to the XYZ chat server";
-		this.eventHandler.processData(this, socketChannel, welcomeMessage.getBytes(),
-				welcomeMessage.getBytes().length);
+		//Once connection is accepted, hand the channel over to a reactor. The session is
+		//opened before registration so the login prompt is the first thing the client sees
+		ChatReactor reactor = selectReactor();
+		int session = eventHandler.newSession();
+		ChatConnection connection = new ChatConnection(socketChannel, session, reactor,
+				reactor.getMaxLineLength(), outboundBudget, metrics);
+		connections.set(session, connection);
+		this.eventHandler.openSession(this, session, socketChannel);
+		reactor.register(connection);
 	}
 
-	private void read(SelectionKey selectionKey) throws IOException {
-		SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
-		
-		//flush the buffer before new read.
-		this.buffer.clear();
-		int numRead;
-		try {
-			numRead = socketChannel.read(this.buffer);
-		} catch (IOException e) {
-			cancelKeyAndCloseChannel(selectionKey, socketChannel);
-			return;
-		}
-
-		if (numRead == -1) {
-		    	cancelKeyAndCloseChannel(selectionKey, socketChannel);
-			return;
+	// Picks the reactor with the fewest connections. Starts scanning at a rotating
+	// index so that ties are spread round robin
+	private ChatReactor selectReactor() {
+		int start = nextReactor;
+		nextReactor = (nextReactor + 1) % reactors.length;
+		ChatReactor selected = reactors[start];
+		for (int i = 1; i < reactors.length; i++) {
+			ChatReactor reactor = reactors[(start + i) % reactors.length];
+			if (reactor.getConnectionCount() < selected.getConnectionCount()) {
+				selected = reactor;
+			}
 		}
+		return selected;
+	}
 
-		this.eventHandler.processData(this, socketChannel, this.buffer.array(),
-				numRead);
+	public void send(int session, byte[] data) {
+		send(session, bufferPool.copyOf(data), false);
 	}
 
-	private void write(SelectionKey selectionKey) throws IOException {
-		SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
+	public void send(int session, ByteBuffer data) {
+		send(session, data, false);
+	}
 
-		synchronized (this.pendingData) {
-			List<ByteBuffer> queue =  this.pendingData.get(socketChannel);
+	// The buffer is queued as is. Callers sharing bytes between channels pass a duplicate.
+	// Room messages may be dropped for slow clients, see OverflowPolicy
+	public void send(int session, ByteBuffer data, boolean roomMessage) {
+		send(session, PooledBuffer.wrap(data), roomMessage);
+	}
 
-			emptyBufferQueueAndWriteToChannel(socketChannel, queue);
+	// Lock free lookup by the session's slot. Data for a closed session is released
+	public void send(int session, PooledBuffer data, boolean roomMessage) {
+		ChatConnection connection = connections.get(session);
+		if (connection != null) {
+			connection.send(data, roomMessage);
+		} else {
+			data.release();
+		}
+	}
 
-			if (queue.isEmpty()) {
-			    //Once all data is written. swtich mode back to read as we dont have the intent to write anymore
-				selectionKey.interestOps(SelectionKey.OP_READ);
-			}
+	// The reactor closes the channel once the notice is written
+	public void close(int session, String notice) {
+		ChatConnection connection = connections.get(session);
+		if (connection != null) {
+			connection.closeWithNotice(notice);
 		}
 	}
-	
-	public void send(SocketChannel socketChannel, byte[] data) {
-		//Setup channel for write by setting OP_WRITE
-		if (!pendingChangesMap.containsKey(socketChannel)) {
-			pendingChangesMap.put(socketChannel, new ArrayList<Integer>());
+
+	// Called from the reactor thread that owns the channel, while it handles its input
+	public void pauseReading(int session, long nanos) {
+		ChatConnection connection = connections.get(session);
+		if (connection != null) {
+			connection.getReactor().pauseReading(connection, nanos);
 		}
-		pendingChangesMap.get(socketChannel).add(SelectionKey.OP_WRITE);
-		
-		//Add to pending data the data that is to written to each socket channel
-		synchronized (this.pendingData) {
-			List<ByteBuffer> queue = this.pendingData.get(socketChannel);
-			if (queue == null) {
-				queue = new ArrayList<ByteBuffer>();
-				this.pendingData.put(socketChannel, queue);
+	}
+
+	// Connections currently over their outbound budget
+	public List<ChatConnection> getThrottledConnections() {
+		List<ChatConnection> throttled = new ArrayList<ChatConnection>();
+		for (ChatConnection connection : connections.values()) {
+			if (connection.isThrottled()) {
+				throttled.add(connection);
 			}
-			queue.add(ByteBuffer.wrap(data));
 		}
-		this.selector.wakeup();
-	}
-
-	private void emptyBufferQueueAndWriteToChannel(SocketChannel socketChannel,
-		List<ByteBuffer> queue) throws IOException {
-	    while (!queue.isEmpty()) {
-	    	ByteBuffer buffer = queue.get(0);
-	    	socketChannel.write(buffer);
-	    	if (buffer.remaining() > 0) {
-	    		break;
-	    	}
-	    	queue.remove(0);
-	    }
+		return throttled;
 	}
-	
-	private void cancelKeyAndCloseChannel(SelectionKey selectionKey,
-		SocketChannel socketChannel) throws IOException {
-	    selectionKey.cancel();
-	    socketChannel.close();
+
+	public OutboundBudget getOutboundBudget() {
+		return outboundBudget;
+	}
+
+	// Called by a reactor once it has closed one of its channels
+	void unregister(int session) {
+		connections.remove(session);
 	}
 
 	public static void main(String[] args) {
 		try {
 			ChatHandler chatEventHandler = new ChatHandler();
-			new Thread(chatEventHandler).start();
-			new Thread(new ChatServer(9090, chatEventHandler)).start();
+			int port = Integer.getInteger("chat.port", 9090);
+			// -Dchat.engine=virtual serves every connection from its own (virtual) threads
+			// with blocking I/O instead of the selector reactors
+			if ("virtual".equals(System.getProperty("chat.engine"))) {
+				VirtualThreadChatServer server = new VirtualThreadChatServer(port, chatEventHandler);
+				ChatCluster.fromProperties(chatEventHandler, server);
+				ChatGateway.fromProperties(chatEventHandler);
+				new Thread(server).start();
+				return;
+			}
+			// Number of worker reactors. Defaults to one per core
+			int reactorCount = Integer.getInteger("chat.reactors",
+					Runtime.getRuntime().availableProcessors());
+			ChatServer server = new ChatServer(port, chatEventHandler, reactorCount);
+			// -Dchat.cluster.port and -Dchat.cluster.peers join this server to a cluster
+			ChatCluster.fromProperties(chatEventHandler, server);
+			// -Dchat.gateway.port opens the binary listener for bots, see ChatGateway
+			ChatGateway.fromProperties(chatEventHandler);
+			new Thread(server).start();
 		} catch (IOException e) {
 			LOGGER.severe("Exception during startup");
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,32 @@
+package main.java;
+import java.nio.ByteBuffer;
+
+import main.java.helpers.PooledBuffer;
+
+/*
+ * What ChatHandler needs from a server engine: a way to queue bytes for a
+ * connection and to hold back its input. Connections are addressed by the
+ * session id ChatHandler.openSession handed out for them, data for a session
+ * that has closed is dropped. Implemented by the selector based ChatServer and by the
+ * thread per connection VirtualThreadChatServer.
+ */
+public interface ChatTransport {
+
+	void send(int session, byte[] data);
+
+	void send(int session, ByteBuffer data);
+
+	// Room messages may be dropped for slow clients, see OverflowPolicy
+	void send(int session, ByteBuffer data, boolean roomMessage);
+
+	// Takes over one reference of data and releases it once written or dropped
+	void send(int session, PooledBuffer data, boolean roomMessage);
+
+	// Writes the notice after whatever is queued and closes the connection. The session
+	// ends in ChatHandler.connectionClosed like any other closed connection
+	void close(int session, String notice);
+
+	// Stops reading from the channel for the given time. Only called from the thread
+	// handling the channel's input
+	void pauseReading(int session, long nanos);
+}
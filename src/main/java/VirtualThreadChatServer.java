@@ -0,0 +1,311 @@
+package main.java;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import main.java.helpers.ChatMetrics;
+import main.java.helpers.ConnectionStats;
+import main.java.helpers.LineFramer;
+import main.java.helpers.LineFramer.LineHandler;
+import main.java.helpers.MessageTrace;
+import main.java.helpers.MessageTrace.ReadEvent;
+import main.java.helpers.OutboundBudget;
+import main.java.helpers.PooledBuffer;
+import main.java.helpers.SessionTable;
+
+/*
+ * Alternative engine to the selector based ChatServer. Every connection gets a
+ * reader and a writer thread doing plain blocking I/O. On a JDK with virtual
+ * threads these are virtual threads, on older JDKs they fall back to platform
+ * threads. Commands are handled by the same ChatHandler.
+ */
+public class VirtualThreadChatServer implements Runnable, ChatTransport, LineHandler {
+	private final static Logger LOGGER = Logger.getLogger(VirtualThreadChatServer.class.getName());
+
+	private static final int MAX_LINE_LENGTH = Integer.getInteger("chat.maxLineLength", 4096);
+
+	// Upper bound of buffers handed to a single gathering write
+	private static final int MAX_GATHER = Integer.getInteger("chat.write.maxGather", 64);
+
+	private ServerSocketChannel serverSocketChannel;
+
+	private ChatHandler eventHandler;
+
+	private ThreadFactory threadFactory;
+
+	private OutboundBudget outboundBudget;
+
+	private ChatMetrics metrics;
+
+	// Open connections by session id, see ChatServer
+	private SessionTable<BlockingConnection> connections = new SessionTable<BlockingConnection>();
+
+	public VirtualThreadChatServer(int port, ChatHandler handler) throws IOException {
+		this.eventHandler = handler;
+		this.threadFactory = createThreadFactory();
+		this.outboundBudget = ChatServer.createOutboundBudget();
+		this.metrics = handler.getMetrics();
+		metrics.setConnections(connections.values());
+		this.serverSocketChannel = ServerSocketChannel.open();
+		serverSocketChannel.socket().bind(new InetSocketAddress(port), ChatServer.ACCEPT_BACKLOG);
+	}
+
+	// Thread.ofVirtual() is only there from JDK 21 on, so it is looked up reflectively
+	private static ThreadFactory createThreadFactory() {
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(ofVirtual.invoke(null));
+		} catch (ReflectiveOperationException e) {
+			LOGGER.warning("Virtual threads not available, using platform threads per connection");
+			return Executors.defaultThreadFactory();
+		}
+	}
+
+	public void run() {
+		while (true) {
+			try {
+				// Blocking accept. Every connection is served by its own threads
+				SocketChannel socketChannel = serverSocketChannel.accept();
+				int session = eventHandler.newSession();
+				BlockingConnection connection = new BlockingConnection(socketChannel, session);
+				connections.set(session, connection);
+				this.eventHandler.openSession(this, session, socketChannel);
+				threadFactory.newThread(connection.reader()).start();
+				threadFactory.newThread(connection.writer()).start();
+			} catch (IOException e) {
+				LOGGER.info("Exception occured while accepting connection" + e.getMessage());
+			}
+		}
+	}
+
+	public void send(int session, byte[] data) {
+		send(session, eventHandler.getBufferPool().copyOf(data), false);
+	}
+
+	public void send(int session, ByteBuffer data) {
+		send(session, data, false);
+	}
+
+	// Room messages over the connection's budget are dropped. The other overflow
+	// policies are only implemented by the selector engine
+	public void send(int session, ByteBuffer data, boolean roomMessage) {
+		send(session, PooledBuffer.wrap(data), roomMessage);
+	}
+
+	public void send(int session, PooledBuffer data, boolean roomMessage) {
+		BlockingConnection connection = connections.get(session);
+		if (connection == null) {
+			data.release();
+			return;
+		}
+		int size = data.remaining();
+		// Eg. /history in a room without messages. Nothing to write
+		if (size == 0) {
+			data.release();
+			return;
+		}
+		if (roomMessage && outboundBudget.isOverBudget(connection.queuedBytes.get(), size)) {
+			outboundBudget.recordDrop(size);
+			data.release();
+			return;
+		}
+		outboundBudget.reserve(connection.queuedBytes.getAndAdd(size), size);
+		connection.outbound.add(data);
+	}
+
+	// The writer closes the connection once it has written everything queued
+	public void close(int session, String notice) {
+		BlockingConnection connection = connections.get(session);
+		if (connection != null) {
+			connection.closeRequested = true;
+			send(session, notice.getBytes());
+		}
+	}
+
+	// Called from the channel's reader thread, which waits before its next read
+	public void pauseReading(int session, long nanos) {
+		BlockingConnection connection = connections.get(session);
+		if (connection != null) {
+			connection.resumeReadingNanos = System.nanoTime() + nanos;
+		}
+	}
+
+	public void onLine(int session, byte[] data, int offset, int length) {
+		this.eventHandler.processData(this, session, data, offset, length);
+	}
+
+	public void onLineTooLong(int session) {
+		String message = "Line too long. Maximum is " + MAX_LINE_LENGTH + " characters\n";
+		send(session, message.getBytes());
+	}
+
+	private class BlockingConnection implements ConnectionStats {
+		private SocketChannel socketChannel;
+		private final int session;
+		private LineFramer lineFramer = new LineFramer(MAX_LINE_LENGTH);
+		private BlockingQueue<PooledBuffer> outbound = new LinkedBlockingQueue<PooledBuffer>();
+		private AtomicLong queuedBytes = new AtomicLong();
+		private volatile long bytesIn;
+		private volatile long bytesOut;
+		private volatile long writeCalls;
+
+		// Set by pauseReading while the rate limits hold back this connection's input
+		private long resumeReadingNanos;
+
+		// Set by whichever of reader and writer closes the connection first
+		private boolean closed;
+
+		// Set by close(session, notice). The writer closes once the queue is drained
+		private volatile boolean closeRequested;
+
+		BlockingConnection(SocketChannel socketChannel, int session) {
+			this.socketChannel = socketChannel;
+			this.session = session;
+		}
+
+		Runnable reader() {
+			return () -> {
+				ByteBuffer buffer = ByteBuffer.allocate(16384);
+				try {
+					int numRead;
+					while ((numRead = socketChannel.read(buffer)) != -1) {
+						// Begun once the read returned, the blocking read would count the
+						// client's idle time. Like the reactor it then records the bytes read
+						ReadEvent trace = MessageTrace.beginRead();
+						MessageTrace.endRead(trace);
+						bytesIn += numRead;
+						metrics.recordBytesIn(numRead);
+						lineFramer.frame(session, buffer.array(), 0, buffer.position(),
+								VirtualThreadChatServer.this);
+						MessageTrace.commitRead(trace, session, numRead);
+						buffer.clear();
+						long pause;
+						while ((pause = resumeReadingNanos - System.nanoTime()) > 0) {
+							LockSupport.parkNanos(pause);
+						}
+					}
+				} catch (IOException e) {
+					// Peer went away
+				}
+				close();
+			};
+		}
+
+		// Blocks until there is something to write and then writes everything queued
+		Runnable writer() {
+			return () -> {
+				List<PooledBuffer> pending = new ArrayList<PooledBuffer>();
+				try {
+					while (socketChannel.isOpen()) {
+						pending.add(outbound.take());
+						outbound.drainTo(pending, MAX_GATHER - 1);
+						ByteBuffer[] buffers = new ByteBuffer[pending.size()];
+						boolean traced = false;
+						long total = 0;
+						for (int i = 0; i < buffers.length; i++) {
+							buffers[i] = pending.get(i).view();
+							traced |= pending.get(i).getTraceId() != 0;
+							total += buffers[i].remaining();
+						}
+						// What the views of traced messages had left before each write
+						int[] remaining = traced ? new int[buffers.length] : null;
+						// Written until nothing is left, any of the buffers may be empty
+						long written = 0;
+						while (written < total) {
+							for (int i = 0; traced && i < buffers.length; i++) {
+								remaining[i] = buffers[i].remaining();
+							}
+							written += socketChannel.write(buffers);
+							for (int i = 0; traced && i < buffers.length; i++) {
+								if (pending.get(i).getTraceId() != 0) {
+									MessageTrace.written(pending.get(i), session, remaining[i],
+											buffers[i].remaining());
+								}
+							}
+							writeCalls++;
+							metrics.recordWrite(written < total ? 0 : buffers.length);
+						}
+						outboundBudget.release(queuedBytes.getAndAdd(-written), written);
+						bytesOut += written;
+						metrics.recordBytesOut(written);
+						release(pending);
+						if (closeRequested && outbound.isEmpty()) {
+							break;
+						}
+					}
+				} catch (IOException | InterruptedException e) {
+					// Channel closed by the reader or by /quit
+				}
+				release(pending);
+				close();
+			};
+		}
+
+		private void release(List<PooledBuffer> buffers) {
+			for (PooledBuffer buffer : buffers) {
+				buffer.release();
+			}
+			buffers.clear();
+		}
+
+		public String getRemoteAddress() {
+			return String.valueOf(socketChannel.socket().getRemoteSocketAddress());
+		}
+
+		public long getBytesIn() {
+			return bytesIn;
+		}
+
+		public long getBytesOut() {
+			return bytesOut;
+		}
+
+		public long getQueuedBytes() {
+			return queuedBytes.get();
+		}
+
+		public long getWriteCalls() {
+			return writeCalls;
+		}
+
+		public boolean isThrottled() {
+			return false;
+		}
+
+		private void close() {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+			}
+			long left = queuedBytes.getAndSet(0);
+			outboundBudget.release(left, left);
+			List<PooledBuffer> queued = new ArrayList<PooledBuffer>();
+			outbound.drainTo(queued);
+			release(queued);
+			// Wakes up the writer if it is waiting for data
+			outbound.add(PooledBuffer.wrap(ByteBuffer.allocate(0)));
+			try {
+				socketChannel.close();
+			} catch (IOException e) {
+				LOGGER.info("Exception occured while closing channel" + e.getMessage());
+			}
+			connections.remove(session);
+			eventHandler.connectionClosed(VirtualThreadChatServer.this, session);
+		}
+	}
+}
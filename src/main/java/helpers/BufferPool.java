@@ -0,0 +1,203 @@
+package main.java.helpers;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Size classed pool of direct buffers for outbound messages. Direct memory is
+ * allocated in 1MB slabs and sliced into the buffers of one size class, so
+ * socket writes need no hidden copy into a temporary direct buffer and
+ * sending a message allocates no new memory. Free buffers of a class are kept
+ * on an intrusive stack guarded by that class's lock.
+ *
+ * Messages larger than the largest class, or leased while a class is at its
+ * limit, fall back to plain heap buffers.
+ *
+ * In debug mode every lease remembers where it was taken. Leases that are not
+ * released within chat.buffers.leakMillis are logged with that stack trace, and
+ * so is every second release of a buffer.
+ */
+public class BufferPool {
+    private final static Logger LOGGER = Logger.getLogger(BufferPool.class.getName());
+
+    private static final int[] SIZE_CLASSES = { 256, 1024, 4096, 16384, 65536 };
+
+    private static final int SLAB_SIZE = 1024 * 1024;
+
+    private static final long LEAK_MILLIS = Long.getLong("chat.buffers.leakMillis", 60000);
+
+    // Direct memory a single size class may take
+    private final long classLimit;
+
+    private final boolean debug;
+
+    // Head of the free stack and the bytes allocated, per size class. Guarded by locks[i]
+    private final PooledBuffer[] free = new PooledBuffer[SIZE_CLASSES.length];
+    private final long[] allocated = new long[SIZE_CLASSES.length];
+    private final Object[] locks = new Object[SIZE_CLASSES.length];
+
+    private final LongAdder leases = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+
+    // Debug mode only. Where and when every outstanding lease was taken
+    private final Map<PooledBuffer, LeaseTrace> outstanding = new ConcurrentHashMap<PooledBuffer, LeaseTrace>();
+
+    private static class LeaseTrace extends Throwable {
+	private static final long serialVersionUID = 1L;
+
+	final long leasedAt = System.currentTimeMillis();
+
+	LeaseTrace() {
+	    super("Pooled buffer leased here");
+	}
+    }
+
+    public BufferPool(long maxBytes, boolean debug) {
+	this.classLimit = maxBytes / SIZE_CLASSES.length;
+	this.debug = debug;
+	for (int i = 0; i < locks.length; i++) {
+	    locks[i] = new Object();
+	}
+	if (debug) {
+	    Thread checker = new Thread(this::checkLeaks, "chat-buffer-leaks");
+	    checker.setDaemon(true);
+	    checker.start();
+	}
+    }
+
+    // Defaults to 64MB of direct memory, debug mode with -Dchat.buffers.debug=true
+    public static BufferPool fromProperties() {
+	return new BufferPool(Long.getLong("chat.buffers.poolBytes", 64 * 1024 * 1024),
+		Boolean.getBoolean("chat.buffers.debug"));
+    }
+
+    // A private copy of the bytes, released once by the one recipient
+    public PooledBuffer copyOf(byte[] bytes) {
+	return lease(bytes, 1, false);
+    }
+
+    // A read only copy of the bytes shared by the given number of recipients, each
+    // of them releases it once
+    public PooledBuffer share(byte[] bytes, int references) {
+	return lease(bytes, references, true);
+    }
+
+    private PooledBuffer lease(byte[] bytes, int references, boolean readOnly) {
+	int sizeClass = sizeClassOf(bytes.length);
+	PooledBuffer buffer = sizeClass < 0 ? null : pop(sizeClass);
+	if (buffer == null) {
+	    misses.increment();
+	    ByteBuffer heap = ByteBuffer.wrap(bytes);
+	    return PooledBuffer.wrap(readOnly ? heap.asReadOnlyBuffer() : heap);
+	}
+	leases.increment();
+	buffer.fill(bytes, 0, bytes.length, references, readOnly);
+	if (debug) {
+	    outstanding.put(buffer, new LeaseTrace());
+	}
+	return buffer;
+    }
+
+    private static int sizeClassOf(int size) {
+	for (int i = 0; i < SIZE_CLASSES.length; i++) {
+	    if (size <= SIZE_CLASSES[i]) {
+		return i;
+	    }
+	}
+	return -1;
+    }
+
+    private PooledBuffer pop(int sizeClass) {
+	synchronized (locks[sizeClass]) {
+	    if (free[sizeClass] == null && allocated[sizeClass] + SLAB_SIZE <= classLimit) {
+		allocateSlab(sizeClass);
+	    }
+	    PooledBuffer buffer = free[sizeClass];
+	    if (buffer != null) {
+		free[sizeClass] = buffer.nextFree;
+		buffer.nextFree = null;
+	    }
+	    return buffer;
+	}
+    }
+
+    // Called with the class's lock held
+    private void allocateSlab(int sizeClass) {
+	ByteBuffer slab = ByteBuffer.allocateDirect(SLAB_SIZE);
+	int size = SIZE_CLASSES[sizeClass];
+	for (int offset = 0; offset + size <= SLAB_SIZE; offset += size) {
+	    slab.limit(offset + size).position(offset);
+	    PooledBuffer buffer = new PooledBuffer(this, sizeClass, slab.slice());
+	    buffer.nextFree = free[sizeClass];
+	    free[sizeClass] = buffer;
+	}
+	allocated[sizeClass] += SLAB_SIZE;
+    }
+
+    // Called by the last release of a pooled buffer
+    void recycle(PooledBuffer buffer) {
+	if (debug) {
+	    outstanding.remove(buffer);
+	}
+	int sizeClass = buffer.getSizeClass();
+	synchronized (locks[sizeClass]) {
+	    buffer.nextFree = free[sizeClass];
+	    free[sizeClass] = buffer;
+	}
+    }
+
+    void releasedTwice(PooledBuffer buffer) {
+	if (debug) {
+	    LOGGER.log(Level.SEVERE, "Pooled buffer released more often than it was shared",
+		    new Throwable("Released twice"));
+	}
+    }
+
+    private void checkLeaks() {
+	while (true) {
+	    try {
+		Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+	    } catch (InterruptedException e) {
+		return;
+	    }
+	    long now = System.currentTimeMillis();
+	    for (Map.Entry<PooledBuffer, LeaseTrace> lease : outstanding.entrySet()) {
+		long age = now - lease.getValue().leasedAt;
+		if (age > LEAK_MILLIS && outstanding.remove(lease.getKey(), lease.getValue())) {
+		    leaks.increment();
+		    LOGGER.log(Level.WARNING, "Pooled buffer not released after " + age + "ms",
+			    lease.getValue());
+		}
+	    }
+	}
+    }
+
+    public long getLeases() {
+	return leases.sum();
+    }
+
+    // Leases served from the heap because the message was too large or the pool was full
+    public long getMisses() {
+	return misses.sum();
+    }
+
+    public long getLeaks() {
+	return leaks.sum();
+    }
+
+    public long getPooledBytes() {
+	long total = 0;
+	for (int i = 0; i < allocated.length; i++) {
+	    synchronized (locks[i]) {
+		total += allocated[i];
+	    }
+	}
+	return total;
+    }
+}
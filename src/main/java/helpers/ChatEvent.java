@@ -1,16 +1,15 @@
 package main.java.helpers;
-import java.nio.channels.SocketChannel;
 
-import main.java.ChatServer;
+import main.java.ChatTransport;
 
 public class ChatEvent {
-    public ChatServer chatServer;
-    public SocketChannel socketChannel;
+    public ChatTransport chatServer;
+    public int session;
     public byte[] data;
 
-    public ChatEvent(ChatServer server, SocketChannel socket, byte[] data) {
+    public ChatEvent(ChatTransport server, int session, byte[] data) {
 	this.chatServer = server;
-	this.socketChannel = socket;
+	this.session = session;
 	this.data = data;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,236 @@
+package main.java.helpers;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/*
+ * Counters and histograms recorded on the hot paths. Everything is a striped
+ * LongAdder or a fixed bucket Histogram, recording never allocates or locks.
+ * Read through /stats and through JMX.
+ */
+public class ChatMetrics implements ChatMetricsMBean {
+    private final static Logger LOGGER = Logger.getLogger(ChatMetrics.class.getName());
+
+    // Connections shown in the /stats report, busiest first
+    private static final int TOP_CONNECTIONS = 5;
+
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    // Socket writes and the messages they completed, for the messages per system call
+    private final LongAdder writeCalls = new LongAdder();
+    private final LongAdder messagesWritten = new LongAdder();
+    private final LongAdder selectWakeups = new LongAdder();
+    private final LongAdder dispatchQueueDepth = new LongAdder();
+
+    // Inbound lines refused by the rate limits
+    private final LongAdder rateLimitedLines = new LongAdder();
+
+    // Room messages left out of the search index because its backlog was full
+    private final LongAdder unindexedMessages = new LongAdder();
+
+    // Nanoseconds from the read of a chat line to its copy being queued for the last member
+    private final Histogram readToFanout = new Histogram();
+
+    // Nanoseconds a connection's outbound queue stayed non empty until it was drained
+    private final Histogram outboundWait = new Histogram();
+
+    // Members reached per broadcast
+    private final Histogram fanout = new Histogram();
+
+    private final long startNanos = System.nanoTime();
+
+    // Pool of the outbound buffers, set by the handler
+    private volatile BufferPool bufferPool;
+
+    // Live view of the open connections, set by the server engine
+    private volatile Collection<? extends ConnectionStats> connections = Collections.emptyList();
+
+    // select() wakeups at the previous report, for the rate since then
+    private long lastWakeups;
+    private long lastReportNanos = startNanos;
+
+    public void setConnections(Collection<? extends ConnectionStats> connections) {
+	this.connections = connections;
+    }
+
+    public void setBufferPool(BufferPool bufferPool) {
+	this.bufferPool = bufferPool;
+    }
+
+    public void registerMBean() {
+	try {
+	    ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+		    new ObjectName("main.java:type=ChatMetrics"));
+	} catch (JMException e) {
+	    LOGGER.warning("Could not register metrics with JMX " + e.getMessage());
+	}
+    }
+
+    public void recordBytesIn(long bytes) {
+	bytesIn.add(bytes);
+    }
+
+    public void recordBytesOut(long bytes) {
+	bytesOut.add(bytes);
+    }
+
+    public void recordWrite(int messages) {
+	writeCalls.increment();
+	messagesWritten.add(messages);
+    }
+
+    public void recordSelectWakeup() {
+	selectWakeups.increment();
+    }
+
+    public void taskQueued() {
+	dispatchQueueDepth.increment();
+    }
+
+    public void taskStarted() {
+	dispatchQueueDepth.decrement();
+    }
+
+    public void recordRateLimited() {
+	rateLimitedLines.increment();
+    }
+
+    public void recordUnindexed() {
+	unindexedMessages.increment();
+    }
+
+    public void recordBroadcast(long readNanos, int recipients) {
+	readToFanout.record(System.nanoTime() - readNanos);
+	fanout.record(recipients);
+    }
+
+    public void recordOutboundWait(long nanos) {
+	outboundWait.record(nanos);
+    }
+
+    public int getConnections() {
+	return connections.size();
+    }
+
+    public long getBytesIn() {
+	return bytesIn.sum();
+    }
+
+    public long getBytesOut() {
+	return bytesOut.sum();
+    }
+
+    public long getWriteCalls() {
+	return writeCalls.sum();
+    }
+
+    public double getMessagesPerWrite() {
+	long calls = writeCalls.sum();
+	return calls == 0 ? 0 : (double) messagesWritten.sum() / calls;
+    }
+
+    public long getSelectWakeups() {
+	return selectWakeups.sum();
+    }
+
+    public long getDispatchQueueDepth() {
+	return dispatchQueueDepth.sum();
+    }
+
+    public long getRateLimitedLines() {
+	return rateLimitedLines.sum();
+    }
+
+    public long getUnindexedMessages() {
+	return unindexedMessages.sum();
+    }
+
+    public long getBroadcasts() {
+	return fanout.getCount();
+    }
+
+    public double getMeanFanout() {
+	return fanout.getMean();
+    }
+
+    public long getReadToFanoutP50Micros() {
+	return micros(readToFanout.getPercentile(50));
+    }
+
+    public long getReadToFanoutP99Micros() {
+	return micros(readToFanout.getPercentile(99));
+    }
+
+    public long getOutboundWaitP50Micros() {
+	return micros(outboundWait.getPercentile(50));
+    }
+
+    public long getOutboundWaitP99Micros() {
+	return micros(outboundWait.getPercentile(99));
+    }
+
+    // Text shown by /stats. Not on a hot path, so it may allocate
+    public synchronized String getReport() {
+	long now = System.nanoTime();
+	long wakeups = selectWakeups.sum();
+	double seconds = Math.max(1, now - lastReportNanos) / 1e9;
+	long wakeupsPerSecond = (long) ((wakeups - lastWakeups) / seconds);
+	lastWakeups = wakeups;
+	lastReportNanos = now;
+
+	StringBuilder report = new StringBuilder("Server statistics:\n");
+	report.append(" * uptime: ").append(TimeUnit.NANOSECONDS.toSeconds(now - startNanos))
+		.append("s\n");
+	report.append(" * connections: ").append(getConnections()).append('\n');
+	report.append(" * bytes in/out: ").append(getBytesIn()).append('/').append(getBytesOut())
+		.append('\n');
+	report.append(" * write calls: ").append(getWriteCalls()).append(", messages per write ")
+		.append(String.format("%.1f", getMessagesPerWrite())).append('\n');
+	report.append(" * select wakeups/s: ").append(wakeupsPerSecond).append('\n');
+	report.append(" * dispatch queue depth: ").append(getDispatchQueueDepth()).append('\n');
+	report.append(" * rate limited lines: ").append(getRateLimitedLines()).append('\n');
+	report.append(" * unindexed messages: ").append(getUnindexedMessages()).append('\n');
+	report.append(" * broadcasts: ").append(getBroadcasts()).append(", mean fanout ")
+		.append(String.format("%.1f", getMeanFanout())).append(", max fanout <= ")
+		.append(fanout.getPercentile(100)).append('\n');
+	report.append(" * read to fanout p50/p99: ").append(getReadToFanoutP50Micros())
+		.append('/').append(getReadToFanoutP99Micros()).append("us\n");
+	report.append(" * outbound wait p50/p99: ").append(getOutboundWaitP50Micros())
+		.append('/').append(getOutboundWaitP99Micros()).append("us\n");
+	BufferPool pool = bufferPool;
+	if (pool != null) {
+	    report.append(" * buffer pool: ").append(pool.getPooledBytes() / 1024)
+		    .append("KB direct, ").append(pool.getLeases()).append(" leases, ")
+		    .append(pool.getMisses()).append(" heap fallbacks, ").append(pool.getLeaks())
+		    .append(" leaks\n");
+	}
+
+	List<ConnectionStats> busiest = new ArrayList<ConnectionStats>(connections);
+	busiest.sort((a, b) -> Long.compare(b.getBytesOut(), a.getBytesOut()));
+	report.append("Busiest connections (in/out/queued bytes, write calls):\n");
+	for (ConnectionStats connection : busiest.subList(0, Math.min(TOP_CONNECTIONS,
+		busiest.size()))) {
+	    report.append(" * ").append(connection.getRemoteAddress()).append(' ')
+		    .append(connection.getBytesIn()).append('/').append(connection.getBytesOut())
+		    .append('/').append(connection.getQueuedBytes()).append(", ")
+		    .append(connection.getWriteCalls())
+		    .append(connection.isThrottled() ? " (throttled)" : "").append('\n');
+	}
+	report.append("end of list.\n");
+	return report.toString();
+    }
+
+    private static long micros(long nanos) {
+	return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,39 @@
+package main.java.helpers;
+
+/*
+ * JMX view of ChatMetrics. Latencies are in microseconds
+ */
+public interface ChatMetricsMBean {
+
+    int getConnections();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getWriteCalls();
+
+    double getMessagesPerWrite();
+
+    long getSelectWakeups();
+
+    long getDispatchQueueDepth();
+
+    long getRateLimitedLines();
+
+    long getUnindexedMessages();
+
+    long getBroadcasts();
+
+    double getMeanFanout();
+
+    long getReadToFanoutP50Micros();
+
+    long getReadToFanoutP99Micros();
+
+    long getOutboundWaitP50Micros();
+
+    long getOutboundWaitP99Micros();
+
+    String getReport();
+}
@@ -1,13 +1,16 @@
 package main.java.helpers;
 
 public enum ChatOptions {
-    ROOMS("/rooms", "Returns all the chat rooms"), 
+    ROOMS("/rooms", "Returns all the chat rooms. \"/rooms 2\" returns the second page of them"), 
     JOIN("/join ", "Type joined followed by group name to enter group"), // space is intentional	
     HELP("/help", "Shows the options available"),
     CREATE("/create ", "Create a group. Eg. \"/create newgroup\" will create a group with name newgroup"),
     LEAVE("/leave", "This option is used to leave a room. Is available only while you are inside a room"),
     MESSAGE("/message", "Used to send a private message to a particular user in a group. Enter /message <username> <message>"),
     MEMBERS("/members", "Shows the members in the group"),
+    HISTORY("/history", "Shows the last messages of the group. Eg. \"/history 20\" shows the last 20 messages"),
+    SEARCH("/search", "Shows the latest messages of the group containing all the given words. Eg. \"/search release date\""),
+    STATS("/stats", "Shows server statistics. Only available to admins"),
     QUIT("/quit", "Quit from Chat");
     
 
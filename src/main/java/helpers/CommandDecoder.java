@@ -0,0 +1,100 @@
+package main.java.helpers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Matches the ChatOptions commands directly on the bytes of a line. The
+ * commands are compiled once into a trie, a line is matched by walking it
+ * byte by byte. Like String.startsWith the longest command that is a prefix
+ * of the line wins. The argument is returned as a trimmed slice of the line,
+ * nothing is copied or decoded.
+ */
+public class CommandDecoder {
+
+    // Commands are plain ASCII
+    private static final int ALPHABET = 128;
+
+    // transitions[state][byte] is the next state, 0 when there is none. State 0 is the root
+    private static final int[][] transitions;
+    private static final ChatOptions[] accepting;
+
+    static {
+	List<int[]> states = new ArrayList<int[]>();
+	List<ChatOptions> options = new ArrayList<ChatOptions>();
+	states.add(new int[ALPHABET]);
+	options.add(null);
+	for (ChatOptions option : ChatOptions.values()) {
+	    int state = 0;
+	    for (char c : option.getOptionCommand().toCharArray()) {
+		if (states.get(state)[c] == 0) {
+		    states.get(state)[c] = states.size();
+		    states.add(new int[ALPHABET]);
+		    options.add(null);
+		}
+		state = states.get(state)[c];
+	    }
+	    options.set(state, option);
+	}
+	transitions = states.toArray(new int[states.size()][]);
+	accepting = options.toArray(new ChatOptions[options.size()]);
+    }
+
+    // Result of decoding one line. Reused by the caller, see decode
+    public static class Command {
+	private ChatOptions option;
+	private int argumentOffset;
+	private int argumentLength;
+
+	// The matched command or null if the line does not start with one
+	public ChatOptions getOption() {
+	    return option;
+	}
+
+	public int getArgumentOffset() {
+	    return argumentOffset;
+	}
+
+	public int getArgumentLength() {
+	    return argumentLength;
+	}
+
+	// Only decodes the argument when the caller really needs it as a String
+	public String getArgument(byte[] data) {
+	    return new String(data, argumentOffset, argumentLength);
+	}
+    }
+
+    private CommandDecoder() {
+    }
+
+    // Fills in and returns command. When no command matches the argument is the whole line
+    public static Command decode(byte[] data, int offset, int length, Command command) {
+	int end = offset + length;
+	int state = 0;
+	ChatOptions matched = null;
+	int matchEnd = offset;
+	for (int i = offset; i < end; i++) {
+	    int b = data[i];
+	    if (b < 0 || (state = transitions[state][b]) == 0) {
+		break;
+	    }
+	    if (accepting[state] != null) {
+		matched = accepting[state];
+		matchEnd = i + 1;
+	    }
+	}
+
+	int start = matchEnd;
+	while (start < end && (data[start] & 0xff) <= ' ') {
+	    start++;
+	}
+	while (end > start && (data[end - 1] & 0xff) <= ' ') {
+	    end--;
+	}
+	command.option = matched;
+	command.argumentOffset = start;
+	command.argumentLength = end - start;
+	return command;
+    }
+}
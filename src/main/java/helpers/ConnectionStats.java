@@ -0,0 +1,20 @@
+package main.java.helpers;
+
+/*
+ * Per connection numbers reported by /stats
+ */
+public interface ConnectionStats {
+
+    String getRemoteAddress();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getQueuedBytes();
+
+    // Socket writes issued, each one system call
+    long getWriteCalls();
+
+    boolean isThrottled();
+}
@@ -0,0 +1,59 @@
+package main.java.helpers;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Fixed bucket histogram for non negative values. Bucket i counts the values
+ * that need i bits, so the buckets are powers of two wide and recording is a
+ * single atomic increment with no allocation. Percentiles are reported as the
+ * upper bound of the bucket they fall into, which is within a factor of two.
+ */
+public class Histogram {
+
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    public void record(long value) {
+	if (value < 0) {
+	    value = 0;
+	}
+	buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(value));
+	count.increment();
+	sum.add(value);
+    }
+
+    public long getCount() {
+	return count.sum();
+    }
+
+    public double getMean() {
+	long n = count.sum();
+	return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    // percentile between 0 and 100
+    public long getPercentile(double percentile) {
+	long total = 0;
+	long[] counts = new long[BUCKETS];
+	for (int i = 0; i < BUCKETS; i++) {
+	    counts[i] = buckets.get(i);
+	    total += counts[i];
+	}
+	if (total == 0) {
+	    return 0;
+	}
+	long rank = (long) Math.ceil(total * percentile / 100);
+	long seen = 0;
+	for (int i = 0; i < BUCKETS; i++) {
+	    seen += counts[i];
+	    if (seen >= rank) {
+		return i == 0 ? 0 : (1L << i) - 1;
+	    }
+	}
+	return Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,148 @@
+package main.java.helpers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/*
+ * Append only message log of one room, split into fixed size segment files
+ * that are memory mapped. An append is a copy into the mapping, the operating
+ * system writes the pages back on its own, so appending never waits for the
+ * disk. Every record is a 4 byte length followed by the message. Segments are
+ * zero filled when created, a length of 0 marks the end of the written part.
+ * Only the newest maxSegments segments are kept.
+ *
+ * Only the segment being appended to is mapped, on the first append. unmap
+ * gives the mapping back while the room is idle, so the number of mappings
+ * follows the active rooms rather than all rooms. Older segments are read,
+ * not mapped.
+ */
+public class HistoryLog {
+
+    private static final String SUFFIX = ".log";
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    // Oldest first. The last one is the segment being appended to
+    private final Deque<File> segments = new ArrayDeque<File>();
+    private long currentNumber;
+
+    // Null while unmapped. Where it continues once mapped again, -1 until the end of the
+    // written part was looked for
+    private MappedByteBuffer current;
+    private int currentPosition = -1;
+
+    public HistoryLog(File directory, int segmentSize, int maxSegments) throws IOException {
+	this.directory = directory;
+	this.segmentSize = segmentSize;
+	this.maxSegments = maxSegments;
+	if (!directory.isDirectory() && !directory.mkdirs()) {
+	    throw new IOException("Can not create history directory " + directory);
+	}
+	File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+	Arrays.sort(files);
+	for (File file : files) {
+	    segments.add(file);
+	}
+	if (segments.isEmpty()) {
+	    roll();
+	} else {
+	    currentNumber = Long.parseLong(segments.getLast().getName().replace(SUFFIX, ""));
+	}
+    }
+
+    public void append(byte[] message) throws IOException {
+	if (message.length + 4 > segmentSize) {
+	    return;
+	}
+	// 4 more bytes so a zero length always follows the last record
+	if (current().remaining() < message.length + 8) {
+	    roll();
+	}
+	current().putInt(message.length).put(message);
+    }
+
+    // Gives the mapping back, the next append maps the segment again
+    public void unmap() {
+	if (current != null) {
+	    currentPosition = current.position();
+	    MappedFiles.unmap(current);
+	    current = null;
+	}
+    }
+
+    // Reads the newest records. Only used when a room is loaded, never on the hot path
+    public List<byte[]> readLast(int count) throws IOException {
+	Deque<byte[]> last = new ArrayDeque<byte[]>(count);
+	for (File segment : segments) {
+	    // Not created until the first append
+	    if (!segment.exists()) {
+		continue;
+	    }
+	    ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(segment.toPath()));
+	    while (buffer.remaining() >= 4) {
+		int length = buffer.getInt();
+		if (length <= 0 || length > buffer.remaining()) {
+		    break;
+		}
+		byte[] message = new byte[length];
+		buffer.get(message);
+		if (last.size() == count) {
+		    last.removeFirst();
+		}
+		last.addLast(message);
+	    }
+	}
+	return new ArrayList<byte[]>(last);
+    }
+
+    private MappedByteBuffer current() throws IOException {
+	if (current == null) {
+	    current = map(segments.getLast());
+	    if (currentPosition < 0) {
+		skipToEnd(current);
+	    } else {
+		current.position(currentPosition);
+	    }
+	}
+	return current;
+    }
+
+    private void roll() {
+	unmap();
+	currentNumber++;
+	currentPosition = 0;
+	File segment = new File(directory, String.format("%020d", currentNumber) + SUFFIX);
+	segments.addLast(segment);
+	while (segments.size() > maxSegments) {
+	    segments.removeFirst().delete();
+	}
+    }
+
+    private MappedByteBuffer map(File segment) throws IOException {
+	try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+	    return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+	}
+    }
+
+    private static void skipToEnd(MappedByteBuffer buffer) {
+	while (buffer.remaining() >= 4) {
+	    int length = buffer.getInt(buffer.position());
+	    if (length <= 0 || length > buffer.remaining() - 4) {
+		return;
+	    }
+	    buffer.position(buffer.position() + 4 + length);
+	}
+    }
+}
@@ -0,0 +1,81 @@
+package main.java.helpers;
+
+/*
+ * Splits the inbound bytes of one connection into lines terminated by CR, LF
+ * or CRLF. Complete lines are handed out as slices of the array that was read
+ * into, only a trailing partial line is copied and kept until the rest of it
+ * arrives. Lines longer than maxLineLength are dropped up to the next line end.
+ */
+public class LineFramer {
+
+    public interface LineHandler {
+	void onLine(int session, byte[] data, int offset, int length);
+
+	void onLineTooLong(int session);
+    }
+
+    private final int maxLineLength;
+
+    // Partial line carried over from the previous read. Allocated only when needed
+    private byte[] partial;
+    private int partialLength;
+
+    // Set once a line exceeded the limit. Bytes are skipped until the next line end
+    private boolean discarding;
+
+    public LineFramer(int maxLineLength) {
+	this.maxLineLength = maxLineLength;
+    }
+
+    public void frame(int session, byte[] data, int offset, int length,
+	    LineHandler handler) {
+	int end = offset + length;
+	int lineStart = offset;
+	for (int i = offset; i < end; i++) {
+	    if (data[i] != '\n' && data[i] != '\r') {
+		continue;
+	    }
+	    int lineLength = i - lineStart;
+	    if (discarding) {
+		discarding = false;
+	    } else if (partialLength + lineLength > maxLineLength) {
+		partialLength = 0;
+		handler.onLineTooLong(session);
+	    } else if (partialLength > 0) {
+		append(data, lineStart, lineLength);
+		int completeLength = partialLength;
+		partialLength = 0;
+		handler.onLine(session, partial, 0, completeLength);
+	    } else if (lineLength > 0) {
+		// empty lines are the second half of a CRLF and are skipped
+		handler.onLine(session, data, lineStart, lineLength);
+	    }
+	    lineStart = i + 1;
+	}
+
+	int remaining = end - lineStart;
+	if (remaining == 0 || discarding) {
+	    return;
+	}
+	if (partialLength + remaining > maxLineLength) {
+	    partialLength = 0;
+	    discarding = true;
+	    handler.onLineTooLong(session);
+	    return;
+	}
+	append(data, lineStart, remaining);
+    }
+
+    private void append(byte[] data, int offset, int length) {
+	if (partial == null || partial.length < partialLength + length) {
+	    byte[] grown = new byte[Math.min(maxLineLength,
+		    Math.max(partialLength + length, partialLength * 2))];
+	    if (partialLength > 0) {
+		System.arraycopy(partial, 0, grown, 0, partialLength);
+	    }
+	    partial = grown;
+	}
+	System.arraycopy(data, offset, partial, partialLength, length);
+	partialLength += length;
+    }
+}
@@ -0,0 +1,311 @@
+package main.java.helpers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+
+/*
+ * Private messages kept for users until their next login. All mailboxes share
+ * one append only log of memory mapped segment files, like HistoryLog. The
+ * index, where each user's messages are, is kept in memory and rebuilt from
+ * the log on startup. Delivered messages are marked by a DELIVERED record for
+ * the user, so they are not delivered again after a restart.
+ *
+ * Everything runs on the store's own thread, callers never touch the disk.
+ * The same thread compacts the log in the background: the oldest segment is
+ * deleted once it holds no undelivered message, or its undelivered messages
+ * are copied to the end of the log once they are a small part of it. Only
+ * the oldest segment is ever removed, so a DELIVERED record never goes before
+ * the messages it marks. A copy is a MOVED record that names the position the
+ * message was first written at: it replaces the original when a crash left
+ * the old segment behind, and keeps a user's messages in order on startup.
+ *
+ * Record: 4 byte length of the rest, 1 byte type, 2 byte length, UTF-8 user
+ * name, message. A MOVED message starts with the 8 byte first position. A
+ * length of 0 marks the end of the written part of a segment.
+ */
+public class MailboxStore {
+    private final static Logger LOGGER = Logger.getLogger(MailboxStore.class.getName());
+
+    private static final byte MESSAGE = 1;
+    private static final byte DELIVERED = 2;
+    private static final byte MOVED = 3;
+
+    private static final String SUFFIX = ".mbx";
+
+    private final File directory;
+    private final int segmentSize;
+    private final int userLimit;
+
+    // Segments by number, oldest first. The last one is appended to. Store thread only
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private Segment current;
+
+    // Positions of every user's undelivered messages, oldest first. Store thread only
+    private final Map<String, List<Long>> index = new HashMap<String, List<Long>>();
+
+    private final ScheduledExecutorService thread = Executors.newSingleThreadScheduledExecutor(
+	    task -> {
+		Thread thread = new Thread(task, "chat-mailbox-store");
+		thread.setDaemon(true);
+		return thread;
+	    });
+
+    private static class Segment {
+	final long number;
+	final File file;
+	final MappedByteBuffer buffer;
+	// Records in the segment and the undelivered messages among them
+	int records;
+	int live;
+
+	Segment(long number, File file, MappedByteBuffer buffer) {
+	    this.number = number;
+	    this.file = file;
+	    this.buffer = buffer;
+	}
+    }
+
+    // userLimit is the number of messages kept per user, later ones are dropped
+    public MailboxStore(File directory, int segmentSize, int userLimit) throws IOException {
+	this(directory, segmentSize, userLimit, 10000);
+    }
+
+    public MailboxStore(File directory, int segmentSize, int userLimit, long compactEveryMillis)
+	    throws IOException {
+	this.directory = directory;
+	this.segmentSize = segmentSize;
+	this.userLimit = userLimit;
+	if (!directory.isDirectory() && !directory.mkdirs()) {
+	    throw new IOException("Can not create mailbox directory " + directory);
+	}
+	File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+	Arrays.sort(files);
+	for (File file : files) {
+	    long number = Long.parseLong(file.getName().replace(SUFFIX, ""));
+	    current = new Segment(number, file, map(file));
+	    segments.put(number, current);
+	    replay(current);
+	}
+	for (List<Long> messages : index.values()) {
+	    messages.sort(Comparator.comparingLong(this::origin));
+	}
+	if (current == null) {
+	    roll();
+	}
+	thread.scheduleWithFixedDelay(this::compact, compactEveryMillis, compactEveryMillis,
+		TimeUnit.MILLISECONDS);
+    }
+
+    // Keeps the message for the user. Returns right away
+    public void append(String userName, byte[] message) {
+	thread.execute(() -> {
+	    List<Long> messages = index.computeIfAbsent(userName, u -> new ArrayList<Long>());
+	    if (messages.size() >= userLimit) {
+		return;
+	    }
+	    try {
+		messages.add(write(MESSAGE, userName, message));
+	    } catch (IOException e) {
+		LOGGER.warning("Mailbox message to " + userName + " lost " + e.getMessage());
+	    }
+	});
+    }
+
+    // Hands all of the user's messages to deliver as one array, on the store's thread, and
+    // forgets them once deliver accepted them. When it returns false, eg. because the user
+    // went away again, they are kept for the next login. Nothing is handed over when there
+    // are none
+    public void deliver(String userName, Predicate<byte[]> deliver) {
+	thread.execute(() -> {
+	    List<Long> messages = index.get(userName);
+	    if (messages == null || messages.isEmpty()) {
+		return;
+	    }
+	    ByteArrayOutputStream batch = new ByteArrayOutputStream();
+	    for (long position : messages) {
+		byte[] message = read(position);
+		batch.write(message, 0, message.length);
+	    }
+	    if (!deliver.test(batch.toByteArray())) {
+		return;
+	    }
+	    index.remove(userName);
+	    for (long position : messages) {
+		segments.get(position >>> 32).live--;
+	    }
+	    try {
+		write(DELIVERED, userName, new byte[0]);
+	    } catch (IOException e) {
+		LOGGER.warning("Mailbox of " + userName + " may be delivered again " + e.getMessage());
+	    }
+	});
+    }
+
+    // The message of the MESSAGE or MOVED record at the position
+    private byte[] read(long position) {
+	ByteBuffer record = segments.get(position >>> 32).buffer.duplicate();
+	record.position((int) position);
+	int length = record.getInt();
+	byte type = record.get();
+	int nameLength = record.getShort() & 0xffff;
+	record.position(record.position() + nameLength);
+	if (type == MOVED) {
+	    record.getLong();
+	    length -= 8;
+	}
+	byte[] message = new byte[length - 3 - nameLength];
+	record.get(message);
+	return message;
+    }
+
+    // Where the message at the position was first written, before any compaction moved it
+    private long origin(long position) {
+	ByteBuffer record = segments.get(position >>> 32).buffer.duplicate();
+	record.position((int) position + 4);
+	if (record.get() != MOVED) {
+	    return position;
+	}
+	record.position(record.position() + 2 + (record.getShort(record.position()) & 0xffff));
+	return record.getLong();
+    }
+
+    // Returns the position of the record: segment number in the high, offset in the low bits
+    private long write(byte type, String userName, byte[] message) throws IOException {
+	byte[] name = userName.getBytes(StandardCharsets.UTF_8);
+	int length = 1 + 2 + name.length + message.length;
+	if (length + 8 > segmentSize) {
+	    throw new IOException("Message too long");
+	}
+	// 4 more bytes so a zero length always follows the last record
+	if (current.buffer.remaining() < length + 8) {
+	    roll();
+	}
+	long position = (current.number << 32) | current.buffer.position();
+	current.buffer.putInt(length).put(type).putShort((short) name.length).put(name)
+		.put(message);
+	current.records++;
+	if (type != DELIVERED) {
+	    current.live++;
+	}
+	return position;
+    }
+
+    // Rebuilds the index from a segment found on startup and moves to its end
+    private void replay(Segment segment) {
+	MappedByteBuffer buffer = segment.buffer;
+	while (buffer.remaining() >= 4) {
+	    int length = buffer.getInt(buffer.position());
+	    if (length <= 0 || length > buffer.remaining() - 4) {
+		return;
+	    }
+	    long position = (segment.number << 32) | buffer.position();
+	    buffer.getInt();
+	    byte type = buffer.get();
+	    byte[] name = new byte[buffer.getShort() & 0xffff];
+	    buffer.get(name);
+	    buffer.position(buffer.position() + length - 3 - name.length);
+	    String userName = new String(name, StandardCharsets.UTF_8);
+	    segment.records++;
+	    if (type == MESSAGE) {
+		index.computeIfAbsent(userName, u -> new ArrayList<Long>()).add(position);
+		segment.live++;
+	    } else if (type == MOVED) {
+		replayMoved(userName, position);
+		segment.live++;
+	    } else if (type == DELIVERED) {
+		List<Long> delivered = index.remove(userName);
+		if (delivered != null) {
+		    for (long message : delivered) {
+			segments.get(message >>> 32).live--;
+		    }
+		}
+	    }
+	}
+    }
+
+    // A copy replaces its original when a crash during compaction left the old segment
+    // behind. Once that segment is gone the copy is all there is
+    private void replayMoved(String userName, long position) {
+	List<Long> messages = index.computeIfAbsent(userName, u -> new ArrayList<Long>());
+	long origin = origin(position);
+	for (int i = 0; i < messages.size(); i++) {
+	    if (origin(messages.get(i)) == origin) {
+		segments.get(messages.get(i) >>> 32).live--;
+		messages.set(i, position);
+		return;
+	    }
+	}
+	messages.add(position);
+    }
+
+    // Removes the oldest segment when it is not needed or mostly delivered. Runs every few
+    // seconds on the store's thread
+    private void compact() {
+	while (segments.size() > 1) {
+	    Segment oldest = segments.firstEntry().getValue();
+	    if (oldest.live > 0 && oldest.live * 4 > oldest.records) {
+		return;
+	    }
+	    try {
+		if (oldest.live > 0) {
+		    moveLive(oldest);
+		}
+	    } catch (IOException e) {
+		LOGGER.warning("Mailbox compaction failed " + e.getMessage());
+		return;
+	    }
+	    segments.remove(oldest.number);
+	    if (!oldest.file.delete()) {
+		LOGGER.warning("Could not delete mailbox segment " + oldest.file);
+	    }
+	}
+    }
+
+    // Copies the undelivered messages of the segment to the end of the log
+    private void moveLive(Segment segment) throws IOException {
+	for (Map.Entry<String, List<Long>> mailbox : index.entrySet()) {
+	    List<Long> messages = mailbox.getValue();
+	    for (int i = 0; i < messages.size(); i++) {
+		if (messages.get(i) >>> 32 != segment.number) {
+		    continue;
+		}
+		byte[] message = read(messages.get(i));
+		byte[] moved = ByteBuffer.allocate(8 + message.length)
+			.putLong(origin(messages.get(i))).put(message).array();
+		messages.set(i, write(MOVED, mailbox.getKey(), moved));
+		segment.live--;
+	    }
+	}
+    }
+
+    private void roll() throws IOException {
+	long number = current == null ? 1 : current.number + 1;
+	File file = new File(directory, String.format("%020d", number) + SUFFIX);
+	current = new Segment(number, file, map(file));
+	segments.put(number, current);
+    }
+
+    private MappedByteBuffer map(File segment) throws IOException {
+	try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+	    return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+	}
+    }
+}
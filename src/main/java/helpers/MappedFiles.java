@@ -0,0 +1,52 @@
+package main.java.helpers;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.logging.Logger;
+
+/*
+ * Gives the mapping behind a MappedByteBuffer back to the operating system
+ * right away instead of when the buffer is garbage collected. A process may
+ * hold at most vm.max_map_count mappings (65530 by default), with many rooms
+ * the collector comes too late. The JDK has no public API for this, the
+ * cleaner is invoked through sun.misc.Unsafe when it is there. Otherwise the
+ * mapping is left to the collector.
+ */
+public class MappedFiles {
+    private final static Logger LOGGER = Logger.getLogger(MappedFiles.class.getName());
+
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+    static {
+	Object unsafe = null;
+	Method invokeCleaner = null;
+	try {
+	    Class<?> type = Class.forName("sun.misc.Unsafe");
+	    Field field = type.getDeclaredField("theUnsafe");
+	    field.setAccessible(true);
+	    unsafe = field.get(null);
+	    invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+	} catch (ReflectiveOperationException | RuntimeException e) {
+	    LOGGER.warning("Mappings are only released by the garbage collector " + e);
+	}
+	UNSAFE = unsafe;
+	INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private MappedFiles() {
+    }
+
+    // The buffer must not be used afterwards, no duplicate of it either: the memory is gone
+    public static void unmap(MappedByteBuffer buffer) {
+	if (INVOKE_CLEANER == null) {
+	    return;
+	}
+	try {
+	    INVOKE_CLEANER.invoke(UNSAFE, buffer);
+	} catch (ReflectiveOperationException e) {
+	    LOGGER.warning("Could not release mapping " + e);
+	}
+    }
+}
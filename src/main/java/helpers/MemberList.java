@@ -0,0 +1,114 @@
+package main.java.helpers;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/*
+ * Pre-encoded member list of one room, a " * name \n" line per member in
+ * name order. Rendered once after the members changed. The marker of the user
+ * asking is patched into the copy that user is sent. The binary form the
+ * MEMBERS reply of ChatGateway carries is rendered the same way, on first use.
+ * Only used from the room's mailbox.
+ */
+public class MemberList {
+
+    private static final byte[] YOU = "(** this is you)".getBytes();
+
+    // Null while the members need rendering
+    private byte[] lines;
+
+    // Member names and session ids in list order, and where the line of each member ends
+    // (its new line)
+    private String[] names;
+    private int[] ids;
+    private int[] lineEnds;
+
+    // Null while the members need rendering or nobody asked for the binary form yet
+    private byte[] entries;
+
+    public void invalidate() {
+	lines = null;
+	entries = null;
+    }
+
+    // header, the member lines with you marked and trailer
+    public byte[] render(byte[] header, RoomMembers members, SessionTable<User> users,
+	    String you, byte[] trailer) {
+	if (lines == null) {
+	    encode(members, users);
+	}
+	int index = Arrays.binarySearch(names, you);
+	int mark = index < 0 ? -1 : lineEnds[index];
+	int marked = mark < 0 ? 0 : YOU.length;
+	byte[] response = new byte[header.length + lines.length + marked + trailer.length];
+	System.arraycopy(header, 0, response, 0, header.length);
+	int offset = header.length;
+	if (mark < 0) {
+	    System.arraycopy(lines, 0, response, offset, lines.length);
+	} else {
+	    System.arraycopy(lines, 0, response, offset, mark);
+	    System.arraycopy(YOU, 0, response, offset + mark, YOU.length);
+	    System.arraycopy(lines, mark, response, offset + mark + YOU.length,
+		    lines.length - mark);
+	}
+	System.arraycopy(trailer, 0, response, response.length - trailer.length,
+		trailer.length);
+	return response;
+    }
+
+    // 4 byte count, then (4 byte session id, 2 byte length, UTF-8 name) per member. Shared,
+    // callers copy it
+    public byte[] entries(RoomMembers members, SessionTable<User> users) {
+	if (lines == null) {
+	    encode(members, users);
+	}
+	if (entries == null) {
+	    byte[][] encoded = new byte[names.length][];
+	    int size = 4;
+	    for (int i = 0; i < names.length; i++) {
+		encoded[i] = names[i].getBytes(StandardCharsets.UTF_8);
+		size += 4 + 2 + encoded[i].length;
+	    }
+	    ByteBuffer buffer = ByteBuffer.allocate(size).putInt(names.length);
+	    for (int i = 0; i < names.length; i++) {
+		buffer.putInt(ids[i]).putShort((short) encoded[i].length).put(encoded[i]);
+	    }
+	    entries = buffer.array();
+	}
+	return entries;
+    }
+
+    // Sessions closed and not yet removed from the room are left out
+    private void encode(RoomMembers members, SessionTable<User> users) {
+	int[] sessions = members.sessions();
+	int count = 0;
+	User[] listed = new User[members.size()];
+	for (int i = 0; i < listed.length; i++) {
+	    User member = users.get(sessions[i]);
+	    if (member != null) {
+		listed[count++] = member;
+	    }
+	}
+	Arrays.sort(listed, 0, count, Comparator.comparing(User::getUserName));
+	names = new String[count];
+	ids = new int[count];
+	for (int i = 0; i < count; i++) {
+	    names[i] = listed[i].getUserName();
+	    ids[i] = listed[i].getSession();
+	}
+	entries = null;
+
+	ByteArrayOutputStream text = new ByteArrayOutputStream();
+	lineEnds = new int[count];
+	for (int i = 0; i < count; i++) {
+	    byte[] line = (" * " + names[i] + " ").getBytes();
+	    text.write(line, 0, line.length);
+	    lineEnds[i] = text.size();
+	    text.write('\n');
+	}
+	lines = text.toByteArray();
+    }
+}
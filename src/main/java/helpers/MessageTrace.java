@@ -0,0 +1,284 @@
+package main.java.helpers;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/*
+ * The stages of a chat line as JDK Flight Recorder events, tied together by a
+ * message id: the socket read it came in with, parsing, queueing for the
+ * room's mailbox, the fan out, and the first and last byte written to every
+ * member. Only sampled lines get an id, one in chat.trace.sample (100 by
+ * default, 1 traces every line). Lines without an id record nothing. While no
+ * recording has the events enabled, sample() is a single check.
+ *
+ * Record with -XX:StartFlightRecording, the events are in the "Chat" category.
+ * A slow message shows up in the latency of its Last Byte Written events, its
+ * id leads to the other stages.
+ */
+public class MessageTrace {
+
+    private static final int SAMPLE = Math.max(1, Integer.getInteger("chat.trace.sample", 100));
+
+    private static final AtomicLong ids = new AtomicLong();
+
+    // Id of the first sampled line of the read being handled on this thread
+    private static final ThreadLocal<long[]> readIds = ThreadLocal.withInitial(() -> new long[1]);
+
+    // Tells whether a recording has the events enabled. Never committed
+    private static final ParseEvent PROBE = new ParseEvent();
+
+    @Name("chat.Read")
+    @Label("Read")
+    @Category("Chat")
+    @Description("Socket read that brought in a sampled line")
+    @StackTrace(false)
+    public static final class ReadEvent extends Event {
+	@Label("Message Id")
+	long messageId;
+
+	@Label("Session")
+	int session;
+
+	@Label("Bytes")
+	@DataAmount
+	int bytes;
+    }
+
+    @Name("chat.Parse")
+    @Label("Parse")
+    @Category("Chat")
+    @Description("Decoding and rate limiting of a sampled line")
+    @StackTrace(false)
+    public static final class ParseEvent extends Event {
+	@Label("Message Id")
+	long messageId;
+
+	@Label("Session")
+	int session;
+
+	@Label("Command")
+	String command;
+    }
+
+    @Name("chat.Enqueue")
+    @Label("Enqueue")
+    @Category("Chat")
+    @Description("Room message queued for the room's mailbox")
+    @StackTrace(false)
+    static final class EnqueueEvent extends Event {
+	@Label("Message Id")
+	long messageId;
+
+	@Label("Room")
+	String room;
+    }
+
+    @Name("chat.Dispatch")
+    @Label("Dispatch")
+    @Category("Chat")
+    @Description("Room message handled in the room's mailbox and fanned out")
+    @StackTrace(false)
+    public static final class DispatchEvent extends Event {
+	@Label("Message Id")
+	long messageId;
+
+	@Label("Room")
+	String room;
+
+	@Label("Fanout")
+	int fanout;
+
+	@Label("Queue Time")
+	@Description("Time spent waiting in the room's mailbox")
+	@Timespan(Timespan.NANOSECONDS)
+	long queueTime;
+    }
+
+    @Name("chat.FirstByteWritten")
+    @Label("First Byte Written")
+    @Category("Chat")
+    @Description("First byte of a room message written to a member")
+    @StackTrace(false)
+    static final class FirstByteWrittenEvent extends Event {
+	@Label("Message Id")
+	long messageId;
+
+	@Label("Session")
+	int session;
+
+	@Label("Queue Time")
+	@Description("Time from the fan out to the first byte written")
+	@Timespan(Timespan.NANOSECONDS)
+	long queueTime;
+    }
+
+    @Name("chat.LastByteWritten")
+    @Label("Last Byte Written")
+    @Category("Chat")
+    @Description("Last byte of a room message written to a member")
+    @StackTrace(false)
+    static final class LastByteWrittenEvent extends Event {
+	@Label("Message Id")
+	long messageId;
+
+	@Label("Session")
+	int session;
+
+	@Label("Queue Time")
+	@Description("Time from the fan out to the last byte written")
+	@Timespan(Timespan.NANOSECONDS)
+	long queueTime;
+
+	@Label("Latency")
+	@Description("Time from the line being read to the last byte written")
+	@Timespan(Timespan.NANOSECONDS)
+	long latency;
+    }
+
+    private MessageTrace() {
+    }
+
+    // Id for the line about to be handled, 0 when it is not traced
+    public static long sample() {
+	if (!PROBE.isEnabled()
+		|| (SAMPLE > 1 && ThreadLocalRandom.current().nextInt(SAMPLE) != 0)) {
+	    return 0;
+	}
+	long id = ids.incrementAndGet();
+	long[] readId = readIds.get();
+	if (readId[0] == 0) {
+	    readId[0] = id;
+	}
+	return id;
+    }
+
+    // Started before a socket read. Null while nothing is recorded
+    public static ReadEvent beginRead() {
+	if (!PROBE.isEnabled()) {
+	    return null;
+	}
+	readIds.get()[0] = 0;
+	ReadEvent event = new ReadEvent();
+	event.begin();
+	return event;
+    }
+
+    // Right after the socket read returned
+    public static void endRead(ReadEvent event) {
+	if (event != null) {
+	    event.end();
+	}
+    }
+
+    // After the lines of the read were handled. Committed only when one of them was sampled
+    public static void commitRead(ReadEvent event, int session, int bytes) {
+	if (event == null) {
+	    return;
+	}
+	long[] readId = readIds.get();
+	if (readId[0] == 0) {
+	    return;
+	}
+	event.messageId = readId[0];
+	event.session = session;
+	event.bytes = bytes;
+	event.commit();
+	readId[0] = 0;
+    }
+
+    // Null when the line is not traced
+    public static ParseEvent beginParse(long id) {
+	if (id == 0) {
+	    return null;
+	}
+	ParseEvent event = new ParseEvent();
+	event.begin();
+	return event;
+    }
+
+    // option is null for a room message
+    public static void commitParse(ParseEvent event, long id, int session, ChatOptions option) {
+	if (event == null) {
+	    return;
+	}
+	event.messageId = id;
+	event.session = session;
+	event.command = option == null ? null : option.getOptionCommand().trim();
+	event.commit();
+    }
+
+    // Returns when the message was queued, for the queue time of its Dispatch event
+    public static long enqueued(long id, String roomName) {
+	if (id == 0) {
+	    return 0;
+	}
+	EnqueueEvent event = new EnqueueEvent();
+	event.messageId = id;
+	event.room = roomName;
+	event.commit();
+	return System.nanoTime();
+    }
+
+    // Started when the mailbox runs the message
+    public static DispatchEvent beginDispatch(long id, long enqueuedNanos) {
+	if (id == 0) {
+	    return null;
+	}
+	DispatchEvent event = new DispatchEvent();
+	event.begin();
+	event.messageId = id;
+	event.queueTime = System.nanoTime() - enqueuedNanos;
+	return event;
+    }
+
+    public static void commitDispatch(DispatchEvent event, String roomName, int fanout) {
+	if (event == null) {
+	    return;
+	}
+	event.room = roomName;
+	event.fanout = fanout;
+	event.commit();
+    }
+
+    // Marks the shared buffer of a traced message before it is queued for the members
+    public static void tag(PooledBuffer buffer, long id, long readNanos) {
+	if (id != 0) {
+	    buffer.trace(id, readNanos, System.nanoTime());
+	}
+    }
+
+    // Called after a socket write for every traced buffer that was being written, with
+    // the bytes of its view left before and after the write
+    public static void written(PooledBuffer buffer, int session, int remainingBefore,
+	    int remaining) {
+	if (remaining == remainingBefore) {
+	    return;
+	}
+	long now = System.nanoTime();
+	// Traced buffers are shared, remaining() is the whole message
+	if (remainingBefore == buffer.remaining()) {
+	    FirstByteWrittenEvent event = new FirstByteWrittenEvent();
+	    event.messageId = buffer.getTraceId();
+	    event.session = session;
+	    event.queueTime = now - buffer.getTraceQueuedNanos();
+	    event.commit();
+	}
+	if (remaining == 0) {
+	    LastByteWrittenEvent event = new LastByteWrittenEvent();
+	    event.messageId = buffer.getTraceId();
+	    event.session = session;
+	    event.queueTime = now - buffer.getTraceQueuedNanos();
+	    event.latency = now - buffer.getTraceReadNanos();
+	    event.commit();
+	}
+    }
+}
@@ -0,0 +1,101 @@
+package main.java.helpers;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Limits the bytes waiting to be written, per connection and for the whole
+ * server. Shared by all connections. Checks are not atomic with the queueing
+ * itself so the limits can be overshot by a few messages under contention.
+ *
+ * Once the server as a whole is over its limit, only connections holding more
+ * than their share of the queued bytes are over budget. The share is the
+ * average over the connections with anything queued, so the slow consumers
+ * holding the memory pay for it and clients that keep up are left alone.
+ */
+public class OutboundBudget {
+
+    private final long connectionLimit;
+    private final long globalLimit;
+    private final OverflowPolicy policy;
+
+    // Bytes currently queued over all connections
+    private final AtomicLong globalQueuedBytes = new AtomicLong();
+
+    // Connections with anything queued
+    private final AtomicLong queuingConnections = new AtomicLong();
+
+    // Totals since startup
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private final AtomicLong droppedBytes = new AtomicLong();
+    private final AtomicLong disconnects = new AtomicLong();
+
+    public OutboundBudget(long connectionLimit, long globalLimit, OverflowPolicy policy) {
+	this.connectionLimit = connectionLimit;
+	this.globalLimit = globalLimit;
+	this.policy = policy;
+    }
+
+    public boolean isOverBudget(long connectionQueuedBytes, int size) {
+	if (connectionQueuedBytes + size > connectionLimit) {
+	    return true;
+	}
+	long global = globalQueuedBytes.get();
+	if (global + size <= globalLimit) {
+	    return false;
+	}
+	return connectionQueuedBytes + size > global / Math.max(1, queuingConnections.get());
+    }
+
+    // size was queued on a connection that had connectionQueuedBytes queued before
+    public void reserve(long connectionQueuedBytes, long size) {
+	globalQueuedBytes.addAndGet(size);
+	if (connectionQueuedBytes == 0 && size > 0) {
+	    queuingConnections.incrementAndGet();
+	}
+    }
+
+    // size was written or dropped on a connection that had connectionQueuedBytes queued before
+    public void release(long connectionQueuedBytes, long size) {
+	globalQueuedBytes.addAndGet(-size);
+	if (connectionQueuedBytes > 0 && connectionQueuedBytes == size) {
+	    queuingConnections.decrementAndGet();
+	}
+    }
+
+    public void recordDrop(int size) {
+	droppedMessages.incrementAndGet();
+	droppedBytes.addAndGet(size);
+    }
+
+    public void recordDisconnect() {
+	disconnects.incrementAndGet();
+    }
+
+    public OverflowPolicy getPolicy() {
+	return policy;
+    }
+
+    public long getConnectionLimit() {
+	return connectionLimit;
+    }
+
+    public long getGlobalLimit() {
+	return globalLimit;
+    }
+
+    public long getGlobalQueuedBytes() {
+	return globalQueuedBytes.get();
+    }
+
+    public long getDroppedMessages() {
+	return droppedMessages.get();
+    }
+
+    public long getDroppedBytes() {
+	return droppedBytes.get();
+    }
+
+    public long getDisconnects() {
+	return disconnects.get();
+    }
+}
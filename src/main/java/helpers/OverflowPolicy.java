@@ -0,0 +1,14 @@
+package main.java.helpers;
+
+public enum OverflowPolicy {
+    /*
+     * What happens to a connection whose outbound queue is over budget
+     * DROP_OLDEST - queued room messages are dropped, oldest first, to make space
+     * DROP_NEW - new room messages are dropped until the queue drains
+     * DISCONNECT - queued data is discarded and the client is disconnected with a notice
+     * Direct replies are never dropped by the first two policies
+     */
+	DROP_OLDEST,
+	DROP_NEW,
+	DISCONNECT
+}
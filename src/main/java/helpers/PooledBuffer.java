@@ -0,0 +1,139 @@
+package main.java.helpers;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Outbound bytes leased from a BufferPool. A buffer shared by the members of
+ * a room is reference counted, every recipient releases its reference once
+ * its copy has been written and the last one hands the memory back to the
+ * pool. Buffers that do not come from a pool are wrapped the same way, their
+ * release does nothing.
+ */
+public class PooledBuffer {
+
+    // Null when the buffer is not pooled
+    private final BufferPool pool;
+    private final int sizeClass;
+
+    // The pooled direct memory, owned by this object for as long as it lives
+    private final ByteBuffer memory;
+
+    // What is sent. The memory itself, or a read only view of it when shared
+    private ByteBuffer data;
+    private boolean shared;
+
+    private final AtomicInteger references = new AtomicInteger();
+
+    // Set by MessageTrace on the buffer of a sampled message, 0 otherwise. Written before
+    // the buffer is queued, so every recipient sees it
+    private long traceId;
+    private long traceReadNanos;
+    private long traceQueuedNanos;
+
+    // Session id of the user whose chat message this is and where its text starts, behind
+    // the user's name. -1 for anything else, written before the buffer is queued
+    private int sender = -1;
+    private int textOffset;
+
+    // Next free buffer of the same size class while this one is in the pool
+    PooledBuffer nextFree;
+
+    PooledBuffer(BufferPool pool, int sizeClass, ByteBuffer memory) {
+	this.pool = pool;
+	this.sizeClass = sizeClass;
+	this.memory = memory;
+    }
+
+    // A buffer that was not leased from a pool
+    public static PooledBuffer wrap(ByteBuffer data) {
+	PooledBuffer buffer = new PooledBuffer(null, -1, data);
+	buffer.data = data;
+	buffer.shared = data.isReadOnly();
+	buffer.references.set(1);
+	return buffer;
+    }
+
+    // Fills the memory with the given bytes. Called by the pool on lease
+    void fill(byte[] bytes, int offset, int length, int referenceCount, boolean readOnly) {
+	memory.clear();
+	memory.put(bytes, offset, length);
+	memory.flip();
+	data = readOnly ? memory.asReadOnlyBuffer() : memory;
+	shared = referenceCount > 1 || readOnly;
+	traceId = 0;
+	sender = -1;
+	references.set(referenceCount);
+    }
+
+    // The bytes to send. Do not change its position when the buffer is shared, see view
+    public ByteBuffer buffer() {
+	return data;
+    }
+
+    // A buffer the caller may consume. Recipients of a shared buffer get their own view
+    public ByteBuffer view() {
+	return shared ? data.duplicate() : data;
+    }
+
+    public int remaining() {
+	return data.remaining();
+    }
+
+    void trace(long id, long readNanos, long queuedNanos) {
+	traceId = id;
+	traceReadNanos = readNanos;
+	traceQueuedNanos = queuedNanos;
+    }
+
+    public long getTraceId() {
+	return traceId;
+    }
+
+    long getTraceReadNanos() {
+	return traceReadNanos;
+    }
+
+    long getTraceQueuedNanos() {
+	return traceQueuedNanos;
+    }
+
+    public void setSender(int session, int textOffset) {
+	this.sender = session;
+	this.textOffset = textOffset;
+    }
+
+    public int getSender() {
+	return sender;
+    }
+
+    public int getTextOffset() {
+	return textOffset;
+    }
+
+    public boolean isPooled() {
+	return pool != null;
+    }
+
+    int getSizeClass() {
+	return sizeClass;
+    }
+
+    ByteBuffer getMemory() {
+	return memory;
+    }
+
+    // Gives up one reference. The last one returns the memory to the pool
+    public void release() {
+	int left = references.decrementAndGet();
+	if (pool == null) {
+	    return;
+	}
+	if (left == 0) {
+	    data = null;
+	    pool.recycle(this);
+	} else if (left < 0) {
+	    pool.releasedTwice(this);
+	}
+    }
+}
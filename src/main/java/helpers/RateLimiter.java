@@ -0,0 +1,101 @@
+package main.java.helpers;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Token bucket limits on the inbound path, checked before a line causes any
+ * fanout work. Every user has a bucket for all of its lines and one per
+ * limited command, every room has one for the chat messages sent to it.
+ *
+ * Rates are per second and configured with
+ *  chat.rate.user / chat.rate.userBurst       lines of one user
+ *  chat.rate.room / chat.rate.roomBurst       chat messages to one room
+ *  chat.rate.<command> / chat.rate.<command>Burst   one command of one user,
+ *                                             eg. chat.rate.create
+ * A rate of 0 turns that limit off.
+ */
+public class RateLimiter {
+
+    private static final ChatOptions[] OPTIONS = ChatOptions.values();
+
+    private final double userRate;
+    private final int userBurst;
+    private final double roomRate;
+    private final int roomBurst;
+
+    // Indexed by ChatOptions ordinal. A rate of 0 means unlimited
+    private final double[] commandRates = new double[OPTIONS.length];
+    private final int[] commandBursts = new int[OPTIONS.length];
+
+    private final Map<String, TokenBucket> roomBuckets = new ConcurrentHashMap<String, TokenBucket>();
+
+    public RateLimiter() {
+	userRate = rate("user", 20);
+	userBurst = burst("user", 40);
+	roomRate = rate("room", 1000);
+	roomBurst = burst("room", 2000);
+	for (ChatOptions option : OPTIONS) {
+	    String name = option.name().toLowerCase();
+	    commandRates[option.ordinal()] = rate(name, defaultCommandRate(option));
+	    commandBursts[option.ordinal()] = burst(name, 5);
+	}
+    }
+
+    // /create writes to the state log, /rooms and /members walk every room or member and
+    // /search takes its turn in the search backlog all rooms share
+    private static double defaultCommandRate(ChatOptions option) {
+	switch (option) {
+	case CREATE:
+	    return 0.2;
+	case ROOMS:
+	case MEMBERS:
+	case SEARCH:
+	    return 1;
+	default:
+	    return 0;
+	}
+    }
+
+    private static double rate(String name, double defaultRate) {
+	return Double.parseDouble(System.getProperty("chat.rate." + name,
+		String.valueOf(defaultRate)));
+    }
+
+    private static int burst(String name, int defaultBurst) {
+	return Integer.getInteger("chat.rate." + name + "Burst", defaultBurst);
+    }
+
+    // Takes the token for one line of the user. roomName is set for chat messages only.
+    // Returns 0 when the line may be handled, otherwise the nanoseconds until it could be
+    public long acquireLine(User user, String roomName) {
+	long wait = acquire(user.getRateBuckets(), 0, userRate, userBurst);
+	if (wait == 0 && roomName != null && roomRate > 0) {
+	    wait = roomBuckets.computeIfAbsent(roomName, r -> new TokenBucket(roomRate, roomBurst))
+		    .tryAcquire();
+	}
+	return wait;
+    }
+
+    // Takes the token for one command of the user, same result as acquireLine
+    public long acquireCommand(User user, ChatOptions option) {
+	return acquire(user.getRateBuckets(), option.ordinal() + 1,
+		commandRates[option.ordinal()], commandBursts[option.ordinal()]);
+    }
+
+    // The user's buckets are only used from the thread reading the user's connection
+    private static long acquire(TokenBucket[] buckets, int index, double rate, int burst) {
+	if (rate <= 0) {
+	    return 0;
+	}
+	if (buckets[index] == null) {
+	    buckets[index] = new TokenBucket(rate, burst);
+	}
+	return buckets[index].tryAcquire();
+    }
+
+    // Number of buckets a user needs, see User.getRateBuckets
+    public static int bucketsPerUser() {
+	return OPTIONS.length + 1;
+    }
+}
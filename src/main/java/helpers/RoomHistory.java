@@ -0,0 +1,94 @@
+package main.java.helpers;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/*
+ * The most recent messages of a room, as the bytes that were sent to its
+ * members. Kept in a fixed size ring for replay and, when a HistoryLog is
+ * given, also appended to disk so they survive a restart. Not thread safe,
+ * only used from the room's mailbox.
+ */
+public class RoomHistory {
+    private final static Logger LOGGER = Logger.getLogger(RoomHistory.class.getName());
+
+    private final byte[][] ring;
+    private int next;
+    private int size;
+
+    private HistoryLog log;
+
+    // Set by add, cleared by releaseIfIdle
+    private boolean added;
+
+    public RoomHistory(int capacity, HistoryLog log) {
+	this.ring = new byte[capacity][];
+	this.log = log;
+	if (log != null) {
+	    try {
+		for (byte[] message : log.readLast(capacity)) {
+		    addToRing(message);
+		}
+	    } catch (IOException e) {
+		LOGGER.warning("Could not read room history " + e.getMessage());
+	    }
+	}
+    }
+
+    public void add(byte[] message) {
+	addToRing(message);
+	added = true;
+	if (log == null) {
+	    return;
+	}
+	try {
+	    log.append(message);
+	} catch (IOException e) {
+	    // Keep the room going with the in memory history only
+	    LOGGER.warning("Could not write room history, disabling the log " + e.getMessage());
+	    log = null;
+	}
+    }
+
+    // Gives the log's mapping back when nothing was added since the last call
+    public void releaseIfIdle() {
+	if (!added && log != null) {
+	    log.unmap();
+	}
+	added = false;
+    }
+
+    // The last count messages, oldest first, joined into one array so they go out in one write
+    public byte[] last(int count) {
+	count = Math.min(count, size);
+	int length = 0;
+	for (int i = size - count; i < size; i++) {
+	    length += get(i).length;
+	}
+	byte[] joined = new byte[length];
+	int position = 0;
+	for (int i = size - count; i < size; i++) {
+	    byte[] message = get(i);
+	    System.arraycopy(message, 0, joined, position, message.length);
+	    position += message.length;
+	}
+	return joined;
+    }
+
+    public int size() {
+	return size;
+    }
+
+    private void addToRing(byte[] message) {
+	ring[next] = message;
+	next = (next + 1) % ring.length;
+	if (size < ring.length) {
+	    size++;
+	}
+    }
+
+    // index 0 is the oldest message kept
+    private byte[] get(int index) {
+	return ring[(next - size + index + ring.length) % ring.length];
+    }
+}
@@ -0,0 +1,471 @@
+package main.java.helpers;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.IntFunction;
+
+/*
+ * Inverted index over the messages of one room, for /search. New messages go
+ * to an in-memory segment that maps every word to its posting list: the
+ * numbers of the messages containing it, ascending, stored as variable length
+ * deltas. A full segment is written to an immutable file and searched through
+ * its mapping. Written segments of about the same size are merged, so a room
+ * has a few segments of growing size. The oldest are dropped once the room has
+ * more than limit messages. Without a directory only the in-memory segment is
+ * kept, it starts over when full. Messages still in the in-memory segment are
+ * not searchable after a restart, nor are those of a segment file a crash cut
+ * short. closeIfIdle writes the in-memory segment of an idle index early and
+ * gives its mappings back, so idle rooms hold neither.
+ *
+ * Not thread safe, only used from the search thread.
+ *
+ * File: 4 byte message count, 8 byte number of the oldest segment merged into
+ * it, 4 byte word count, 4 byte offset of every message. Then for every word a
+ * 2 byte length, the UTF-8 word, 4 byte posting count, 4 byte length of the
+ * postings and the postings. Then every message as a 4 byte length and its
+ * bytes. The file is named after the newest segment merged into it.
+ */
+public class RoomIndex {
+
+    private static final String SUFFIX = ".idx";
+    private static final String TEMPORARY = ".tmp";
+
+    // Longer words are not indexed
+    private static final int MAX_WORD = 32;
+
+    private static final int[] NONE = new int[0];
+
+    // Null when the index is not persisted
+    private final File directory;
+    private final int segmentMessages;
+    private final int limit;
+
+    // Written segments, oldest first, and the segment new messages are added to
+    private final List<FileSegment> files = new ArrayList<FileSegment>();
+    private MemorySegment current = new MemorySegment();
+    private long nextNumber = 1;
+
+    // Set by add and search, cleared by closeIfIdle
+    private boolean used;
+
+    private abstract static class Segment {
+	abstract int size();
+
+	// Numbers of the messages containing the word, ascending
+	abstract int[] postings(String word);
+
+	abstract byte[] message(int number);
+    }
+
+    // Ascending message numbers as deltas, 7 bits per byte, the high bit set on all but
+    // the last byte of a delta
+    private static class Postings {
+	byte[] bytes = new byte[8];
+	int length;
+	int count;
+	int last;
+
+	void add(int number) {
+	    if (length + 5 > bytes.length) {
+		bytes = Arrays.copyOf(bytes, bytes.length * 2);
+	    }
+	    int delta = number - last;
+	    while ((delta & ~0x7f) != 0) {
+		bytes[length++] = (byte) (delta | 0x80);
+		delta >>>= 7;
+	    }
+	    bytes[length++] = (byte) delta;
+	    last = number;
+	    count++;
+	}
+    }
+
+    private static class MemorySegment extends Segment {
+	final List<byte[]> messages = new ArrayList<byte[]>();
+	final Map<String, Postings> words = new HashMap<String, Postings>();
+
+	void add(byte[] message) {
+	    int number = messages.size();
+	    messages.add(message);
+	    for (String word : words(new String(message, StandardCharsets.UTF_8))) {
+		words.computeIfAbsent(word, w -> new Postings()).add(number);
+	    }
+	}
+
+	int size() {
+	    return messages.size();
+	}
+
+	int[] postings(String word) {
+	    Postings postings = words.get(word);
+	    return postings == null ? NONE : decode(ByteBuffer.wrap(postings.bytes, 0,
+		    postings.length), postings.count);
+	}
+
+	byte[] message(int number) {
+	    return messages.get(number);
+	}
+    }
+
+    private static class FileSegment extends Segment {
+	final long number;
+	final long first;
+	final File file;
+	final MappedByteBuffer buffer;
+	final int size;
+	// Where the posting count of every word is in the file
+	final Map<String, Integer> words = new HashMap<String, Integer>();
+
+	FileSegment(long number, File file) throws IOException {
+	    this.number = number;
+	    this.file = file;
+	    try (RandomAccessFile segment = new RandomAccessFile(file, "r")) {
+		buffer = segment.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+			segment.length());
+	    }
+	    try {
+		size = buffer.getInt(0);
+		first = buffer.getLong(4);
+		readWords(buffer.getInt(12));
+		// The last message ends the file
+		if (size > 0) {
+		    int last = buffer.getInt(16 + 4 * (size - 1));
+		    if ((long) last + 4 + buffer.getInt(last) != buffer.limit()) {
+			throw new IOException("Broken index segment " + file);
+		    }
+		}
+	    } catch (RuntimeException e) {
+		// Cut short, reading ran past the end
+		MappedFiles.unmap(buffer);
+		throw new IOException("Broken index segment " + file);
+	    }
+	}
+
+	// The segment must not be used afterwards
+	void delete() {
+	    MappedFiles.unmap(buffer);
+	    file.delete();
+	}
+
+	private void readWords(int wordCount) {
+	    int position = 16 + 4 * size;
+	    for (int i = 0; i < wordCount; i++) {
+		byte[] word = new byte[buffer.getShort(position) & 0xffff];
+		ByteBuffer read = buffer.duplicate();
+		read.position(position + 2);
+		read.get(word);
+		position += 2 + word.length;
+		words.put(new String(word, StandardCharsets.UTF_8), position);
+		position += 8 + buffer.getInt(position + 4);
+	    }
+	}
+
+	int size() {
+	    return size;
+	}
+
+	int[] postings(String word) {
+	    Integer position = words.get(word);
+	    if (position == null) {
+		return NONE;
+	    }
+	    ByteBuffer postings = buffer.duplicate();
+	    postings.position(position + 8);
+	    return decode(postings, buffer.getInt(position));
+	}
+
+	byte[] message(int number) {
+	    int offset = buffer.getInt(16 + 4 * number);
+	    byte[] message = new byte[buffer.getInt(offset)];
+	    ByteBuffer read = buffer.duplicate();
+	    read.position(offset + 4);
+	    read.get(message);
+	    return message;
+	}
+    }
+
+    // Kept in memory only. segmentMessages is the size of the in-memory segment
+    public RoomIndex(int segmentMessages) {
+	this.directory = null;
+	this.segmentMessages = Math.max(1, segmentMessages);
+	this.limit = segmentMessages;
+    }
+
+    // limit is the number of messages kept at least
+    public RoomIndex(File directory, int segmentMessages, int limit) throws IOException {
+	this.directory = directory;
+	this.segmentMessages = Math.max(1, segmentMessages);
+	this.limit = limit;
+	if (!directory.isDirectory() && !directory.mkdirs()) {
+	    throw new IOException("Can not create index directory " + directory);
+	}
+	for (File partial : directory.listFiles((dir, name) -> name.endsWith(TEMPORARY))) {
+	    partial.delete();
+	}
+	File[] segments = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+	Arrays.sort(segments);
+	for (File file : segments) {
+	    FileSegment segment;
+	    try {
+		segment = new FileSegment(Long.parseLong(file.getName().replace(SUFFIX, "")),
+			file);
+	    } catch (IOException e) {
+		// Renamed before its contents reached the disk
+		file.delete();
+		continue;
+	    }
+	    // Left behind by a merge that was cut short, the merged file has its messages
+	    while (!files.isEmpty() && files.get(files.size() - 1).number >= segment.first) {
+		files.remove(files.size() - 1).delete();
+	    }
+	    files.add(segment);
+	    nextNumber = segment.number + 1;
+	}
+    }
+
+    // Indexes the message. Writes and merges segments when the in-memory one is full
+    public void add(byte[] message) throws IOException {
+	used = true;
+	current.add(message);
+	if (current.size() < segmentMessages) {
+	    return;
+	}
+	if (directory == null) {
+	    current = new MemorySegment();
+	    return;
+	}
+	writeCurrent();
+    }
+
+    // Writes the in-memory segment and gives the mappings back when the index was not used
+    // since the last call. Returns true when it was closed, it must not be used any more.
+    // An index that is not persisted is never closed, it would lose its messages
+    public boolean closeIfIdle() throws IOException {
+	if (used || directory == null) {
+	    used = false;
+	    return false;
+	}
+	if (current.size() > 0) {
+	    writeCurrent();
+	}
+	for (FileSegment segment : files) {
+	    MappedFiles.unmap(segment.buffer);
+	}
+	files.clear();
+	return true;
+    }
+
+    private void writeCurrent() throws IOException {
+	Map<String, int[]> postings = new TreeMap<String, int[]>();
+	for (String word : current.words.keySet()) {
+	    postings.put(word, current.postings(word));
+	}
+	long number = nextNumber++;
+	files.add(write(number, number, current.size(), current::message, postings));
+	current = new MemorySegment();
+	merge();
+	trim();
+    }
+
+    // The newest count messages containing all the words, oldest first
+    public List<byte[]> search(Set<String> words, int count) {
+	used = true;
+	Deque<byte[]> found = new ArrayDeque<byte[]>();
+	for (int i = files.size(); i >= 0 && found.size() < count; i--) {
+	    Segment segment = i == files.size() ? current : files.get(i);
+	    int[] matches = null;
+	    for (String word : words) {
+		int[] postings = segment.postings(word);
+		matches = matches == null ? postings : intersect(matches, postings);
+		if (matches.length == 0) {
+		    break;
+		}
+	    }
+	    for (int j = matches.length - 1; j >= 0 && found.size() < count; j--) {
+		found.addFirst(segment.message(matches[j]));
+	    }
+	}
+	return new ArrayList<byte[]>(found);
+    }
+
+    // The distinct lower case words of the text, as they are indexed
+    public static Set<String> words(String text) {
+	Set<String> words = new LinkedHashSet<String>();
+	int start = -1;
+	for (int i = 0; i <= text.length(); i++) {
+	    boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+	    if (letter && start < 0) {
+		start = i;
+	    } else if (!letter && start >= 0) {
+		if (i - start <= MAX_WORD) {
+		    words.add(text.substring(start, i).toLowerCase());
+		}
+		start = -1;
+	    }
+	}
+	return words;
+    }
+
+    // Merges the two newest written segments while the newer is at least half the size of
+    // the older. A merged segment is never larger than a quarter of the limit
+    private void merge() throws IOException {
+	int maxMerged = Math.max(segmentMessages, limit / 4);
+	while (files.size() >= 2) {
+	    FileSegment newer = files.get(files.size() - 1);
+	    FileSegment older = files.get(files.size() - 2);
+	    if (newer.size * 2 < older.size || older.size + newer.size > maxMerged) {
+		return;
+	    }
+	    Map<String, int[]> postings = new TreeMap<String, int[]>();
+	    for (String word : older.words.keySet()) {
+		postings.put(word, older.postings(word));
+	    }
+	    for (String word : newer.words.keySet()) {
+		int[] newerPostings = newer.postings(word);
+		for (int i = 0; i < newerPostings.length; i++) {
+		    newerPostings[i] += older.size;
+		}
+		postings.merge(word, newerPostings, RoomIndex::concat);
+	    }
+	    // Replaces the newer file, the older one is ignored on startup if it is left behind
+	    FileSegment merged = write(newer.number, older.first, older.size + newer.size,
+		    i -> i < older.size ? older.message(i) : newer.message(i - older.size),
+		    postings);
+	    older.delete();
+	    MappedFiles.unmap(newer.buffer);
+	    files.remove(files.size() - 1);
+	    files.set(files.size() - 1, merged);
+	}
+    }
+
+    // Drops the oldest written segments that are not needed to keep limit messages
+    private void trim() {
+	int total = current.size();
+	for (FileSegment segment : files) {
+	    total += segment.size;
+	}
+	while (files.size() > 1 && total - files.get(0).size >= limit) {
+	    FileSegment oldest = files.remove(0);
+	    total -= oldest.size;
+	    oldest.delete();
+	}
+    }
+
+    // Written to a temporary file that is synced and renamed once complete, so a segment
+    // file is either whole or missing
+    private FileSegment write(long number, long first, int size, IntFunction<byte[]> messages,
+	    Map<String, int[]> postings) throws IOException {
+	ByteArrayOutputStream words = new ByteArrayOutputStream();
+	DataOutputStream wordsOut = new DataOutputStream(words);
+	ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+	for (Map.Entry<String, int[]> word : postings.entrySet()) {
+	    encoded.reset();
+	    int last = 0;
+	    for (int messageNumber : word.getValue()) {
+		int delta = messageNumber - last;
+		while ((delta & ~0x7f) != 0) {
+		    encoded.write(delta | 0x80);
+		    delta >>>= 7;
+		}
+		encoded.write(delta);
+		last = messageNumber;
+	    }
+	    byte[] name = word.getKey().getBytes(StandardCharsets.UTF_8);
+	    wordsOut.writeShort(name.length);
+	    wordsOut.write(name);
+	    wordsOut.writeInt(word.getValue().length);
+	    wordsOut.writeInt(encoded.size());
+	    encoded.writeTo(wordsOut);
+	}
+
+	File file = new File(directory, String.format("%020d", number) + SUFFIX);
+	File partial = new File(directory, file.getName() + TEMPORARY);
+	try (FileOutputStream stream = new FileOutputStream(partial);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+	    out.writeInt(size);
+	    out.writeLong(first);
+	    out.writeInt(postings.size());
+	    long offset = 16 + 4L * size + words.size();
+	    for (int i = 0; i < size; i++) {
+		if (offset > Integer.MAX_VALUE) {
+		    throw new IOException("Index segment too large");
+		}
+		out.writeInt((int) offset);
+		offset += 4 + messages.apply(i).length;
+	    }
+	    words.writeTo(out);
+	    for (int i = 0; i < size; i++) {
+		byte[] message = messages.apply(i);
+		out.writeInt(message.length);
+		out.write(message);
+	    }
+	    out.flush();
+	    stream.getFD().sync();
+	}
+	Files.move(partial.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+		StandardCopyOption.ATOMIC_MOVE);
+	return new FileSegment(number, file);
+    }
+
+    private static int[] decode(ByteBuffer postings, int count) {
+	int[] numbers = new int[count];
+	int last = 0;
+	for (int i = 0; i < count; i++) {
+	    int delta = 0;
+	    int shift = 0;
+	    byte b;
+	    do {
+		b = postings.get();
+		delta |= (b & 0x7f) << shift;
+		shift += 7;
+	    } while (b < 0);
+	    last += delta;
+	    numbers[i] = last;
+	}
+	return numbers;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+	int[] both = new int[Math.min(a.length, b.length)];
+	int count = 0;
+	for (int i = 0, j = 0; i < a.length && j < b.length;) {
+	    if (a[i] < b[j]) {
+		i++;
+	    } else if (a[i] > b[j]) {
+		j++;
+	    } else {
+		both[count++] = a[i];
+		i++;
+		j++;
+	    }
+	}
+	return Arrays.copyOf(both, count);
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+	int[] both = Arrays.copyOf(a, a.length + b.length);
+	System.arraycopy(b, 0, both, a.length, b.length);
+	return both;
+    }
+}
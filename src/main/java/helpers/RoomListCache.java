@@ -0,0 +1,155 @@
+package main.java.helpers;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.ToIntFunction;
+
+/*
+ * Pre-encoded /rooms responses. Rooms are listed sorted by name, in pages of a
+ * fixed number of rooms. A page is rendered once and kept until the member
+ * count of one of its rooms changes. New rooms are merged in on the next
+ * request and only invalidate the pages from their position on. Answering
+ * /rooms from the cache costs a copy of the cached bytes.
+ */
+public class RoomListCache {
+
+    private static final byte[] LIST_HEADER = "Active rooms are:\n".getBytes();
+    private static final byte[] LIST_END = "end of list.\n".getBytes();
+
+    private final int pageSize;
+
+    // Local and remote members of a room, asked for when a page is rendered
+    private final ToIntFunction<String> memberCount;
+
+    // All rooms sorted by name, and rooms created since that array was built
+    private String[] names = new String[0];
+    private final Set<String> added = new HashSet<String>();
+
+    // Rendered lines of every page. Null while a page needs rendering
+    private byte[][] pages = new byte[0][];
+
+    // Complete unpaginated response. Null while any page changed
+    private byte[] all;
+
+    // Counts the changes, for callers that keep a rendering of their own
+    private long version;
+
+    public RoomListCache(int pageSize, ToIntFunction<String> memberCount) {
+	this.pageSize = Math.max(1, pageSize);
+	this.memberCount = memberCount;
+    }
+
+    public synchronized void roomAdded(String roomName) {
+	added.add(roomName);
+	all = null;
+	version++;
+    }
+
+    // The member count of the room changed
+    public synchronized void roomChanged(String roomName) {
+	version++;
+	int index = Arrays.binarySearch(names, roomName);
+	if (index >= 0) {
+	    pages[index / pageSize] = null;
+	    all = null;
+	}
+    }
+
+    public synchronized void invalidateAll() {
+	Arrays.fill(pages, null);
+	all = null;
+	version++;
+    }
+
+    // Changes whenever a room is added or a member count changes
+    public synchronized long getVersion() {
+	return version;
+    }
+
+    public synchronized int getRoomCount() {
+	return names.length + added.size();
+    }
+
+    public synchronized int getPageCount() {
+	mergeAdded();
+	return (names.length + pageSize - 1) / pageSize;
+    }
+
+    // Every room in one response
+    public synchronized byte[] getAll() {
+	mergeAdded();
+	if (all == null) {
+	    int length = LIST_HEADER.length + LIST_END.length;
+	    for (int i = 0; i < pages.length; i++) {
+		length += render(i).length;
+	    }
+	    all = new byte[length];
+	    int offset = append(LIST_HEADER, all, 0);
+	    for (int i = 0; i < pages.length; i++) {
+		offset = append(pages[i], all, offset);
+	    }
+	    append(LIST_END, all, offset);
+	}
+	return all;
+    }
+
+    // The given page, counted from 1. Null when there is no such page
+    public synchronized byte[] getPage(int page) {
+	mergeAdded();
+	if (page < 1 || page > pages.length) {
+	    return null;
+	}
+	byte[] header = ("Active rooms, page " + page + " of " + pages.length + ":\n").getBytes();
+	byte[] lines = render(page - 1);
+	byte[] response = new byte[header.length + lines.length + LIST_END.length];
+	append(LIST_END, response, append(lines, response, append(header, response, 0)));
+	return response;
+    }
+
+    private byte[] render(int page) {
+	if (pages[page] == null) {
+	    StringBuilder lines = new StringBuilder();
+	    int end = Math.min(names.length, (page + 1) * pageSize);
+	    for (int i = page * pageSize; i < end; i++) {
+		lines.append(" * ").append(names[i]).append(" (")
+			.append(memberCount.applyAsInt(names[i])).append(")\n");
+	    }
+	    pages[page] = lines.toString().getBytes();
+	}
+	return pages[page];
+    }
+
+    // Merges the new rooms into the sorted names. Pages before the first new room keep
+    // their rooms and stay valid
+    private void mergeAdded() {
+	if (added.isEmpty()) {
+	    return;
+	}
+	String[] merged = Arrays.copyOf(names, names.length + added.size());
+	int count = names.length;
+	for (String roomName : added) {
+	    if (Arrays.binarySearch(names, roomName) < 0) {
+		merged[count++] = roomName;
+	    }
+	}
+	added.clear();
+	merged = Arrays.copyOf(merged, count);
+	Arrays.sort(merged);
+	int firstChanged = 0;
+	while (firstChanged < names.length && names[firstChanged].equals(merged[firstChanged])) {
+	    firstChanged++;
+	}
+	byte[][] mergedPages = Arrays.copyOf(pages, (count + pageSize - 1) / pageSize);
+	Arrays.fill(mergedPages, Math.min(firstChanged / pageSize, mergedPages.length),
+		mergedPages.length, null);
+	names = merged;
+	pages = mergedPages;
+	all = null;
+    }
+
+    private static int append(byte[] source, byte[] target, int offset) {
+	System.arraycopy(source, 0, target, offset, source.length);
+	return offset + source.length;
+    }
+}
@@ -0,0 +1,52 @@
+package main.java.helpers;
+
+import java.util.Arrays;
+
+/*
+ * Session ids of the members of one room in a plain int array, in no
+ * particular order. A broadcast walks the array, a leave moves the last member
+ * into the gap. Changed and walked from the room's mailbox only, the member
+ * count may be read from any thread.
+ */
+public class RoomMembers {
+
+    private int[] sessions = new int[4];
+    private volatile int size;
+
+    public void add(int session) {
+	if (size == sessions.length) {
+	    sessions = Arrays.copyOf(sessions, size * 2);
+	}
+	sessions[size] = session;
+	size = size + 1;
+    }
+
+    public boolean remove(int session) {
+	for (int i = 0; i < size; i++) {
+	    if (sessions[i] == session) {
+		sessions[i] = sessions[size - 1];
+		size = size - 1;
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    public boolean contains(int session) {
+	for (int i = 0; i < size; i++) {
+	    if (sessions[i] == session) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    // The member array. Only the first size() entries are members
+    public int[] sessions() {
+	return sessions;
+    }
+
+    public int size() {
+	return size;
+    }
+}
@@ -0,0 +1,49 @@
+package main.java.helpers;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * A mailbox that runs its tasks one at a time, in the order they were added,
+ * on a shared pool. Many mailboxes share the pool, so independent mailboxes
+ * run in parallel while every single one stays serial.
+ */
+public class SerialExecutor implements Executor, Runnable {
+
+    // Tasks run per turn before the mailbox goes to the back of the pool's queue
+    private static final int BATCH_SIZE = 64;
+
+    private final Executor pool;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+    // Set while the mailbox is queued on or running in the pool
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    public SerialExecutor(Executor pool) {
+	this.pool = pool;
+    }
+
+    public void execute(Runnable task) {
+	tasks.add(task);
+	if (scheduled.compareAndSet(false, true)) {
+	    pool.execute(this);
+	}
+    }
+
+    public void run() {
+	try {
+	    Runnable task;
+	    for (int i = 0; i < BATCH_SIZE && (task = tasks.poll()) != null; i++) {
+		task.run();
+	    }
+	} finally {
+	    scheduled.set(false);
+	    if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+		pool.execute(this);
+	    }
+	}
+    }
+}
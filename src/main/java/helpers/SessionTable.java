@@ -0,0 +1,204 @@
+package main.java.helpers;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Per session state in an array indexed by session id. Ids are dense ints
+ * handed out by allocate: the low bits are the slot in the array, slots of
+ * closed sessions are reused. The high bits count how often the slot has been
+ * reused, so an id that outlives its session finds nothing instead of the
+ * session that took the slot over. Freed slots are reused oldest first, a slot
+ * only comes back after every other free slot, which keeps the generations of
+ * a slot far apart in time.
+ *
+ * Lookups take no lock. Changes are synchronized. Every slot holds one
+ * immutable entry of id and value, a lookup compares the id of the entry it
+ * returns the value of. A value set for a session is seen by any thread that
+ * learned the session id through a queue or executor.
+ */
+public class SessionTable<T> {
+
+    // Room for 1M sessions open at once. Generations stay below 2^11 so ids are never
+    // negative
+    private static final int SLOT_BITS = 20;
+    private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+    private static final int GENERATION_MASK = (1 << (31 - SLOT_BITS)) - 1;
+
+    private static final class Entry<T> {
+	final int id;
+	final T value;
+
+	Entry(int id, T value) {
+	    this.id = id;
+	    this.value = value;
+	}
+    }
+
+    // Replaced by a larger copy when grown
+    private volatile AtomicReferenceArray<Entry<T>> slots;
+
+    private int size;
+
+    // Slots free for reuse in the order they were freed, and the generation each slot is
+    // handed out with next. Only used by the table that allocates ids
+    private int[] free = new int[64];
+    private int freeHead;
+    private int freeCount;
+    private int nextSlot;
+    private int[] generations = new int[0];
+
+    public SessionTable() {
+	slots = new AtomicReferenceArray<Entry<T>>(1024);
+    }
+
+    // A new session id, not used by any open session
+    public synchronized int allocate() {
+	int slot;
+	if (freeCount > 0) {
+	    slot = free[freeHead];
+	    freeHead = (freeHead + 1) % free.length;
+	    freeCount--;
+	} else {
+	    if (nextSlot > SLOT_MASK) {
+		throw new IllegalStateException("Too many sessions");
+	    }
+	    slot = nextSlot++;
+	}
+	if (slot >= generations.length) {
+	    generations = Arrays.copyOf(generations, Math.max(1024,
+		    generations.length * 2));
+	}
+	return (generations[slot] << SLOT_BITS) | slot;
+    }
+
+    // Removes the session and hands its slot out again, with the next generation. Does
+    // nothing for an id released before
+    public synchronized void release(int id) {
+	int slot = slotOf(id);
+	if (slot >= nextSlot || generations[slot] != id >>> SLOT_BITS) {
+	    return;
+	}
+	remove(id);
+	generations[slot] = (generations[slot] + 1) & GENERATION_MASK;
+	if (freeCount == free.length) {
+	    int[] grown = new int[free.length * 2];
+	    for (int i = 0; i < freeCount; i++) {
+		grown[i] = free[(freeHead + i) % free.length];
+	    }
+	    free = grown;
+	    freeHead = 0;
+	}
+	free[(freeHead + freeCount) % free.length] = slot;
+	freeCount++;
+    }
+
+    public synchronized void set(int id, T value) {
+	int slot = slotOf(id);
+	AtomicReferenceArray<Entry<T>> current = slots;
+	if (slot >= current.length()) {
+	    current = grow(slot);
+	}
+	Entry<T> previous = current.get(slot);
+	if (previous == null || previous.id != id) {
+	    size++;
+	}
+	current.set(slot, new Entry<T>(id, value));
+    }
+
+    public synchronized void remove(int id) {
+	int slot = slotOf(id);
+	AtomicReferenceArray<Entry<T>> current = slots;
+	if (slot >= current.length()) {
+	    return;
+	}
+	Entry<T> entry = current.get(slot);
+	if (entry != null && entry.id == id) {
+	    current.set(slot, null);
+	    size--;
+	}
+    }
+
+    // Null when the session is closed or the id is stale
+    public T get(int id) {
+	int slot = slotOf(id);
+	AtomicReferenceArray<Entry<T>> current = slots;
+	if (slot >= current.length()) {
+	    return null;
+	}
+	Entry<T> entry = current.get(slot);
+	return entry == null || entry.id != id ? null : entry.value;
+    }
+
+    public synchronized int size() {
+	return size;
+    }
+
+    // Index of the id's slot. Dense over the open sessions, usable as an array index
+    public static int slotOf(int id) {
+	return id & SLOT_MASK;
+    }
+
+    // Live view of the open sessions' values, for reports
+    public Collection<T> values() {
+	return new AbstractCollection<T>() {
+	    public Iterator<T> iterator() {
+		return new ValueIterator(slots);
+	    }
+
+	    public int size() {
+		return SessionTable.this.size();
+	    }
+	};
+    }
+
+    private AtomicReferenceArray<Entry<T>> grow(int slot) {
+	AtomicReferenceArray<Entry<T>> current = slots;
+	int capacity = current.length();
+	while (capacity <= slot) {
+	    capacity *= 2;
+	}
+	AtomicReferenceArray<Entry<T>> grown = new AtomicReferenceArray<Entry<T>>(capacity);
+	for (int i = 0; i < current.length(); i++) {
+	    grown.set(i, current.get(i));
+	}
+	slots = grown;
+	return grown;
+    }
+
+    private class ValueIterator implements Iterator<T> {
+	private final AtomicReferenceArray<Entry<T>> snapshot;
+	private int index = -1;
+	private T next;
+
+	ValueIterator(AtomicReferenceArray<Entry<T>> snapshot) {
+	    this.snapshot = snapshot;
+	    advance();
+	}
+
+	private void advance() {
+	    next = null;
+	    while (next == null && ++index < snapshot.length()) {
+		Entry<T> entry = snapshot.get(index);
+		next = entry == null ? null : entry.value;
+	    }
+	}
+
+	public boolean hasNext() {
+	    return next != null;
+	}
+
+	public T next() {
+	    if (next == null) {
+		throw new NoSuchElementException();
+	    }
+	    T value = next;
+	    advance();
+	    return value;
+	}
+    }
+}
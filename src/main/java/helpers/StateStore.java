@@ -0,0 +1,250 @@
+package main.java.helpers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Logger;
+
+/*
+ * Durable list of rooms and registered user names. Changes are appended to a
+ * write ahead log by a background thread that writes and syncs everything
+ * queued in one go (group commit), so callers never wait for the disk. Every
+ * snapshotEvery records the whole state is written to a compact snapshot and a
+ * new log generation is started. On startup the snapshot is loaded and only
+ * the log of its generation is replayed.
+ *
+ * Log record: 1 byte type, 2 byte length, UTF-8 name.
+ * Snapshot: magic, generation, room count, rooms, user count, users.
+ */
+public class StateStore {
+    private final static Logger LOGGER = Logger.getLogger(StateStore.class.getName());
+
+    private static final int MAGIC = 0x43484154;
+
+    private static final byte ROOM_CREATED = 1;
+    private static final byte ROOM_DELETED = 2;
+    private static final byte USER_REGISTERED = 3;
+
+    private static final String SNAPSHOT = "snapshot.bin";
+
+    private final File directory;
+    private final int snapshotEvery;
+
+    // State as of the last record written. Only used by the writer thread after loading
+    private final Set<String> rooms = new LinkedHashSet<String>();
+    private final Set<String> users = new LinkedHashSet<String>();
+
+    private final BlockingQueue<Record> pending = new LinkedBlockingQueue<Record>();
+
+    private long generation;
+    private FileChannel log;
+    private int recordsSinceSnapshot;
+
+    private static class Record {
+	final byte type;
+	final String name;
+
+	Record(byte type, String name) {
+	    this.type = type;
+	    this.name = name;
+	}
+    }
+
+    public StateStore(File directory, int snapshotEvery) throws IOException {
+	this.directory = directory;
+	this.snapshotEvery = snapshotEvery;
+	if (!directory.isDirectory() && !directory.mkdirs()) {
+	    throw new IOException("Can not create state directory " + directory);
+	}
+	loadSnapshot();
+	replayLog();
+	Thread writer = new Thread(this::writeLoop, "chat-state-writer");
+	writer.setDaemon(true);
+	writer.start();
+    }
+
+    // Rooms as loaded at startup
+    public Set<String> getRooms() {
+	return Collections.unmodifiableSet(new LinkedHashSet<String>(rooms));
+    }
+
+    // Registered users as loaded at startup
+    public Set<String> getUsers() {
+	return Collections.unmodifiableSet(new LinkedHashSet<String>(users));
+    }
+
+    public void roomCreated(String roomName) {
+	pending.add(new Record(ROOM_CREATED, roomName));
+    }
+
+    public void roomDeleted(String roomName) {
+	pending.add(new Record(ROOM_DELETED, roomName));
+    }
+
+    public void userRegistered(String userName) {
+	pending.add(new Record(USER_REGISTERED, userName));
+    }
+
+    private void writeLoop() {
+	List<Record> batch = new ArrayList<Record>();
+	while (true) {
+	    try {
+		batch.add(pending.take());
+		pending.drainTo(batch);
+		writeBatch(batch);
+		if (recordsSinceSnapshot >= snapshotEvery) {
+		    snapshot();
+		}
+	    } catch (InterruptedException e) {
+		return;
+	    } catch (IOException e) {
+		LOGGER.severe("Could not write chat state " + e.getMessage());
+	    }
+	    batch.clear();
+	}
+    }
+
+    // One write and one sync for the whole batch
+    private void writeBatch(List<Record> batch) throws IOException {
+	List<byte[]> names = new ArrayList<byte[]>(batch.size());
+	int size = 0;
+	for (Record record : batch) {
+	    byte[] name = record.name.getBytes(StandardCharsets.UTF_8);
+	    names.add(name);
+	    size += 3 + name.length;
+	}
+	ByteBuffer buffer = ByteBuffer.allocate(size);
+	for (int i = 0; i < batch.size(); i++) {
+	    buffer.put(batch.get(i).type);
+	    buffer.putShort((short) names.get(i).length);
+	    buffer.put(names.get(i));
+	    apply(batch.get(i).type, batch.get(i).name);
+	}
+	buffer.flip();
+	while (buffer.hasRemaining()) {
+	    log.write(buffer);
+	}
+	log.force(false);
+	recordsSinceSnapshot += batch.size();
+    }
+
+    // The snapshot is written to a temporary file and renamed, so a crash leaves either
+    // the old snapshot with its log or the new one
+    private void snapshot() throws IOException {
+	long next = generation + 1;
+	File temporary = new File(directory, SNAPSHOT + ".tmp");
+	try (FileOutputStream file = new FileOutputStream(temporary);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+	    out.writeInt(MAGIC);
+	    out.writeLong(next);
+	    writeNames(out, rooms);
+	    writeNames(out, users);
+	    out.flush();
+	    file.getFD().sync();
+	}
+	Files.move(temporary.toPath(), new File(directory, SNAPSHOT).toPath(),
+		StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+	log.close();
+	logFile(generation).delete();
+	generation = next;
+	log = openLog(0);
+	recordsSinceSnapshot = 0;
+    }
+
+    private void loadSnapshot() throws IOException {
+	File snapshot = new File(directory, SNAPSHOT);
+	if (!snapshot.exists()) {
+	    return;
+	}
+	try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+		new FileInputStream(snapshot)))) {
+	    if (in.readInt() != MAGIC) {
+		throw new IOException("Not a chat state snapshot " + snapshot);
+	    }
+	    generation = in.readLong();
+	    readNames(in, rooms);
+	    readNames(in, users);
+	}
+    }
+
+    // Replays the log of the snapshot's generation. A torn record at the end is cut off
+    private void replayLog() throws IOException {
+	File file = logFile(generation);
+	long valid = 0;
+	if (file.exists()) {
+	    ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+	    while (buffer.remaining() >= 3) {
+		byte type = buffer.get();
+		int length = buffer.getShort() & 0xffff;
+		if (buffer.remaining() < length) {
+		    break;
+		}
+		byte[] name = new byte[length];
+		buffer.get(name);
+		apply(type, new String(name, StandardCharsets.UTF_8));
+		valid = buffer.position();
+		recordsSinceSnapshot++;
+	    }
+	}
+	log = openLog(valid);
+    }
+
+    private FileChannel openLog(long validLength) throws IOException {
+	FileChannel channel = FileChannel.open(logFile(generation).toPath(),
+		StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+	channel.truncate(validLength);
+	channel.position(validLength);
+	return channel;
+    }
+
+    private File logFile(long logGeneration) {
+	return new File(directory, "wal-" + logGeneration + ".log");
+    }
+
+    private void apply(byte type, String name) {
+	switch (type) {
+	case ROOM_CREATED:
+	    rooms.add(name);
+	    break;
+	case ROOM_DELETED:
+	    rooms.remove(name);
+	    break;
+	case USER_REGISTERED:
+	    users.add(name);
+	    break;
+	}
+    }
+
+    private static void writeNames(DataOutputStream out, Set<String> names) throws IOException {
+	out.writeInt(names.size());
+	for (String name : names) {
+	    out.writeUTF(name);
+	}
+    }
+
+    private static void readNames(DataInputStream in, Set<String> names) throws IOException {
+	int count = in.readInt();
+	for (int i = 0; i < count; i++) {
+	    names.add(in.readUTF());
+	}
+    }
+}
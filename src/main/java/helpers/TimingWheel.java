@@ -0,0 +1,145 @@
+package main.java.helpers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Hashed timing wheel. Time is cut into ticks and every timeout goes into the
+ * slot of the tick it expires in, slots wrap around so a timeout further away
+ * than one turn waits in its slot for more turns. Scheduling and cancelling
+ * are O(1) (timeouts are linked into their slot), advancing looks at one slot
+ * per tick. Timeouts fire up to one tick late.
+ *
+ * Not thread safe. Owned and driven by one reactor thread, see ChatReactor.
+ */
+public class TimingWheel {
+
+    public static class Timeout {
+	private final Runnable task;
+	private final long deadlineTick;
+	private Timeout previous;
+	private Timeout next;
+	private int slot = -1;
+	private boolean cancelled;
+
+	private Timeout(Runnable task, long deadlineTick) {
+	    this.task = task;
+	    this.deadlineTick = deadlineTick;
+	}
+
+	public boolean isPending() {
+	    return slot >= 0;
+	}
+    }
+
+    private final long tickNanos;
+    private final long startNanos;
+    private final Timeout[] slots;
+    private final int mask;
+
+    // Last tick that has been processed
+    private long currentTick;
+    private int pending;
+
+    // Expired timeouts of the slot being processed. Reused to keep advance free of allocation
+    private final List<Timeout> expired = new ArrayList<Timeout>();
+
+    // slotCount is rounded up to a power of two
+    public TimingWheel(long tickMillis, int slotCount) {
+	this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+	this.startNanos = System.nanoTime();
+	int size = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+	this.slots = new Timeout[size];
+	this.mask = size - 1;
+    }
+
+    public Timeout schedule(Runnable task, long delayMillis) {
+	long ticks = (TimeUnit.MILLISECONDS.toNanos(delayMillis) + tickNanos - 1) / tickNanos;
+	long deadlineTick = Math.max(tickOf(System.nanoTime()) + ticks, currentTick + 1);
+	Timeout timeout = new Timeout(task, deadlineTick);
+	link(timeout, (int) (deadlineTick & mask));
+	return timeout;
+    }
+
+    // Safe to call for timeouts that already fired or were cancelled
+    public void cancel(Timeout timeout) {
+	if (timeout == null) {
+	    return;
+	}
+	timeout.cancelled = true;
+	if (timeout.isPending()) {
+	    unlink(timeout);
+	}
+    }
+
+    // Runs every timeout that expired up to now
+    public void advance() {
+	long targetTick = tickOf(System.nanoTime());
+	if (pending == 0) {
+	    currentTick = Math.max(currentTick, targetTick);
+	    return;
+	}
+	while (currentTick < targetTick) {
+	    currentTick++;
+	    int slot = (int) (currentTick & mask);
+	    for (Timeout timeout = slots[slot]; timeout != null; timeout = timeout.next) {
+		if (timeout.deadlineTick <= currentTick) {
+		    expired.add(timeout);
+		}
+	    }
+	    // Tasks run after the slot was scanned, they may schedule and cancel timeouts
+	    for (int i = 0; i < expired.size(); i++) {
+		Timeout timeout = expired.get(i);
+		if (!timeout.cancelled) {
+		    unlink(timeout);
+		    timeout.task.run();
+		}
+	    }
+	    expired.clear();
+	}
+    }
+
+    // Milliseconds to wait in select() before the next tick is due. 0 when nothing is
+    // scheduled, which means wait without a timeout
+    public long millisToNextTick() {
+	if (pending == 0) {
+	    return 0;
+	}
+	long next = startNanos + (currentTick + 1) * tickNanos - System.nanoTime();
+	return Math.max(1, TimeUnit.NANOSECONDS.toMillis(next + 999999));
+    }
+
+    public int getPending() {
+	return pending;
+    }
+
+    private long tickOf(long nanos) {
+	return (nanos - startNanos) / tickNanos;
+    }
+
+    private void link(Timeout timeout, int slot) {
+	timeout.slot = slot;
+	timeout.next = slots[slot];
+	if (slots[slot] != null) {
+	    slots[slot].previous = timeout;
+	}
+	slots[slot] = timeout;
+	pending++;
+    }
+
+    private void unlink(Timeout timeout) {
+	if (timeout.previous != null) {
+	    timeout.previous.next = timeout.next;
+	} else {
+	    slots[timeout.slot] = timeout.next;
+	}
+	if (timeout.next != null) {
+	    timeout.next.previous = timeout.previous;
+	}
+	timeout.previous = null;
+	timeout.next = null;
+	timeout.slot = -1;
+	pending--;
+    }
+}
@@ -0,0 +1,43 @@
+package main.java.helpers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Lock free token bucket. Instead of a token count the bucket keeps the time
+ * at which it would be full again, so taking a token is a single compare and
+ * set and refilling needs no timer. A bucket holds up to burst tokens and
+ * refills at rate tokens per second.
+ */
+public class TokenBucket {
+
+    // Nanoseconds it takes to refill one token, and to refill the whole bucket
+    private final long nanosPerToken;
+    private final long burstNanos;
+
+    // Time at which the bucket is full. Anything in the past means full
+    private final AtomicLong fullAt;
+
+    public TokenBucket(double rate, int burst) {
+	this.nanosPerToken = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+	this.burstNanos = nanosPerToken * Math.max(1, burst);
+	this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    // Takes one token. Returns 0 when it was taken, otherwise the nanoseconds until the
+    // next token is there
+    public long tryAcquire() {
+	long now = System.nanoTime();
+	while (true) {
+	    long current = fullAt.get();
+	    long next = Math.max(current, now) + nanosPerToken;
+	    long wait = next - now - burstNanos;
+	    if (wait > 0) {
+		return wait;
+	    }
+	    if (fullAt.compareAndSet(current, next)) {
+		return 0;
+	    }
+	}
+    }
+}
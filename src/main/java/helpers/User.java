@@ -1,14 +1,53 @@
 package main.java.helpers;
 
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import main.java.ChatTransport;
+
 public class User implements Comparable {
-    private String userName;
-    private UserStatus userStatus;
-    private String currentRoomName;
+    // Changed by the reading thread and read in the room mailboxes
+    private volatile String userName;
+    private volatile UserStatus userStatus;
+    private volatile String currentRoomName;
+
+    // Session id handed out by ChatHandler.newSession, the channel of the session and
+    // the listener it is served by. The channel is null for sessions of ChatGateway
+    private final int session;
+    private final SocketChannel socketChannel;
+    private final ChatTransport transport;
+
+    // Mailbox the last command of this user was dispatched to, and the number of
+    // this user's tasks that have not run yet. Used to keep a user's commands in order
+    private Executor lastMailbox;
+    private AtomicInteger pendingTasks = new AtomicInteger();
+
+    // Set while a task passed through another mailbox has not started in its own yet.
+    // Later tasks wait in heldTasks until it did. These and lastMailbox are guarded
+    // by the user's lock
+    private boolean forwarding;
+    private final Queue<Runnable> heldTasks = new ArrayDeque<Runnable>();
+
+    // Token buckets of the rate limits, see RateLimiter. Set while the user's lines are
+    // refused so the notice is sent only once. Used from the reading thread only
+    private TokenBucket[] rateBuckets = new TokenBucket[RateLimiter.bucketsPerUser()];
+    private boolean rateLimited;
 
     public User(String userName, UserStatus userStatus) {
+	this(userName, userStatus, -1, null, null);
+    }
+
+    public User(String userName, UserStatus userStatus, int session,
+	    SocketChannel socketChannel, ChatTransport transport) {
 	super();
 	this.userName = userName;
 	this.userStatus = userStatus;
+	this.session = session;
+	this.socketChannel = socketChannel;
+	this.transport = transport;
     }
 
     public int compareTo(Object o) {
@@ -30,6 +69,18 @@ public class User implements Comparable {
         return userStatus;
     }
 
+    public int getSession() {
+        return session;
+    }
+
+    public SocketChannel getSocketChannel() {
+        return socketChannel;
+    }
+
+    public ChatTransport getTransport() {
+        return transport;
+    }
+
     public String getCurrentRoomName() {
         return currentRoomName;
     }
@@ -45,4 +96,40 @@ public class User implements Comparable {
     public void setCurrentRoomName(String currentGroupName) {
         this.currentRoomName = currentGroupName;
     }
+
+    public Executor getLastMailbox() {
+        return lastMailbox;
+    }
+
+    public void setLastMailbox(Executor lastMailbox) {
+        this.lastMailbox = lastMailbox;
+    }
+
+    public AtomicInteger getPendingTasks() {
+        return pendingTasks;
+    }
+
+    public boolean isForwarding() {
+        return forwarding;
+    }
+
+    public void setForwarding(boolean forwarding) {
+        this.forwarding = forwarding;
+    }
+
+    public Queue<Runnable> getHeldTasks() {
+        return heldTasks;
+    }
+
+    public TokenBucket[] getRateBuckets() {
+        return rateBuckets;
+    }
+
+    public boolean isRateLimited() {
+        return rateLimited;
+    }
+
+    public void setRateLimited(boolean rateLimited) {
+        this.rateLimited = rateLimited;
+    }
 }
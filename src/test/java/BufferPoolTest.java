@@ -0,0 +1,79 @@
+package test.java;
+
+import static test.java.TestSupport.check;
+import static test.java.TestSupport.checkEquals;
+
+import java.nio.charset.StandardCharsets;
+
+import main.java.helpers.BufferPool;
+import main.java.helpers.PooledBuffer;
+
+/*
+ * Releases of BufferPool buffers. A shared buffer goes back to the pool with
+ * the release of its last recipient, not before. A buffer released once more
+ * than it was shared is not handed back a second time, so it is never leased
+ * to two owners at once. Free buffers are a stack, the buffer released last is
+ * leased next.
+ */
+public class BufferPoolTest {
+
+    private static final long POOL_BYTES = 5 * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+	TestSupport.run("buffers shared released by the last recipient",
+		directory -> sharedRelease());
+	TestSupport.run("buffers double release ignored", directory -> doubleRelease());
+	TestSupport.run("buffers too large for the pool", directory -> tooLarge());
+    }
+
+    private static void sharedRelease() {
+	BufferPool pool = new BufferPool(POOL_BYTES, false);
+	PooledBuffer shared = pool.share(bytes("to everyone\n"), 3);
+	check(shared.isPooled(), "the buffer should be pooled");
+	check(shared.buffer().isReadOnly(), "a shared buffer should be read only");
+	shared.release();
+	shared.release();
+	PooledBuffer other = pool.copyOf(bytes("other\n"));
+	check(other != shared, "a buffer still referenced should not be leased again");
+	checkEquals("to everyone\n", text(shared), "shared bytes");
+
+	shared.release();
+	PooledBuffer next = pool.copyOf(bytes("next\n"));
+	check(next == shared, "the buffer should be back in the pool");
+	checkEquals("next\n", text(next), "bytes of the next lease");
+    }
+
+    private static void doubleRelease() {
+	BufferPool pool = new BufferPool(POOL_BYTES, false);
+	PooledBuffer buffer = pool.copyOf(bytes("once\n"));
+	buffer.release();
+	buffer.release();
+	PooledBuffer first = pool.copyOf(bytes("first\n"));
+	PooledBuffer second = pool.copyOf(bytes("second\n"));
+	check(first == buffer, "the released buffer should be leased next");
+	check(first != second, "a buffer should not be leased twice");
+	checkEquals("first\n", text(first), "bytes of the first lease");
+	checkEquals("second\n", text(second), "bytes of the second lease");
+    }
+
+    // Falls back to a heap buffer, releasing it does nothing
+    private static void tooLarge() {
+	BufferPool pool = new BufferPool(POOL_BYTES, false);
+	PooledBuffer large = pool.copyOf(new byte[100000]);
+	check(!large.isPooled(), "a large buffer should not be pooled");
+	large.release();
+	large.release();
+	checkEquals(1L, pool.getMisses(), "misses");
+	checkEquals(0L, pool.getLeases(), "leases");
+    }
+
+    private static byte[] bytes(String text) {
+	return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(PooledBuffer buffer) {
+	byte[] bytes = new byte[buffer.remaining()];
+	buffer.view().get(bytes);
+	return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
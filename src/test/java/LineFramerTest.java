@@ -0,0 +1,91 @@
+package test.java;
+
+import static test.java.TestSupport.checkEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import main.java.helpers.LineFramer;
+
+/*
+ * LineFramer fed the way a connection reads: lines split across reads at any
+ * byte, CRLF split between two reads, and lines over the limit, within one
+ * read and spread over several. An overlong line is reported once and the
+ * lines after it come through.
+ */
+public class LineFramerTest {
+
+    private static final int MAX_LINE_LENGTH = 8;
+
+    public static void main(String[] args) throws Exception {
+	TestSupport.run("framer lines split across reads", directory -> splitLines());
+	TestSupport.run("framer one byte per read", directory -> byteByByte());
+	TestSupport.run("framer overlong line in one read", directory -> overlongLine());
+	TestSupport.run("framer overlong line across reads", directory -> overlongAcrossReads());
+    }
+
+    private static void splitLines() {
+	Lines lines = new Lines();
+	lines.read("hel");
+	lines.read("lo\r");
+	lines.read("\nwor");
+	lines.read("ld\nlast");
+	checkEquals(Arrays.asList("hello", "world"), lines.lines, "lines");
+	lines.read("\n");
+	checkEquals(Arrays.asList("hello", "world", "last"), lines.lines, "lines");
+	checkEquals(0, lines.tooLong, "lines too long");
+    }
+
+    private static void byteByByte() {
+	Lines lines = new Lines();
+	for (char c : "one\r\ntwo\nthree\r".toCharArray()) {
+	    lines.read(String.valueOf(c));
+	}
+	checkEquals(Arrays.asList("one", "two", "three"), lines.lines, "lines");
+    }
+
+    // A line of exactly the limit still passes
+    private static void overlongLine() {
+	Lines lines = new Lines();
+	lines.read("123456789\n12345678\nok\n");
+	checkEquals(Arrays.asList("12345678", "ok"), lines.lines, "lines");
+	checkEquals(1, lines.tooLong, "lines too long");
+    }
+
+    private static void overlongAcrossReads() {
+	Lines lines = new Lines();
+	lines.read("01234");
+	lines.read("56789");
+	lines.read("abcdefghij");
+	lines.read("xyz\nok\n");
+	checkEquals(Arrays.asList("ok"), lines.lines, "lines");
+	checkEquals(1, lines.tooLong, "lines too long");
+    }
+
+    // Copies every line out, the framer hands out slices of the read buffer
+    private static class Lines implements LineFramer.LineHandler {
+	final LineFramer framer = new LineFramer(MAX_LINE_LENGTH);
+	final List<String> lines = new ArrayList<String>();
+	int tooLong;
+
+	// Reads into the middle of a larger buffer, like a reused read buffer
+	void read(String text) {
+	    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+	    byte[] buffer = new byte[bytes.length + 8];
+	    Arrays.fill(buffer, (byte) '\n');
+	    System.arraycopy(bytes, 0, buffer, 4, bytes.length);
+	    framer.frame(7, buffer, 4, bytes.length, this);
+	}
+
+	public void onLine(int session, byte[] data, int offset, int length) {
+	    checkEquals(7, session, "session");
+	    lines.add(new String(data, offset, length, StandardCharsets.UTF_8));
+	}
+
+	public void onLineTooLong(int session) {
+	    tooLong++;
+	}
+    }
+}
@@ -0,0 +1,140 @@
+package test.java;
+
+import static test.java.TestSupport.await;
+import static test.java.TestSupport.checkEquals;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import main.java.helpers.MailboxStore;
+
+/*
+ * Restarts of MailboxStore after a crash: a segment whose last record was torn,
+ * a crash between compaction copying the undelivered messages of the oldest
+ * segment and deleting it, and a restart after a compaction that finished. A
+ * restart is a second store opened on the directory of the first. Also that a
+ * mailbox whose delivery was refused is kept.
+ */
+public class MailboxStoreTest {
+
+    private static final int SEGMENT_SIZE = 256;
+
+    public static void main(String[] args) throws Exception {
+	TestSupport.run("mailbox torn header skipped", directory -> tornTail(directory, 40));
+	TestSupport.run("mailbox torn length past the end",
+		directory -> tornTail(directory, SEGMENT_SIZE));
+	TestSupport.run("mailbox crash mid compaction", directory -> compacted(directory, true));
+	TestSupport.run("mailbox compacted log replayed", directory -> compacted(directory, false));
+	TestSupport.run("mailbox kept when delivery refused", MailboxStoreTest::refused);
+    }
+
+    // The crash left the length of a record and nothing else
+    private static void tornTail(File directory, int tornLength) throws Exception {
+	MailboxStore store = new MailboxStore(directory, SEGMENT_SIZE, 100);
+	store.append("alice", bytes("hello\n"));
+	sync(store);
+	File segment = segment(directory, 1);
+	try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+	    file.seek(endOfRecords(segment));
+	    file.writeInt(tornLength);
+	}
+
+	MailboxStore restarted = new MailboxStore(directory, SEGMENT_SIZE, 100);
+	checkEquals("hello\n", deliver(restarted, "alice"), "alice's mailbox");
+	restarted.append("alice", bytes("again\n"));
+	sync(restarted);
+
+	MailboxStore again = new MailboxStore(directory, SEGMENT_SIZE, 100);
+	checkEquals("again\n", deliver(again, "alice"), "alice's mailbox");
+    }
+
+    // Alice's first message shares the first segment with bob's. Once bob's are delivered
+    // compaction copies alice's to the end of the log and deletes the segment. A crash
+    // before the delete is played by putting the segment back
+    private static void compacted(File directory, boolean crash) throws Exception {
+	MailboxStore store = new MailboxStore(directory, SEGMENT_SIZE, 100, 50);
+	store.append("alice", bytes("first\n"));
+	for (int i = 0; i < 8; i++) {
+	    store.append("bob", bytes("message for bob " + i + "\n"));
+	}
+	store.append("alice", bytes("second\n"));
+	File first = segment(directory, 1);
+	await(() -> segment(directory, 2).exists(), "the second segment");
+	File saved = new File(directory.getParentFile(), directory.getName() + ".saved");
+	Files.copy(first.toPath(), saved.toPath());
+	try {
+	    deliver(store, "bob");
+	    await(() -> !first.exists(), "the first segment to be compacted");
+	    if (crash) {
+		Files.move(saved.toPath(), first.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	    }
+	} finally {
+	    Files.deleteIfExists(saved.toPath());
+	}
+
+	MailboxStore restarted = new MailboxStore(directory, SEGMENT_SIZE, 100);
+	checkEquals("first\nsecond\n", deliver(restarted, "alice"), "alice's mailbox");
+	checkEquals("", deliver(restarted, "bob"), "bob's mailbox");
+    }
+
+    // The user went away before the store got to the mailbox
+    private static void refused(File directory) throws Exception {
+	MailboxStore store = new MailboxStore(directory, SEGMENT_SIZE, 100);
+	store.append("alice", bytes("hello\n"));
+	store.deliver("alice", batch -> false);
+	sync(store);
+
+	MailboxStore restarted = new MailboxStore(directory, SEGMENT_SIZE, 100);
+	checkEquals("hello\n", deliver(restarted, "alice"), "alice's mailbox after a restart");
+	checkEquals("", deliver(restarted, "alice"), "alice's mailbox once delivered");
+    }
+
+    // Everything asked of the store before has been done once this returns
+    private static void sync(MailboxStore store) throws Exception {
+	store.append("sync", bytes("."));
+	deliver(store, "sync");
+    }
+
+    // The user's messages, empty when there are none
+    private static String deliver(MailboxStore store, String userName) throws Exception {
+	StringBuilder messages = new StringBuilder();
+	store.deliver(userName, batch -> {
+	    messages.append(new String(batch, StandardCharsets.UTF_8));
+	    return true;
+	});
+	// Nothing is handed over for an empty mailbox. The marker's are, after the user's.
+	// They are refused, so nothing is written after them and the store is idle once they
+	// are handed over
+	CompletableFuture<String> delivered = new CompletableFuture<String>();
+	store.append("marker", bytes("."));
+	store.deliver("marker", batch -> {
+	    delivered.complete(messages.toString());
+	    return false;
+	});
+	return delivered.get(5, TimeUnit.SECONDS);
+    }
+
+    private static File segment(File directory, long number) {
+	return new File(directory, String.format("%020d", number) + ".mbx");
+    }
+
+    // Offset of the zero length after the last record of the segment
+    private static int endOfRecords(File segment) throws Exception {
+	ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(segment.toPath()));
+	int length;
+	while ((length = buffer.getInt(buffer.position())) > 0) {
+	    buffer.position(buffer.position() + 4 + length);
+	}
+	return buffer.position();
+    }
+
+    private static byte[] bytes(String text) {
+	return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
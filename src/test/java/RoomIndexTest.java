@@ -0,0 +1,129 @@
+package test.java;
+
+import static test.java.TestSupport.check;
+import static test.java.TestSupport.checkEquals;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import main.java.helpers.RoomIndex;
+
+/*
+ * Restarts of a persisted RoomIndex after a crash: a segment file cut short,
+ * and a crash before and after a merge renamed its file into place. Segments
+ * hold two messages, with a limit of 100 the first two segments are merged as
+ * soon as the second is written. Also that an idle index writes its
+ * in-memory segment when it is closed.
+ */
+public class RoomIndexTest {
+
+    private static final int SEGMENT_MESSAGES = 2;
+    private static final int LIMIT = 100;
+
+    // Small enough that merged segments would be larger than allowed, nothing is merged
+    private static final int NO_MERGE_LIMIT = 8;
+
+    public static void main(String[] args) throws Exception {
+	TestSupport.run("index torn segment skipped", RoomIndexTest::tornSegment);
+	TestSupport.run("index crash before merge renamed", RoomIndexTest::crashBeforeRename);
+	TestSupport.run("index crash after merge renamed", RoomIndexTest::crashAfterRename);
+	TestSupport.run("index idle closed and reopened", RoomIndexTest::idleClosed);
+    }
+
+    private static void tornSegment(File directory) throws Exception {
+	RoomIndex index = new RoomIndex(directory, SEGMENT_MESSAGES, NO_MERGE_LIMIT);
+	add(index, 1, 2, 3, 4);
+	File second = segment(directory, 2);
+	try (RandomAccessFile file = new RandomAccessFile(second, "rw")) {
+	    file.setLength(file.length() / 2);
+	}
+
+	RoomIndex restarted = new RoomIndex(directory, SEGMENT_MESSAGES, NO_MERGE_LIMIT);
+	checkEquals(messages(1, 2), search(restarted), "messages found");
+	check(!second.exists(), "the torn segment should be deleted");
+	add(restarted, 1, 2);
+	checkEquals(messages(1, 2, 1, 2), search(restarted), "messages found after new ones");
+    }
+
+    // Both segments are still there, next to the merged file that was being written
+    private static void crashBeforeRename(File directory) throws Exception {
+	File merged = new File(directory.getParentFile(), directory.getName() + ".merged");
+	try {
+	    File mergedDirectory = new File(merged, "index");
+	    add(new RoomIndex(mergedDirectory, SEGMENT_MESSAGES, LIMIT), 1, 2, 3, 4);
+	    add(new RoomIndex(directory, SEGMENT_MESSAGES, NO_MERGE_LIMIT), 1, 2, 3, 4);
+	    byte[] partial = Files.readAllBytes(segment(mergedDirectory, 2).toPath());
+	    Files.write(new File(directory, segment(directory, 2).getName() + ".tmp").toPath(),
+		    Arrays.copyOf(partial, partial.length / 2));
+	} finally {
+	    TestSupport.delete(merged);
+	}
+
+	RoomIndex restarted = new RoomIndex(directory, SEGMENT_MESSAGES, LIMIT);
+	checkEquals(messages(1, 2, 3, 4), search(restarted), "messages found");
+	checkEquals(2, directory.list().length, "files left");
+    }
+
+    // The merged file replaced the newer segment, the older one was not deleted yet
+    private static void crashAfterRename(File directory) throws Exception {
+	RoomIndex index = new RoomIndex(directory, SEGMENT_MESSAGES, LIMIT);
+	add(index, 1, 2);
+	File first = segment(directory, 1);
+	byte[] older = Files.readAllBytes(first.toPath());
+	add(index, 3, 4);
+	check(!first.exists(), "the first segment should be merged");
+	Files.write(first.toPath(), older);
+
+	RoomIndex restarted = new RoomIndex(directory, SEGMENT_MESSAGES, LIMIT);
+	checkEquals(messages(1, 2, 3, 4), search(restarted), "messages found");
+	check(!first.exists(), "the segment left behind should be deleted");
+    }
+
+    // The third message is still in memory when the index goes idle
+    private static void idleClosed(File directory) throws Exception {
+	RoomIndex index = new RoomIndex(directory, SEGMENT_MESSAGES, LIMIT);
+	add(index, 1, 2, 3);
+	check(!index.closeIfIdle(), "an index used since the last call should stay open");
+	check(index.closeIfIdle(), "an idle index should be closed");
+
+	RoomIndex reopened = new RoomIndex(directory, SEGMENT_MESSAGES, LIMIT);
+	checkEquals(messages(1, 2, 3), search(reopened), "messages found");
+	add(reopened, 4);
+	checkEquals(messages(1, 2, 3, 4), search(reopened), "messages found after a new one");
+    }
+
+    private static void add(RoomIndex index, int... numbers) throws Exception {
+	for (int number : numbers) {
+	    index.add(message(number));
+	}
+    }
+
+    private static List<String> search(RoomIndex index) {
+	List<String> found = new ArrayList<String>();
+	for (byte[] message : index.search(RoomIndex.words("alpha"), 100)) {
+	    found.add(new String(message, StandardCharsets.UTF_8));
+	}
+	return found;
+    }
+
+    private static List<String> messages(int... numbers) {
+	List<String> messages = new ArrayList<String>();
+	for (int number : numbers) {
+	    messages.add(new String(message(number), StandardCharsets.UTF_8));
+	}
+	return messages;
+    }
+
+    private static byte[] message(int number) {
+	return ("alpha message " + number).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static File segment(File directory, long number) {
+	return new File(directory, String.format("%020d", number) + ".idx");
+    }
+}
@@ -0,0 +1,55 @@
+package test.java;
+
+import static test.java.TestSupport.check;
+import static test.java.TestSupport.checkEquals;
+
+import main.java.helpers.SessionTable;
+
+/*
+ * Ids of SessionTable that outlive their session. Once the slot is handed out
+ * again with the next generation the old id finds nothing, and removing or
+ * releasing it again leaves the new session alone. Freed slots come back
+ * oldest first.
+ */
+public class SessionTableTest {
+
+    public static void main(String[] args) throws Exception {
+	TestSupport.run("sessions stale generation rejected", directory -> staleGeneration());
+	TestSupport.run("sessions slots reused oldest first", directory -> reuseOrder());
+    }
+
+    private static void staleGeneration() {
+	SessionTable<String> table = new SessionTable<String>();
+	int stale = table.allocate();
+	table.set(stale, "alice");
+	table.release(stale);
+	checkEquals(null, table.get(stale), "released session");
+
+	int id = table.allocate();
+	checkEquals(SessionTable.slotOf(stale), SessionTable.slotOf(id), "slot");
+	check(id != stale, "the slot should come back with a new id");
+	table.set(id, "bob");
+	checkEquals(null, table.get(stale), "stale id");
+	checkEquals("bob", table.get(id), "new session");
+
+	table.remove(stale);
+	table.release(stale);
+	checkEquals("bob", table.get(id), "new session after stale remove and release");
+	checkEquals(1, table.size(), "sessions");
+	check(table.allocate() != id, "the new session's id should not be handed out");
+    }
+
+    private static void reuseOrder() {
+	SessionTable<String> table = new SessionTable<String>();
+	int[] ids = new int[3];
+	for (int i = 0; i < ids.length; i++) {
+	    ids[i] = table.allocate();
+	}
+	table.release(ids[1]);
+	table.release(ids[0]);
+	table.release(ids[2]);
+	checkEquals(SessionTable.slotOf(ids[1]), SessionTable.slotOf(table.allocate()), "first slot");
+	checkEquals(SessionTable.slotOf(ids[0]), SessionTable.slotOf(table.allocate()), "second slot");
+	checkEquals(SessionTable.slotOf(ids[2]), SessionTable.slotOf(table.allocate()), "third slot");
+    }
+}
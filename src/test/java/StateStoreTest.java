@@ -0,0 +1,91 @@
+package test.java;
+
+import static test.java.TestSupport.await;
+import static test.java.TestSupport.check;
+import static test.java.TestSupport.checkEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import main.java.helpers.StateStore;
+
+/*
+ * Restarts of StateStore: the log replayed on its own, a snapshot followed by
+ * the log of its generation, and a log whose last record was torn by a crash.
+ * A restart is a second store opened on the directory of the first, the first
+ * is left as a crash would leave it.
+ */
+public class StateStoreTest {
+
+    public static void main(String[] args) throws Exception {
+	TestSupport.run("state log replayed", StateStoreTest::logReplayed);
+	TestSupport.run("state snapshot and log replayed", StateStoreTest::snapshotAndLogReplayed);
+	TestSupport.run("state torn tail cut off", StateStoreTest::tornTailCutOff);
+    }
+
+    private static void logReplayed(File directory) throws Exception {
+	StateStore store = new StateStore(directory, 1000);
+	store.roomCreated("r1");
+	store.roomCreated("r2");
+	store.userRegistered("alice");
+	store.roomDeleted("r1");
+	File log = new File(directory, "wal-0.log");
+	// 3 bytes of type and length per record and the names
+	await(() -> log.length() == 4 * 3 + 2 + 2 + 5 + 2, "the log to be written");
+
+	StateStore restarted = new StateStore(directory, 1000);
+	checkEquals(names("r2"), restarted.getRooms(), "rooms");
+	checkEquals(names("alice"), restarted.getUsers(), "users");
+    }
+
+    // Waits for every record so each one is a batch of its own and the snapshot is taken
+    // right after the third
+    private static void snapshotAndLogReplayed(File directory) throws Exception {
+	StateStore store = new StateStore(directory, 3);
+	File firstLog = new File(directory, "wal-0.log");
+	File secondLog = new File(directory, "wal-1.log");
+	store.roomCreated("r1");
+	await(() -> firstLog.length() == 5, "the first record");
+	store.userRegistered("bob");
+	await(() -> firstLog.length() == 11, "the second record");
+	store.roomCreated("r2");
+	await(() -> new File(directory, "snapshot.bin").exists() && secondLog.exists()
+		&& !firstLog.exists(), "the snapshot");
+	store.roomDeleted("r1");
+	store.userRegistered("carol");
+	await(() -> secondLog.length() == 13, "the records after the snapshot");
+
+	StateStore restarted = new StateStore(directory, 3);
+	checkEquals(names("r2"), restarted.getRooms(), "rooms");
+	checkEquals(names("bob", "carol"), restarted.getUsers(), "users");
+    }
+
+    private static void tornTailCutOff(File directory) throws Exception {
+	StateStore store = new StateStore(directory, 1000);
+	store.roomCreated("r1");
+	store.roomCreated("r2");
+	File log = new File(directory, "wal-0.log");
+	await(() -> log.length() == 10, "the log to be written");
+	// A record that says 9 bytes of name follow and holds 2 of them
+	try (FileOutputStream out = new FileOutputStream(log, true)) {
+	    out.write(new byte[] { 1, 0, 9, 'r', '3' });
+	}
+
+	StateStore restarted = new StateStore(directory, 1000);
+	checkEquals(names("r1", "r2"), restarted.getRooms(), "rooms");
+	checkEquals(10L, log.length(), "log length after the torn record was cut off");
+	restarted.roomCreated("r4");
+	await(() -> log.length() == 15, "the record after the cut");
+
+	StateStore again = new StateStore(directory, 1000);
+	checkEquals(names("r1", "r2", "r4"), again.getRooms(), "rooms");
+	check(again.getUsers().isEmpty(), "no users expected");
+    }
+
+    private static Set<String> names(String... names) {
+	return new LinkedHashSet<String>(Arrays.asList(names));
+    }
+}
@@ -0,0 +1,70 @@
+package test.java;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Objects;
+import java.util.function.BooleanSupplier;
+
+/*
+ * What the tests in this directory share. There is no test framework in the
+ * tree: every test class has a main() that runs its cases, a failed check
+ * throws AssertionError and the JVM exits with an error.
+ *
+ * Usage: java -cp out test.java.StateStoreTest
+ */
+public class TestSupport {
+
+    private static final long AWAIT_MILLIS = 5000;
+
+    interface TestCase {
+	void run(File directory) throws Exception;
+    }
+
+    private TestSupport() {
+    }
+
+    // Runs the case in a fresh directory that is deleted afterwards
+    static void run(String name, TestCase test) throws Exception {
+	File directory = Files.createTempDirectory("chat-test").toFile();
+	try {
+	    test.run(directory);
+	} finally {
+	    delete(directory);
+	}
+	System.out.println("ok " + name);
+    }
+
+    static void check(boolean condition, String message) {
+	if (!condition) {
+	    throw new AssertionError(message);
+	}
+    }
+
+    static void checkEquals(Object expected, Object actual, String what) {
+	if (!Objects.equals(expected, actual)) {
+	    throw new AssertionError(what + ": expected " + expected + " but was " + actual);
+	}
+    }
+
+    // Stores write from their own threads, waits until the condition holds
+    static void await(BooleanSupplier condition, String what) throws InterruptedException {
+	long deadline = System.currentTimeMillis() + AWAIT_MILLIS;
+	while (!condition.getAsBoolean()) {
+	    if (System.currentTimeMillis() > deadline) {
+		throw new AssertionError("Timed out waiting for " + what);
+	    }
+	    Thread.sleep(10);
+	}
+    }
+
+    static void delete(File file) throws IOException {
+	File[] children = file.listFiles();
+	if (children != null) {
+	    for (File child : children) {
+		delete(child);
+	    }
+	}
+	Files.deleteIfExists(file.toPath());
+    }
+}
@@ -0,0 +1,86 @@
+package test.java;
+
+import static test.java.TestSupport.check;
+import static test.java.TestSupport.checkEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import main.java.helpers.TimingWheel;
+
+/*
+ * TimingWheel driven like the reactor drives it: advance, then sleep until the
+ * next tick. Timeouts cancelled by a task that runs in the same advance, and
+ * timeouts several turns of the wheel away, which pass their slot before they
+ * are due. A wheel of 8 slots of 10ms turns once every 80ms.
+ */
+public class TimingWheelTest {
+
+    private static final long TICK_MILLIS = 10;
+    private static final int SLOTS = 8;
+
+    public static void main(String[] args) throws Exception {
+	TestSupport.run("wheel cancel in the same slot", directory -> cancelSameSlot());
+	TestSupport.run("wheel cancel a later slot", directory -> cancelLaterSlot());
+	TestSupport.run("wheel timeouts turns away", directory -> turnsAway());
+    }
+
+    // Both expire in the same tick. Whichever runs first cancels the other
+    private static void cancelSameSlot() throws Exception {
+	TimingWheel wheel = new TimingWheel(TICK_MILLIS, SLOTS);
+	List<String> fired = new ArrayList<String>();
+	TimingWheel.Timeout[] timeouts = new TimingWheel.Timeout[2];
+	timeouts[0] = wheel.schedule(() -> {
+	    fired.add("first");
+	    wheel.cancel(timeouts[1]);
+	}, 30);
+	timeouts[1] = wheel.schedule(() -> {
+	    fired.add("second");
+	    wheel.cancel(timeouts[0]);
+	}, 30);
+	drive(wheel, 100);
+	checkEquals(1, fired.size(), "timeouts fired");
+	checkEquals(0, wheel.getPending(), "timeouts pending");
+	check(!timeouts[0].isPending() && !timeouts[1].isPending(), "nothing should be pending");
+    }
+
+    // The task also schedules a new timeout, which fires in a later advance
+    private static void cancelLaterSlot() throws Exception {
+	TimingWheel wheel = new TimingWheel(TICK_MILLIS, SLOTS);
+	List<String> fired = new ArrayList<String>();
+	TimingWheel.Timeout later = wheel.schedule(() -> fired.add("later"), 60);
+	wheel.schedule(() -> {
+	    fired.add("early");
+	    wheel.cancel(later);
+	    wheel.schedule(() -> fired.add("rescheduled"), 20);
+	}, 20);
+	drive(wheel, 150);
+	checkEquals(List.of("early", "rescheduled"), fired, "timeouts fired");
+	wheel.cancel(later);
+	checkEquals(0, wheel.getPending(), "timeouts pending");
+    }
+
+    // 200ms is two and a half turns. Neither fires early nor more than a tick late
+    private static void turnsAway() throws Exception {
+	TimingWheel wheel = new TimingWheel(TICK_MILLIS, SLOTS);
+	long start = System.nanoTime();
+	long[] firedAfter = { -1, -1 };
+	wheel.schedule(() -> firedAfter[0] = (System.nanoTime() - start) / 1000000, 200);
+	wheel.schedule(() -> firedAfter[1] = (System.nanoTime() - start) / 1000000, 40);
+	drive(wheel, 300);
+	check(firedAfter[1] >= 40 - TICK_MILLIS && firedAfter[1] < 200,
+		"40ms timeout fired after " + firedAfter[1] + "ms");
+	check(firedAfter[0] >= 200 - TICK_MILLIS, "200ms timeout fired after " + firedAfter[0] + "ms");
+	checkEquals(0, wheel.getPending(), "timeouts pending");
+    }
+
+    private static void drive(TimingWheel wheel, long millis) throws InterruptedException {
+	long deadline = System.currentTimeMillis() + millis;
+	while (System.currentTimeMillis() < deadline) {
+	    wheel.advance();
+	    long wait = wheel.millisToNextTick();
+	    Thread.sleep(wait == 0 ? TICK_MILLIS : wait);
+	}
+	wheel.advance();
+    }
+}